@@ -71,8 +71,22 @@ public class ConfigManager {
         map.put("gal_ai_reasoning_effort", CATEGORY_AI_SETTINGS);
         map.put("gal_ai_qps", CATEGORY_AI_SETTINGS);
         map.put("gal_ai_timeout", CATEGORY_AI_SETTINGS);
+        map.put("gal_ai_stream_enabled", CATEGORY_AI_SETTINGS);
+        map.put("gal_ai_structured_output", CATEGORY_AI_SETTINGS);
+        map.put("gal_ai_response_cache_ttl", CATEGORY_AI_SETTINGS);
+        map.put("gal_ai_burst_window", CATEGORY_AI_SETTINGS);
+        map.put("gal_ai_batch_enabled", CATEGORY_AI_SETTINGS);
+        map.put("gal_ai_hedge_enabled", CATEGORY_AI_SETTINGS);
+        map.put("gal_ai_backup_endpoints", CATEGORY_AI_SETTINGS);
+        map.put("gal_ai_fair_queue_enabled", CATEGORY_AI_SETTINGS);
+        map.put("gal_ai_private_chat_weight", CATEGORY_AI_SETTINGS);
+        map.put("gal_ai_queue_capacity", CATEGORY_AI_SETTINGS);
+        map.put("gal_ai_overload_policy", CATEGORY_AI_SETTINGS);
         map.put("gal_context_enabled", CATEGORY_AI_SETTINGS);
         map.put("gal_context_message_count", CATEGORY_AI_SETTINGS);
+        map.put("gal_context_token_budget", CATEGORY_AI_SETTINGS);
+        map.put("gal_context_backfill_enabled", CATEGORY_AI_SETTINGS);
+        map.put("gal_context_summary_enabled", CATEGORY_AI_SETTINGS);
         map.put("gal_history_threshold", CATEGORY_AI_SETTINGS);
         
         // 代理设置
@@ -365,6 +379,58 @@ public class ConfigManager {
     public static final int DEFAULT_AI_TIMEOUT = 30; // 默认30秒
     public static final String KEY_AI_TIMEOUT = "gal_ai_timeout";
     
+    // AI Stream Mode (流式输出，边生成边显示选项)
+    public static final boolean DEFAULT_AI_STREAM_ENABLED = false;
+    public static final String KEY_AI_STREAM_ENABLED = "gal_ai_stream_enabled";
+    
+    // AI Structured Output (支持的服务商使用 response_format 要求返回JSON)
+    public static final boolean DEFAULT_AI_STRUCTURED_OUTPUT = true;
+    public static final String KEY_AI_STRUCTURED_OUTPUT = "gal_ai_structured_output";
+    
+    // AI Response Cache TTL (相同消息+上下文的响应缓存有效期，0为关闭)
+    public static final int DEFAULT_AI_RESPONSE_CACHE_TTL = 600; // 默认10分钟
+    public static final String KEY_AI_RESPONSE_CACHE_TTL = "gal_ai_response_cache_ttl";
+    
+    // AI Burst Window (连发消息合并窗口，毫秒，0为关闭)
+    public static final int DEFAULT_AI_BURST_WINDOW = 1500;
+    public static final String KEY_AI_BURST_WINDOW = "gal_ai_burst_window";
+    
+    // AI Batch Mode (同一会话的多条排队消息合并为一次请求)
+    public static final boolean DEFAULT_AI_BATCH_ENABLED = false;
+    public static final String KEY_AI_BATCH_ENABLED = "gal_ai_batch_enabled";
+    
+    // AI Backup Endpoints (备用端点：对冲请求 + 故障转移)
+    public static final boolean DEFAULT_AI_HEDGE_ENABLED = true;
+    public static final String KEY_AI_HEDGE_ENABLED = "gal_ai_hedge_enabled";
+    public static final String KEY_AI_BACKUP_ENDPOINTS = "gal_ai_backup_endpoints";
+    
+    // AI Fair Queue (会话间公平调度，私聊权重)
+    public static final boolean DEFAULT_AI_FAIR_QUEUE_ENABLED = true;
+    public static final String KEY_AI_FAIR_QUEUE_ENABLED = "gal_ai_fair_queue_enabled";
+    public static final int DEFAULT_AI_PRIVATE_CHAT_WEIGHT = 3;
+    public static final String KEY_AI_PRIVATE_CHAT_WEIGHT = "gal_ai_private_chat_weight";
+    
+    // AI Queue Overload (队列容量与过载策略)
+    public static final String OVERLOAD_DROP_OLDEST = "drop_oldest";
+    public static final String OVERLOAD_REJECT_NEW = "reject_new";
+    public static final String OVERLOAD_COLLAPSE = "collapse";
+    public static final int DEFAULT_AI_QUEUE_CAPACITY = 100;
+    public static final String KEY_AI_QUEUE_CAPACITY = "gal_ai_queue_capacity";
+    public static final String DEFAULT_AI_OVERLOAD_POLICY = OVERLOAD_DROP_OLDEST;
+    public static final String KEY_AI_OVERLOAD_POLICY = "gal_ai_overload_policy";
+    
+    // Context Token Budget (上下文token预算，0为按条数)
+    public static final int DEFAULT_CONTEXT_TOKEN_BUDGET = 0;
+    public static final String KEY_CONTEXT_TOKEN_BUDGET = "gal_context_token_budget";
+    
+    // Context Backfill (冷会话从QQ消息记录回填上下文)
+    public static final boolean DEFAULT_CONTEXT_BACKFILL_ENABLED = true;
+    public static final String KEY_CONTEXT_BACKFILL_ENABLED = "gal_context_backfill_enabled";
+    
+    // Context Summary (移出上下文窗口的较早消息摘要)
+    public static final boolean DEFAULT_CONTEXT_SUMMARY_ENABLED = true;
+    public static final String KEY_CONTEXT_SUMMARY_ENABLED = "gal_context_summary_enabled";
+    
     // Proxy Keys (代理配置)
     public static final String KEY_PROXY_ENABLED = "gal_proxy_enabled";
     public static final String KEY_PROXY_TYPE = "gal_proxy_type";
@@ -506,6 +572,13 @@ public class ConfigManager {
     }
 
     // ========== Prompt List Methods (提示词列表管理) ==========
+
+    // 模型/提示词列表在本进程内的修改次数，供依赖这些配置的缓存判断是否需要刷新
+    private static volatile int sPromptConfigVersion = 0;
+
+    public static int getPromptConfigVersion() {
+        return sPromptConfigVersion;
+    }
     
     /**
      * 获取提示词列表（JSON数组格式存储）
@@ -571,6 +644,7 @@ public class ConfigManager {
                 arr.put(obj);
             }
             getMmkv().encode(KEY_PROMPT_LIST, arr.toString());
+            sPromptConfigVersion++;
         } catch (Exception e) {
             android.util.Log.e("GalQQ.ConfigManager", "Failed to save prompt list", e);
         }
@@ -774,6 +848,7 @@ public class ConfigManager {
     
     public static void setAiModel(String model) {
         getMmkv().encode(KEY_AI_MODEL, model);
+        sPromptConfigVersion++;
     }
 
     public static String getAiProvider() {
@@ -848,6 +923,141 @@ public class ConfigManager {
     public static void setAiTimeout(int timeout) {
         getMmkv().encode(KEY_AI_TIMEOUT, timeout);
     }
+    
+    /**
+     * 是否启用流式输出（stream: true）
+     * 启用后选项边生成边显示，解析到3个选项后立即结束请求
+     */
+    public static boolean isAiStreamEnabled() {
+        return getMmkv().decodeBool(KEY_AI_STREAM_ENABLED, DEFAULT_AI_STREAM_ENABLED);
+    }
+    
+    public static void setAiStreamEnabled(boolean enabled) {
+        getMmkv().encode(KEY_AI_STREAM_ENABLED, enabled);
+    }
+    
+    /**
+     * 是否启用结构化输出（response_format）
+     * 启用后支持的服务商直接返回JSON，不支持的服务商仍按原方式解析
+     */
+    public static boolean isAiStructuredOutputEnabled() {
+        return getMmkv().decodeBool(KEY_AI_STRUCTURED_OUTPUT, DEFAULT_AI_STRUCTURED_OUTPUT);
+    }
+    
+    public static void setAiStructuredOutputEnabled(boolean enabled) {
+        getMmkv().encode(KEY_AI_STRUCTURED_OUTPUT, enabled);
+    }
+    
+    /**
+     * 获取响应缓存有效期（秒），0表示关闭
+     * 相同提示词+上下文+消息内容的请求在有效期内直接复用结果
+     */
+    public static int getAiResponseCacheTtl() {
+        return getMmkv().decodeInt(KEY_AI_RESPONSE_CACHE_TTL, DEFAULT_AI_RESPONSE_CACHE_TTL);
+    }
+    
+    public static void setAiResponseCacheTtl(int seconds) {
+        getMmkv().encode(KEY_AI_RESPONSE_CACHE_TTL, seconds);
+    }
+    
+    /**
+     * 获取连发消息合并窗口（毫秒），0表示关闭
+     * 自动显示模式下，窗口内同一会话的连发消息只为最新一条请求AI
+     */
+    public static int getAiBurstWindow() {
+        return getMmkv().decodeInt(KEY_AI_BURST_WINDOW, DEFAULT_AI_BURST_WINDOW);
+    }
+    
+    public static void setAiBurstWindow(int windowMs) {
+        getMmkv().encode(KEY_AI_BURST_WINDOW, windowMs);
+    }
+    
+    /**
+     * 是否启用批量模式
+     * 启用后同一会话中排队的多条消息合并为一次请求，共用系统提示词和上下文
+     */
+    public static boolean isAiBatchEnabled() {
+        return getMmkv().decodeBool(KEY_AI_BATCH_ENABLED, DEFAULT_AI_BATCH_ENABLED);
+    }
+    
+    public static void setAiBatchEnabled(boolean enabled) {
+        getMmkv().encode(KEY_AI_BATCH_ENABLED, enabled);
+    }
+    
+    /**
+     * 是否启用备用端点
+     * 启用后主端点响应慢（超过p95延迟）时向备用端点发起对冲请求，失败时自动转移
+     */
+    public static boolean isAiHedgeEnabled() {
+        return getMmkv().decodeBool(KEY_AI_HEDGE_ENABLED, DEFAULT_AI_HEDGE_ENABLED);
+    }
+    
+    public static void setAiHedgeEnabled(boolean enabled) {
+        getMmkv().encode(KEY_AI_HEDGE_ENABLED, enabled);
+    }
+    
+    /**
+     * 获取备用端点配置
+     * @return JSON数组 [{"provider", "url", "key", "model"}]，未配置返回空字符串
+     */
+    public static String getAiBackupEndpoints() {
+        return getMmkv().decodeString(KEY_AI_BACKUP_ENDPOINTS, "");
+    }
+    
+    public static void setAiBackupEndpoints(String json) {
+        getMmkv().encode(KEY_AI_BACKUP_ENDPOINTS, json);
+    }
+    
+    /**
+     * 是否启用会话间公平调度
+     * 启用后同优先级的请求在各会话之间轮流处理，活跃群聊不会占满队列
+     */
+    public static boolean isAiFairQueueEnabled() {
+        return getMmkv().decodeBool(KEY_AI_FAIR_QUEUE_ENABLED, DEFAULT_AI_FAIR_QUEUE_ENABLED);
+    }
+    
+    public static void setAiFairQueueEnabled(boolean enabled) {
+        getMmkv().encode(KEY_AI_FAIR_QUEUE_ENABLED, enabled);
+    }
+    
+    /**
+     * 获取私聊权重（群聊为1，白名单好友的私聊再翻倍）
+     * @return 权重（1-10）
+     */
+    public static int getAiPrivateChatWeight() {
+        int weight = getMmkv().decodeInt(KEY_AI_PRIVATE_CHAT_WEIGHT, DEFAULT_AI_PRIVATE_CHAT_WEIGHT);
+        return Math.max(1, Math.min(10, weight));
+    }
+    
+    public static void setAiPrivateChatWeight(int weight) {
+        getMmkv().encode(KEY_AI_PRIVATE_CHAT_WEIGHT, weight);
+    }
+    
+    /**
+     * 获取AI请求队列容量（排队中的请求数上限）
+     * @return 容量（10-500）
+     */
+    public static int getAiQueueCapacity() {
+        int capacity = getMmkv().decodeInt(KEY_AI_QUEUE_CAPACITY, DEFAULT_AI_QUEUE_CAPACITY);
+        return Math.max(10, Math.min(500, capacity));
+    }
+    
+    public static void setAiQueueCapacity(int capacity) {
+        getMmkv().encode(KEY_AI_QUEUE_CAPACITY, capacity);
+    }
+    
+    /**
+     * 获取队列满时的过载策略
+     * @return OVERLOAD_DROP_OLDEST（丢弃最旧的普通请求）、OVERLOAD_REJECT_NEW（拒绝新的普通请求）
+     *         或 OVERLOAD_COLLAPSE（同一会话只保留最新的请求）
+     */
+    public static String getAiOverloadPolicy() {
+        return getMmkv().decodeString(KEY_AI_OVERLOAD_POLICY, DEFAULT_AI_OVERLOAD_POLICY);
+    }
+    
+    public static void setAiOverloadPolicy(String policy) {
+        getMmkv().encode(KEY_AI_OVERLOAD_POLICY, policy);
+    }
 
     public static String getDictPath() {
         return getMmkv().decodeString(KEY_DICT_PATH, "");
@@ -1094,6 +1304,42 @@ public class ConfigManager {
         getMmkv().encode(KEY_CONTEXT_MESSAGE_COUNT, count);
     }
     
+    /**
+     * 获取上下文token预算
+     * 大于0时从最新消息往前填充上下文，直到预估token数达到预算（仍不超过上下文消息数）
+     * @return token预算，0表示只按条数
+     */
+    public static int getContextTokenBudget() {
+        int budget = getMmkv().decodeInt(KEY_CONTEXT_TOKEN_BUDGET, DEFAULT_CONTEXT_TOKEN_BUDGET);
+        return Math.max(0, Math.min(32000, budget));
+    }
+    
+    public static void setContextTokenBudget(int budget) {
+        getMmkv().encode(KEY_CONTEXT_TOKEN_BUDGET, budget);
+    }
+    
+    /**
+     * 是否在上下文不足时从QQ消息记录回填会话历史
+     */
+    public static boolean isContextBackfillEnabled() {
+        return getMmkv().decodeBool(KEY_CONTEXT_BACKFILL_ENABLED, DEFAULT_CONTEXT_BACKFILL_ENABLED);
+    }
+    
+    public static void setContextBackfillEnabled(boolean enabled) {
+        getMmkv().encode(KEY_CONTEXT_BACKFILL_ENABLED, enabled);
+    }
+    
+    /**
+     * 是否为移出上下文窗口的较早消息生成摘要随请求发送（作为系统提示词之后的单独消息）
+     */
+    public static boolean isContextSummaryEnabled() {
+        return getMmkv().decodeBool(KEY_CONTEXT_SUMMARY_ENABLED, DEFAULT_CONTEXT_SUMMARY_ENABLED);
+    }
+    
+    public static void setContextSummaryEnabled(boolean enabled) {
+        getMmkv().encode(KEY_CONTEXT_SUMMARY_ENABLED, enabled);
+    }
+    
     public static int getHistoryThreshold() {
         return getMmkv().decodeInt(KEY_HISTORY_THRESHOLD, DEFAULT_HISTORY_THRESHOLD);
     }
@@ -22,6 +22,7 @@ import top.galqq.utils.DictionaryManager;
 import top.galqq.utils.HttpAiClient;
 import top.galqq.utils.MessageContextManager;
 import top.galqq.utils.QAppUtils;
+import top.galqq.utils.PromptCompiler;
 import java.lang.reflect.Field;
 import top.galqq.utils.SendMessageHelper;
 import top.galqq.config.ConfigManager;
@@ -30,6 +31,7 @@ public class MessageInterceptor {
 
     private static final String TAG = "GalQQ.MessageInterceptor";
     private static final int OPTION_BAR_ID = 0x7F0A1234; // Custom ID for option bar
+    private static final int PRIORITY_LISTENER_TAG = 0x7F0A1235; // 选项条上的可见性监听器（View tag key）
     
     /**
      * 调试日志输出（受 gal_debug_hook_log 配置开关控制）
@@ -79,6 +81,9 @@ public class MessageInterceptor {
             }
         };
 
+    // 点击「刷新」的消息ID：下一次生成跳过响应缓存（仅主线程访问）
+    private static final java.util.Set<String> responseCacheBypassMsgIds = new java.util.HashSet<>();
+
     // 记录已请求显示选项的消息ID，防止View复用时重置回按钮状态
     private static final java.util.Set<String> requestedOptionsMsgIds = java.util.Collections.synchronizedSet(new java.util.HashSet<>());
     
@@ -280,13 +285,117 @@ public class MessageInterceptor {
         setupOptionBarContent(context, bar, msgContent, chatMessage, null, null);
     }
 
+    // 视图绑定：rootView（会被RecyclerView复用）-> 当前绑定的消息及其AI请求取消令牌
+    // 仅在主线程访问，使用WeakHashMap避免持有已销毁的视图
+    private static final java.util.Map<View, OptionBarBinding> viewBindings = new java.util.WeakHashMap<>();
+    
+    private static class OptionBarBinding {
+        final String msgId;
+        final top.galqq.utils.AiCancellationToken token;
+        
+        OptionBarBinding(String msgId, top.galqq.utils.AiCancellationToken token) {
+            this.msgId = msgId;
+            this.token = token;
+        }
+    }
+    
+    /**
+     * 记录rootView当前绑定的请求令牌，并取消之前绑定的令牌
+     * 注意：需在新请求提交之后调用，这样同一消息的重复绑定会先合并到在途请求，再释放旧回调
+     */
+    private static void bindViewToken(View rootView, String msgId, top.galqq.utils.AiCancellationToken token) {
+        OptionBarBinding previous = viewBindings.put(rootView, new OptionBarBinding(msgId, token));
+        if (previous != null && previous.token != token) {
+            previous.token.cancel();
+        }
+    }
+    
+    /**
+     * 根据选项条可见性动态调整排队中请求的优先级：
+     * 布局完成或滚入屏幕（attach）时提升为HIGH，滚出屏幕（detach）时降为NORMAL
+     */
+    private static void trackRequestPriority(Context context, final View bar, final String msgId) {
+        if (msgId == null) {
+            return;
+        }
+        final AiRateLimitedQueue queue = AiRateLimitedQueue.getInstance(context);
+        final Runnable checkVisible = () -> {
+            android.graphics.Rect rect = new android.graphics.Rect();
+            if (bar.isShown() && bar.getGlobalVisibleRect(rect)) {
+                queue.updatePriority(msgId, AiRateLimitedQueue.Priority.HIGH);
+            }
+        };
+        // 刷新时会对同一选项条重新设置，先移除旧监听器，避免累积并调整旧消息的优先级
+        untrackRequestPriority(bar);
+        View.OnAttachStateChangeListener listener = new View.OnAttachStateChangeListener() {
+            @Override
+            public void onViewAttachedToWindow(View v) {
+                v.post(checkVisible);
+            }
+            
+            @Override
+            public void onViewDetachedFromWindow(View v) {
+                queue.updatePriority(msgId, AiRateLimitedQueue.Priority.NORMAL);
+            }
+        };
+        bar.addOnAttachStateChangeListener(listener);
+        bar.setTag(PRIORITY_LISTENER_TAG, listener);
+        bar.post(checkVisible);
+    }
+    
+    /**
+     * 移除选项条上的可见性监听器
+     */
+    private static void untrackRequestPriority(View bar) {
+        Object previous = bar.getTag(PRIORITY_LISTENER_TAG);
+        if (previous instanceof View.OnAttachStateChangeListener) {
+            bar.removeOnAttachStateChangeListener((View.OnAttachStateChangeListener) previous);
+            bar.setTag(PRIORITY_LISTENER_TAG, null);
+        }
+    }
+    
+    /**
+     * rootView被复用到其他消息时，取消旧消息仍在排队/进行中的AI请求
+     */
+    private static void releaseViewBinding(View rootView, String newMsgId) {
+        OptionBarBinding binding = viewBindings.get(rootView);
+        if (binding != null && (newMsgId == null || !newMsgId.equals(binding.msgId))) {
+            viewBindings.remove(rootView);
+            binding.token.cancel();
+            View bar = rootView.findViewById(OPTION_BAR_ID);
+            if (bar != null) {
+                untrackRequestPriority(bar);
+            }
+            debugLog(TAG + ": View rebound, cancelled AI request for msgId=" + binding.msgId);
+        }
+    }
+
     // 公开缓存方法供队列恢复时使用
     public static void cacheOptions(String msgId, List<String> options) {
         if (msgId != null && options != null) {
             optionsCache.put(msgId, new java.util.ArrayList<>(options));
+            // 同时写入持久化缓存，QQ重启后无需重新请求AI
+            top.galqq.utils.OptionsDiskCache.put(msgId, options);
             // debugLog(TAG + ": Cached AI options for msgId=" + msgId);
         }
     }
+    
+    /**
+     * 获取缓存的选项：先查内存，未命中再查持久化缓存（命中后回填内存）
+     */
+    private static List<String> getCachedOptions(String msgId) {
+        if (msgId == null) {
+            return null;
+        }
+        List<String> options = optionsCache.get(msgId);
+        if (options == null) {
+            options = top.galqq.utils.OptionsDiskCache.get(msgId);
+            if (options != null) {
+                optionsCache.put(msgId, options);
+            }
+        }
+        return options;
+    }
 
     private static void setupOptionBarContent(Context context, LinearLayout bar, String msgContent, 
                                                Object msgObj, String msgId, String conversationId) {
@@ -381,8 +490,9 @@ public class MessageInterceptor {
             List<MessageContextManager.ChatMessage> contextMessages = null;
             if (ConfigManager.isContextEnabled() && conversationId != null) {
                 int contextCount = ConfigManager.getContextMessageCount();
-                // 多获取一条，以便如果最后一条是当前消息时移除
-                contextMessages = MessageContextManager.getContext(conversationId, contextCount + 1);
+                // 多获取一条，以便如果最后一条是当前消息时移除；另加窗口余量，用于保持上下文起点不变
+                contextMessages = MessageContextManager.getContext(conversationId,
+                        contextCount + PromptCompiler.windowSlack(contextCount) + 1);
                 
                 // 去除当前消息（如果它已经被存入上下文）
                 if (!contextMessages.isEmpty()) {
@@ -408,10 +518,13 @@ public class MessageInterceptor {
                     }
                 }
                 
-                // 确保数量不超过配置
-                if (contextMessages.size() > contextCount) {
-                    contextMessages = contextMessages.subList(contextMessages.size() - contextCount, contextMessages.size());
+                // 上下文不足时异步回填历史消息（出队时会按回填后的缓存重新取上下文）
+                if (contextMessages.size() < contextCount) {
+                    top.galqq.utils.ContextBackfill.onConversationBound(context, msgObj, conversationId);
                 }
+                
+                // 选择上下文窗口：起点尽量沿用上一次请求，便于命中服务商的提示词前缀缓存
+                contextMessages = PromptCompiler.anchorWindow(conversationId, contextMessages, contextCount);
             }
 
             // 判断选项条是否在屏幕可见区域（用于设置优先级）
@@ -476,11 +589,33 @@ public class MessageInterceptor {
                 }
             }
             
+            // 【响应缓存】相同提示词+上下文+消息内容直接复用结果，不经过限流队列（含图片的消息不参与）
+            boolean bypassResponseCache = msgId != null && responseCacheBypassMsgIds.remove(msgId);
+            final String responseCacheKey = 
+                (top.galqq.utils.ResponseCache.isEnabled() && (imageElements == null || imageElements.isEmpty()))
+                    ? top.galqq.utils.ResponseCache.buildKey(customPrompt, contextMessages, msgContent) : null;
+            if (responseCacheKey != null && !bypassResponseCache) {
+                List<String> cachedResponse = top.galqq.utils.ResponseCache.get(responseCacheKey);
+                if (cachedResponse != null) {
+                    cacheOptions(msgId, cachedResponse);
+                    bar.setPadding(0, dp2px(context, 5), 0, dp2px(context, 5));
+                    if (rootView != null) {
+                        populateBarAndShowWithActions(context, bar, cachedResponse, msgObj, msgId, conversationId, rootView);
+                    } else {
+                        populateBarAndShow(context, bar, cachedResponse, msgObj);
+                    }
+                    return;
+                }
+            }
+            
             // 提交到限流队列（带优先级、上下文、发送者QQ、自定义提示词、图片元素和会话ID）
             // 使用支持重试的回调接口
             final String finalSenderQQ = senderQQ;
             final String finalCustomPrompt = customPrompt;
             final java.util.List<top.galqq.utils.ImageExtractor.ImageElement> finalImageElements = imageElements;
+            // 取消令牌：rootView被复用到其他消息时取消，回调不再操作过期视图
+            final top.galqq.utils.AiCancellationToken cancelToken = 
+                rootView != null ? new top.galqq.utils.AiCancellationToken() : null;
             AiRateLimitedQueue.getInstance(context).submitRequest(
                 context, 
                 msgContent, 
@@ -493,14 +628,21 @@ public class MessageInterceptor {
                 finalCustomPrompt, // 自定义提示词
                 finalImageElements, // 图片元素列表
                 conversationId, // 会话ID（用于图片描述缓存）
+                cancelToken, // 取消令牌
                 new HttpAiClient.AiCallbackWithRetry() {
                     @Override
                     public void onSuccess(List<String> options) {
-                        // 恢复顶部间距
-                        bar.setPadding(0, dp2px(context, 5), 0, dp2px(context, 5));
-                        
                         // 缓存AI结果
                         cacheOptions(msgId, options);
+                        top.galqq.utils.ResponseCache.put(responseCacheKey, options);
+                        
+                        // 视图已复用到其他消息，只缓存不刷新
+                        if (cancelToken != null && cancelToken.isCancelled()) {
+                            return;
+                        }
+                        
+                        // 恢复顶部间距
+                        bar.setPadding(0, dp2px(context, 5), 0, dp2px(context, 5));
                         
                         // 如果有 rootView，使用带操作按钮的版本
                         if (rootView != null) {
@@ -510,19 +652,42 @@ public class MessageInterceptor {
                         }
                     }
 
+                    @Override
+                    public void onPartialOptions(List<String> options) {
+                        if (cancelToken != null && cancelToken.isCancelled()) {
+                            return;
+                        }
+                        // 流式输出：先展示已生成的选项（不缓存、不带操作按钮），完整结果到达后再替换
+                        bar.setPadding(0, dp2px(context, 5), 0, dp2px(context, 5));
+                        populateBarAndShow(context, bar, options, msgObj);
+                    }
+
                     @Override
                     public void onFailure(Exception e) {
+                        if (cancelToken != null && cancelToken.isCancelled()) {
+                            return;
+                        }
                         // AI失败时隐藏选项条（已在UI线程）
                         bar.setVisibility(View.GONE);
                     }
                     
                     @Override
                     public void onAllRetriesFailed(Runnable retryAction) {
+                        if (cancelToken != null && cancelToken.isCancelled()) {
+                            return;
+                        }
                         // 所有重试都失败后，显示"重新加载"按钮
                         showReloadButton(context, bar, retryAction, msgObj);
                     }
                 }
             );
+            
+            if (rootView != null) {
+                bindViewToken(rootView, msgId, cancelToken);
+            }
+            
+            // 提交时选项条往往尚未布局，优先级按NORMAL入队；之后随可见性动态调整
+            trackRequestPriority(context, bar, msgId);
         } else {
             // 本地词库模式：每次随机生成，不使用缓存
             useDictionaryNT(context, bar, msgObj);
@@ -1456,6 +1621,13 @@ public class MessageInterceptor {
                 }
             }
             
+            // 【请求取消】ViewHolder被复用到其他消息时，取消旧消息仍在排队/进行中的AI请求
+            String boundMsgId = null;
+            try {
+                boundMsgId = String.valueOf(XposedHelpers.getObjectField(msgRecord, "msgId"));
+            } catch (Throwable ignored) {}
+            releaseViewBinding(rootView, boundMsgId);
+            
             // 【关键修复】无条件清理旧选项条和好感度视图（RecyclerView的ViewHolder会复用）
             // 使用View接收，避免ClassCastException（因为可能是LinearLayout也可能是TextView）
             View existingView = rootView.findViewById(OPTION_BAR_ID);
@@ -1682,6 +1854,9 @@ public class MessageInterceptor {
                     // 传递senderUin用于好感度查询
                     MessageContextManager.addMessage(peerUin, senderName, senderUin, msgContent, isSelf, msgId, msgTime, imageCount);
                     
+                    // 【上下文回填】会话首次出现时，异步从QQ消息记录补齐最近的历史消息
+                    top.galqq.utils.ContextBackfill.onConversationBound(context, msgRecord, peerUin);
+                    
                     // 【上下文图片识别】缓存图片元素，以便后续识别
                     if (imageElements != null && !imageElements.isEmpty() && peerUin != null && msgId != null) {
                         top.galqq.utils.ImageDescriptionCache.putImageElements(peerUin, msgId, imageElements);
@@ -1743,7 +1918,9 @@ public class MessageInterceptor {
                 long thresholdMs = thresholdSeconds * 1000L;
                 
                 // 检查是否已缓存AI选项（如果有缓存，即使超过阈值也显示）
-                boolean hasCachedOptions = (msgId != null && optionsCache.containsKey(msgId));
+                // 本次绑定只查一次缓存，后续判断和填充复用该结果
+                List<String> cachedOptions = getCachedOptions(msgId);
+                boolean hasCachedOptions = (cachedOptions != null);
                 
                 long currentTime = System.currentTimeMillis();
                 if (!hasCachedOptions && Math.abs(currentTime - msgTime) > thresholdMs) {
@@ -1777,7 +1954,7 @@ public class MessageInterceptor {
                 // 检查是否用户手动点击过显示
                 boolean hasRequested = (msgId != null && requestedOptionsMsgIds.contains(msgId));
                 // 检查是否有缓存结果（有结果也应该直接显示）
-                boolean hasCache = (msgId != null && optionsCache.containsKey(msgId));
+                boolean hasCache = hasCachedOptions;
                 
                 // 检查是否已收起（优先显示「展开选项」按钮）
                 boolean isCollapsed = (msgId != null && collapsedMsgIds.contains(msgId));
@@ -1800,6 +1977,35 @@ public class MessageInterceptor {
                     } else {
                         handleLegacyLayout(context, rootView, expandBtn);
                     }
+                } else if (autoShow && !hasRequested && !hasCache && ConfigManager.isAiEnabled() 
+                        && top.galqq.utils.BurstCollapser.isEnabled()
+                        && top.galqq.utils.BurstCollapser.shouldCollapse(conversationId, msgId, msgTime)) {
+                    // 【连发合并】自动显示模式下先显示按钮，等待窗口结束后只为会话中最新一条消息自动请求AI
+                    // 被更新消息覆盖的旧消息保留「显示选项」按钮，可手动请求
+                    // 打开聊天或翻看历史时绑定的旧消息不在连发窗口内，走下面的普通自动显示
+                    final View button = createShowOptionsButton(context, msgRecord, msgId, conversationId, rootView);
+                    
+                    Class<?> constraintLayoutClass = null;
+                    try {
+                        constraintLayoutClass = XposedHelpers.findClass("androidx.constraintlayout.widget.ConstraintLayout", context.getClassLoader());
+                    } catch (Throwable t) {
+                        // Ignore if class not found
+                    }
+
+                    if (constraintLayoutClass != null && constraintLayoutClass.isAssignableFrom(rootView.getClass())) {
+                        handleConstraintLayout(context, rootView, button, msgRecord);
+                    } else if (rootView.getClass().getName().contains("ConstraintLayout")) {
+                        handleConstraintLayout(context, rootView, button, msgRecord);
+                    } else {
+                        handleLegacyLayout(context, rootView, button);
+                    }
+                    
+                    top.galqq.utils.BurstCollapser.submit(conversationId, msgId, msgTime, () -> {
+                        // 按钮已被移除说明View已复用到其他消息
+                        if (button.getParent() != null) {
+                            button.performClick();
+                        }
+                    });
                 } else if (autoShow || hasRequested || hasCache) {
                     // 自动显示模式：创建选项条并立即填充
                     LinearLayout optionBar = createEmptyOptionBarNT(context);
@@ -1821,7 +2027,8 @@ public class MessageInterceptor {
                     }
                     
                     // 使用带 rootView 的版本以支持操作按钮
-                    fillOptionBarContentWithRoot(context, optionBar, msgRecord, msgId, conversationId, rootView);
+                    fillOptionBarContentWithRoot(context, optionBar, msgRecord, msgId, conversationId, rootView,
+                            ConfigManager.isAiEnabled() ? cachedOptions : null);
                 } else {
                     // 按需显示模式：仅显示按钮
                     View button = createShowOptionsButton(context, msgRecord, msgId, conversationId, rootView);
@@ -2223,11 +2430,18 @@ public class MessageInterceptor {
     // 填充选项条内容（AI或本地词库）- 带 rootView 版本（支持操作按钮）
     private static void fillOptionBarContentWithRoot(Context context, LinearLayout bar, Object msgRecord, 
                                              String msgId, String conversationId, ViewGroup rootView) {
+        fillOptionBarContentWithRoot(context, bar, msgRecord, msgId, conversationId, rootView,
+                ConfigManager.isAiEnabled() ? getCachedOptions(msgId) : null);
+    }
+    
+    // 填充选项条内容 - 调用方已查过缓存时直接传入结果，避免重复查询
+    private static void fillOptionBarContentWithRoot(Context context, LinearLayout bar, Object msgRecord, 
+                                             String msgId, String conversationId, ViewGroup rootView,
+                                             List<String> cachedOptions) {
         String msgContent = getMessageContentNT(msgRecord);
         
         // 【AI缓存优化】如果启用AI且缓存中有选项，直接使用缓存数据
-        if (ConfigManager.isAiEnabled() && msgId != null && optionsCache.containsKey(msgId)) {
-            List<String> cachedOptions = optionsCache.get(msgId);
+        if (cachedOptions != null) {
             if (rootView != null) {
                 populateBarAndShowWithActions(context, bar, cachedOptions, msgRecord, msgId, conversationId, rootView);
             } else {
@@ -2321,7 +2535,11 @@ public class MessageInterceptor {
             v.performHapticFeedback(android.view.HapticFeedbackConstants.KEYBOARD_TAP);
             
             // 清空选项条内容并重新获取（使用带 rootView 的版本以保留操作按钮）
+            // 刷新需要重新生成，跳过响应缓存
             optionBar.removeAllViews();
+            if (msgId != null) {
+                responseCacheBypassMsgIds.add(msgId);
+            }
             String msgContent = getMessageContentNT(msgRecord);
             setupOptionBarContentWithRoot(context, optionBar, msgContent, msgRecord, msgId, conversationId, rootView);
         });
@@ -2420,7 +2638,7 @@ public class MessageInterceptor {
             v.performHapticFeedback(android.view.HapticFeedbackConstants.KEYBOARD_TAP);
             
             // 1. 从缓存获取选项
-            List<String> cachedOptions = (msgId != null) ? optionsCache.get(msgId) : null;
+            List<String> cachedOptions = getCachedOptions(msgId);
             
             // 2. 从收起状态移除
             if (msgId != null) {
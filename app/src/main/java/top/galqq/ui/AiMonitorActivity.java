@@ -7,6 +7,10 @@ import android.widget.TextView;
 import top.galqq.R;
 import top.galqq.utils.AiRateLimitedQueue;
 import top.galqq.utils.HostInfo;
+import top.galqq.utils.MessageContextManager;
+import top.galqq.utils.PromptCacheStats;
+import top.galqq.utils.ResponseCache;
+import top.galqq.utils.StructuredOutput;
 import java.util.List;
 import java.util.Locale;
 
@@ -16,6 +20,16 @@ public class AiMonitorActivity extends AppCompatTransferActivity {
     private TextView tvQps;
     private TextView tvThreads;
     private TextView tvActiveRequests;
+    private TextView tvConcurrency;
+    private TextView tvResponseCacheHitRate;
+    private TextView tvResponseCacheDetail;
+    private TextView tvPromptCacheRatio;
+    private TextView tvPromptCacheDetail;
+    private TextView tvShedCount;
+    private TextView tvShedDetail;
+    private TextView tvContextMemory;
+    private TextView tvContextMemoryDetail;
+    private TextView tvFormatStats;
     private Handler handler;
     private Runnable refreshRunnable;
     private boolean isResumed = false;
@@ -37,6 +51,16 @@ public class AiMonitorActivity extends AppCompatTransferActivity {
         tvQps = findViewById(R.id.tv_qps);
         tvThreads = findViewById(R.id.tv_threads);
         tvActiveRequests = findViewById(R.id.tv_active_requests);
+        tvConcurrency = findViewById(R.id.tv_concurrency);
+        tvResponseCacheHitRate = findViewById(R.id.tv_response_cache_hit_rate);
+        tvResponseCacheDetail = findViewById(R.id.tv_response_cache_detail);
+        tvPromptCacheRatio = findViewById(R.id.tv_prompt_cache_ratio);
+        tvPromptCacheDetail = findViewById(R.id.tv_prompt_cache_detail);
+        tvShedCount = findViewById(R.id.tv_shed_count);
+        tvShedDetail = findViewById(R.id.tv_shed_detail);
+        tvContextMemory = findViewById(R.id.tv_context_memory);
+        tvContextMemoryDetail = findViewById(R.id.tv_context_memory_detail);
+        tvFormatStats = findViewById(R.id.tv_format_stats);
         handler = new Handler(Looper.getMainLooper());
 
         refreshRunnable = new Runnable() {
@@ -76,6 +100,7 @@ public class AiMonitorActivity extends AppCompatTransferActivity {
         // Update Stats Cards
         tvQueueSize.setText(String.valueOf(queue.getQueueSize()));
         tvQps.setText(String.format(Locale.getDefault(), "%.2f", queue.getCurrentQPS()));
+        tvConcurrency.setText("并发 " + queue.getConcurrencyInfo());
         
         // Parse thread info: "Active: X, Pool: Y..."
         String threadInfo = queue.getThreadPoolInfo();
@@ -97,6 +122,32 @@ public class AiMonitorActivity extends AppCompatTransferActivity {
         }
         tvThreads.setText(activeThreads + "/" + poolSize);
 
+        // Response cache hit rate
+        long hits = ResponseCache.getHitCount();
+        long lookups = hits + ResponseCache.getMissCount();
+        tvResponseCacheHitRate.setText(String.format(Locale.getDefault(), "%.0f%%", ResponseCache.getHitRate() * 100));
+        tvResponseCacheDetail.setText(hits + "/" + lookups);
+
+        // Provider prompt cache (cached_tokens / prompt_tokens)
+        tvPromptCacheRatio.setText(String.format(Locale.getDefault(), "%.0f%%", PromptCacheStats.getCachedRatio() * 100));
+        tvPromptCacheDetail.setText(PromptCacheStats.getCachedTokens() + "/" + PromptCacheStats.getPromptTokens() + " tokens");
+
+        // Shed requests (expired / evicted / collapsed / rejected)
+        tvShedCount.setText(String.valueOf(queue.getShedCount()));
+        tvShedDetail.setText("过期 " + queue.getExpiredShedCount() + " · 淘汰 " + queue.getEvictedShedCount()
+                + "\n合并 " + queue.getCollapsedShedCount() + " · 拒绝 " + queue.getRejectedShedCount());
+
+        // Context cache memory (estimated bytes vs global budget)
+        tvContextMemory.setText(formatBytes(MessageContextManager.getMemoryBytes()));
+        tvContextMemoryDetail.setText("预算 " + formatBytes(MessageContextManager.getMemoryBudgetBytes())
+                + " · 会话 " + MessageContextManager.getConversationCount()
+                + " · 消息 " + MessageContextManager.getMessageCount()
+                + " · 已淘汰 " + MessageContextManager.getTrimmedCount());
+
+        // Format failure rate per provider (structured output vs plain parsing)
+        List<String> formatStats = StructuredOutput.getFormatStats();
+        tvFormatStats.setText(formatStats.isEmpty() ? "暂无数据" : android.text.TextUtils.join("\n", formatStats));
+
         // Update Active Requests List
         List<String> requests = queue.getActiveRequests();
         if (requests.isEmpty()) {
@@ -112,4 +163,11 @@ public class AiMonitorActivity extends AppCompatTransferActivity {
             tvActiveRequests.setText(sb.toString());
         }
     }
+
+    private static String formatBytes(long bytes) {
+        if (bytes >= 1024 * 1024) {
+            return String.format(Locale.getDefault(), "%.2f MB", bytes / (1024.0 * 1024.0));
+        }
+        return String.format(Locale.getDefault(), "%.1f KB", bytes / 1024.0);
+    }
 }
@@ -346,6 +346,186 @@ public class GalSettingsFragment extends PreferenceFragmentCompat {
             });
         }
         
+        // AI Stream (流式输出)
+        SwitchPreference aiStreamPref = findPreference(ConfigManager.KEY_AI_STREAM_ENABLED);
+        if (aiStreamPref != null) {
+            aiStreamPref.setChecked(ConfigManager.isAiStreamEnabled());
+            aiStreamPref.setOnPreferenceChangeListener((preference, newValue) -> {
+                ConfigManager.setAiStreamEnabled((Boolean) newValue);
+                return true;
+            });
+        }
+        
+        // AI Structured Output (结构化输出)
+        SwitchPreference structuredOutputPref = findPreference(ConfigManager.KEY_AI_STRUCTURED_OUTPUT);
+        if (structuredOutputPref != null) {
+            structuredOutputPref.setChecked(ConfigManager.isAiStructuredOutputEnabled());
+            structuredOutputPref.setOnPreferenceChangeListener((preference, newValue) -> {
+                ConfigManager.setAiStructuredOutputEnabled((Boolean) newValue);
+                return true;
+            });
+        }
+        
+        // AI Response Cache TTL (响应缓存有效期)
+        EditTextPreference responseCacheTtlPref = findPreference(ConfigManager.KEY_AI_RESPONSE_CACHE_TTL);
+        if (responseCacheTtlPref != null) {
+            int currentTtl = ConfigManager.getAiResponseCacheTtl();
+            responseCacheTtlPref.setText(String.valueOf(currentTtl));
+            responseCacheTtlPref.setSummary(currentTtl > 0 ? "当前: " + currentTtl + " 秒" : "当前: 已关闭");
+            responseCacheTtlPref.setOnPreferenceChangeListener((preference, newValue) -> {
+                try {
+                    int ttl = Integer.parseInt((String) newValue);
+                    if (ttl >= 0 && ttl <= 86400) {
+                        ConfigManager.setAiResponseCacheTtl(ttl);
+                        responseCacheTtlPref.setText((String) newValue);
+                        responseCacheTtlPref.setSummary(ttl > 0 ? "当前: " + ttl + " 秒" : "当前: 已关闭");
+                        return true;
+                    } else {
+                        android.widget.Toast.makeText(requireContext(), "有效期范围: 0-86400秒", android.widget.Toast.LENGTH_SHORT).show();
+                    }
+                } catch (Exception e) {
+                    android.widget.Toast.makeText(requireContext(), "请输入有效的秒数", android.widget.Toast.LENGTH_SHORT).show();
+                }
+                return false;
+            });
+        }
+        
+        // AI Batch Mode (批量模式)
+        SwitchPreference aiBatchPref = findPreference(ConfigManager.KEY_AI_BATCH_ENABLED);
+        if (aiBatchPref != null) {
+            aiBatchPref.setChecked(ConfigManager.isAiBatchEnabled());
+            aiBatchPref.setOnPreferenceChangeListener((preference, newValue) -> {
+                ConfigManager.setAiBatchEnabled((Boolean) newValue);
+                return true;
+            });
+        }
+        
+        // AI Hedge (备用端点)
+        SwitchPreference aiHedgePref = findPreference(ConfigManager.KEY_AI_HEDGE_ENABLED);
+        if (aiHedgePref != null) {
+            aiHedgePref.setChecked(ConfigManager.isAiHedgeEnabled());
+            aiHedgePref.setOnPreferenceChangeListener((preference, newValue) -> {
+                ConfigManager.setAiHedgeEnabled((Boolean) newValue);
+                return true;
+            });
+        }
+        
+        // AI Backup Endpoints (备用端点列表)
+        EditTextPreference backupEndpointsPref = findPreference(ConfigManager.KEY_AI_BACKUP_ENDPOINTS);
+        if (backupEndpointsPref != null) {
+            int currentCount = top.galqq.utils.AiEndpointManager.parseEndpoints(ConfigManager.getAiBackupEndpoints()).size();
+            backupEndpointsPref.setText(top.galqq.utils.AiEndpointManager.toEditableText(ConfigManager.getAiBackupEndpoints()));
+            backupEndpointsPref.setSummary(currentCount > 0 ? "已配置 " + currentCount + " 个备用端点" : "未配置（每行一个：URL | API Key | 模型 | 服务商）");
+            backupEndpointsPref.setOnBindEditTextListener(editText -> {
+                editText.setSingleLine(false);
+                editText.setMinLines(3);
+            });
+            backupEndpointsPref.setOnPreferenceChangeListener((preference, newValue) -> {
+                String json = top.galqq.utils.AiEndpointManager.fromEditableText((String) newValue);
+                if (json == null) {
+                    android.widget.Toast.makeText(requireContext(), "格式错误，每行应为：URL | API Key | 模型 | 服务商(可选)", android.widget.Toast.LENGTH_SHORT).show();
+                    return false;
+                }
+                ConfigManager.setAiBackupEndpoints(json);
+                int count = top.galqq.utils.AiEndpointManager.parseEndpoints(json).size();
+                backupEndpointsPref.setText((String) newValue);
+                backupEndpointsPref.setSummary(count > 0 ? "已配置 " + count + " 个备用端点" : "未配置（每行一个：URL | API Key | 模型 | 服务商）");
+                return true;
+            });
+        }
+        
+        // AI Fair Queue (会话公平调度)
+        SwitchPreference fairQueuePref = findPreference(ConfigManager.KEY_AI_FAIR_QUEUE_ENABLED);
+        if (fairQueuePref != null) {
+            fairQueuePref.setChecked(ConfigManager.isAiFairQueueEnabled());
+            fairQueuePref.setOnPreferenceChangeListener((preference, newValue) -> {
+                ConfigManager.setAiFairQueueEnabled((Boolean) newValue);
+                return true;
+            });
+        }
+        
+        // AI Private Chat Weight (私聊权重)
+        EditTextPreference privateWeightPref = findPreference(ConfigManager.KEY_AI_PRIVATE_CHAT_WEIGHT);
+        if (privateWeightPref != null) {
+            int currentWeight = ConfigManager.getAiPrivateChatWeight();
+            privateWeightPref.setText(String.valueOf(currentWeight));
+            privateWeightPref.setSummary("当前: " + currentWeight + "（群聊为1，白名单好友再翻倍）");
+            privateWeightPref.setOnPreferenceChangeListener((preference, newValue) -> {
+                try {
+                    int weight = Integer.parseInt((String) newValue);
+                    if (weight >= 1 && weight <= 10) {
+                        ConfigManager.setAiPrivateChatWeight(weight);
+                        privateWeightPref.setText((String) newValue);
+                        privateWeightPref.setSummary("当前: " + weight + "（群聊为1，白名单好友再翻倍）");
+                        return true;
+                    } else {
+                        android.widget.Toast.makeText(requireContext(), "权重范围: 1-10", android.widget.Toast.LENGTH_SHORT).show();
+                    }
+                } catch (Exception e) {
+                    android.widget.Toast.makeText(requireContext(), "请输入有效的数字", android.widget.Toast.LENGTH_SHORT).show();
+                }
+                return false;
+            });
+        }
+        
+        // AI Queue Capacity (请求队列容量)
+        EditTextPreference queueCapacityPref = findPreference(ConfigManager.KEY_AI_QUEUE_CAPACITY);
+        if (queueCapacityPref != null) {
+            int currentCapacity = ConfigManager.getAiQueueCapacity();
+            queueCapacityPref.setText(String.valueOf(currentCapacity));
+            queueCapacityPref.setSummary("当前: " + currentCapacity + " 个请求");
+            queueCapacityPref.setOnPreferenceChangeListener((preference, newValue) -> {
+                try {
+                    int capacity = Integer.parseInt((String) newValue);
+                    if (capacity >= 10 && capacity <= 500) {
+                        ConfigManager.setAiQueueCapacity(capacity);
+                        queueCapacityPref.setText((String) newValue);
+                        queueCapacityPref.setSummary("当前: " + capacity + " 个请求");
+                        return true;
+                    } else {
+                        android.widget.Toast.makeText(requireContext(), "容量范围: 10-500", android.widget.Toast.LENGTH_SHORT).show();
+                    }
+                } catch (Exception e) {
+                    android.widget.Toast.makeText(requireContext(), "请输入有效的数字", android.widget.Toast.LENGTH_SHORT).show();
+                }
+                return false;
+            });
+        }
+        
+        // AI Overload Policy (队列满时的处理策略)
+        androidx.preference.ListPreference overloadPolicyPref = findPreference(ConfigManager.KEY_AI_OVERLOAD_POLICY);
+        if (overloadPolicyPref != null) {
+            overloadPolicyPref.setValue(ConfigManager.getAiOverloadPolicy());
+            overloadPolicyPref.setOnPreferenceChangeListener((preference, newValue) -> {
+                ConfigManager.setAiOverloadPolicy((String) newValue);
+                return true;
+            });
+        }
+        
+        // AI Burst Window (连发消息合并窗口)
+        EditTextPreference burstWindowPref = findPreference(ConfigManager.KEY_AI_BURST_WINDOW);
+        if (burstWindowPref != null) {
+            int currentWindow = ConfigManager.getAiBurstWindow();
+            burstWindowPref.setText(String.valueOf(currentWindow));
+            burstWindowPref.setSummary(currentWindow > 0 ? "当前: " + currentWindow + " 毫秒" : "当前: 已关闭");
+            burstWindowPref.setOnPreferenceChangeListener((preference, newValue) -> {
+                try {
+                    int window = Integer.parseInt((String) newValue);
+                    if (window >= 0 && window <= 10000) {
+                        ConfigManager.setAiBurstWindow(window);
+                        burstWindowPref.setText((String) newValue);
+                        burstWindowPref.setSummary(window > 0 ? "当前: " + window + " 毫秒" : "当前: 已关闭");
+                        return true;
+                    } else {
+                        android.widget.Toast.makeText(requireContext(), "窗口范围: 0-10000毫秒", android.widget.Toast.LENGTH_SHORT).show();
+                    }
+                } catch (Exception e) {
+                    android.widget.Toast.makeText(requireContext(), "请输入有效的毫秒数", android.widget.Toast.LENGTH_SHORT).show();
+                }
+                return false;
+            });
+        }
+        
         // Context Enabled (启用对话上下文)
         Preference contextEnabledSwitch = findPreference(ConfigManager.KEY_CONTEXT_ENABLED);
         if (contextEnabledSwitch != null) {
@@ -375,6 +555,54 @@ public class GalSettingsFragment extends PreferenceFragmentCompat {
             });
         }
         
+        // Context Token Budget (上下文token预算)
+        EditTextPreference tokenBudgetPref = findPreference(ConfigManager.KEY_CONTEXT_TOKEN_BUDGET);
+        if (tokenBudgetPref != null) {
+            int currentBudget = ConfigManager.getContextTokenBudget();
+            tokenBudgetPref.setText(String.valueOf(currentBudget));
+            tokenBudgetPref.setSummary(currentBudget > 0 ? "当前: " + currentBudget + " tokens" : "当前: 只按条数");
+            tokenBudgetPref.setOnPreferenceChangeListener((preference, newValue) -> {
+                try {
+                    int budget = Integer.parseInt((String) newValue);
+                    if (budget >= 0 && budget <= 32000) {
+                        ConfigManager.setContextTokenBudget(budget);
+                        tokenBudgetPref.setText((String) newValue);
+                        tokenBudgetPref.setSummary(budget > 0 ? "当前: " + budget + " tokens" : "当前: 只按条数");
+                        return true;
+                    } else {
+                        android.widget.Toast.makeText(requireContext(), "预算范围: 0-32000", android.widget.Toast.LENGTH_SHORT).show();
+                    }
+                } catch (Exception e) {
+                    android.widget.Toast.makeText(requireContext(), "请输入有效的数字", android.widget.Toast.LENGTH_SHORT).show();
+                }
+                return false;
+            });
+        }
+        
+        // Context Backfill (回填会话历史)
+        Preference contextBackfillSwitch = findPreference(ConfigManager.KEY_CONTEXT_BACKFILL_ENABLED);
+        if (contextBackfillSwitch != null) {
+            if (contextBackfillSwitch instanceof androidx.preference.TwoStatePreference) {
+                ((androidx.preference.TwoStatePreference) contextBackfillSwitch).setChecked(ConfigManager.isContextBackfillEnabled());
+            }
+            contextBackfillSwitch.setOnPreferenceChangeListener((preference, newValue) -> {
+                ConfigManager.setContextBackfillEnabled((Boolean) newValue);
+                return true;
+            });
+        }
+        
+        // Context Summary (较早消息摘要)
+        Preference contextSummarySwitch = findPreference(ConfigManager.KEY_CONTEXT_SUMMARY_ENABLED);
+        if (contextSummarySwitch != null) {
+            if (contextSummarySwitch instanceof androidx.preference.TwoStatePreference) {
+                ((androidx.preference.TwoStatePreference) contextSummarySwitch).setChecked(ConfigManager.isContextSummaryEnabled());
+            }
+            contextSummarySwitch.setOnPreferenceChangeListener((preference, newValue) -> {
+                ConfigManager.setContextSummaryEnabled((Boolean) newValue);
+                return true;
+            });
+        }
+        
         // History Threshold (历史消息阈值)
         EditTextPreference historyThresholdPref = findPreference(ConfigManager.KEY_HISTORY_THRESHOLD);
         if (historyThresholdPref != null) {
@@ -0,0 +1,51 @@
+package top.galqq.utils;
+
+import java.util.List;
+
+/**
+ * AI请求取消令牌
+ *
+ * 与一次视图绑定（RecyclerView的ViewHolder + msgId）关联：
+ * 视图被复用到其他消息时调用 {@link #cancel()}，
+ * 队列会移除仍在排队的请求、取消进行中的OkHttp请求，回调方据此不再操作过期的视图。
+ */
+public class AiCancellationToken {
+
+    private volatile boolean cancelled = false;
+    private final List<Runnable> listeners = new java.util.concurrent.CopyOnWriteArrayList<>();
+
+    /**
+     * 取消（重复调用无效）
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+        }
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (Throwable ignored) {}
+        }
+        listeners.clear();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 注册取消监听；如果已取消则立即执行
+     */
+    public void onCancel(Runnable listener) {
+        synchronized (this) {
+            if (!cancelled) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+}
@@ -0,0 +1,309 @@
+package top.galqq.utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.robv.android.xposed.XposedBridge;
+import top.galqq.config.ConfigManager;
+
+/**
+ * AI服务端点管理
+ *
+ * 功能：
+ * 1. 端点列表 = 主端点（API设置中的URL/Key/模型）+ 按顺序配置的备用端点
+ * 2. 记录每个端点最近的响应延迟，计算 p95 作为对冲请求的触发时间
+ * 3. 每个端点独立的熔断器：连续失败 FAILURE_THRESHOLD 次后熔断，冷却后放行一次试探请求，
+ *    成功则恢复，失败则冷却时间翻倍（最长 MAX_OPEN_MS）
+ */
+public class AiEndpointManager {
+
+    private static final String TAG = "GalQQ.AiEndpointManager";
+
+    private static void debugLog(String message) {
+        try {
+            if (ConfigManager.isVerboseLogEnabled()) {
+                XposedBridge.log(message);
+            }
+        } catch (Throwable ignored) {}
+    }
+
+    // 延迟采样窗口大小
+    private static final int LATENCY_WINDOW = 50;
+    // 计算p95所需的最少样本数（不足时使用默认对冲延迟）
+    private static final int MIN_SAMPLES = 10;
+    // 对冲延迟范围
+    private static final long DEFAULT_HEDGE_DELAY_MS = 4000;
+    private static final long MIN_HEDGE_DELAY_MS = 800;
+
+    // 熔断参数
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long INITIAL_OPEN_MS = 30_000;
+    private static final long MAX_OPEN_MS = 5 * 60_000;
+    // 试探名额的有效期（放行后未真正发起请求时，超时后重新放行）
+    private static final long PROBE_TIMEOUT_MS = 60_000;
+
+    /**
+     * 一个AI服务端点
+     */
+    public static class Endpoint {
+        public final String provider;
+        public final String url;
+        public final String apiKey;
+        public final String model;
+
+        Endpoint(String provider, String url, String apiKey, String model) {
+            this.provider = provider;
+            this.url = url;
+            this.apiKey = apiKey;
+            this.model = model;
+        }
+
+        String id() {
+            return url + "|" + model;
+        }
+
+        @Override
+        public String toString() {
+            return provider + "/" + model;
+        }
+    }
+
+    /**
+     * 端点运行状态（延迟采样 + 熔断器）
+     */
+    private static class EndpointState {
+        final long[] latencies = new long[LATENCY_WINDOW];
+        int sampleCount;
+        int nextSample;
+        int consecutiveFailures;
+        long openUntil;          // 熔断结束时间，0为未熔断
+        long openDuration = INITIAL_OPEN_MS;
+        long probeStartedAt;     // 半开状态下放行试探请求的时间，0为未放行
+    }
+
+    private static final Map<String, EndpointState> states = new HashMap<>();
+
+    // 备用端点解析缓存
+    private static String sBackupSource;
+    private static List<Endpoint> sBackups = new ArrayList<>();
+
+    /**
+     * 按优先顺序返回当前可用的端点（主端点在前）
+     * 熔断中的端点被跳过；全部熔断时返回完整列表，避免完全无法请求
+     *
+     * @param primaryUrl 已规范化的主端点URL
+     */
+    public static synchronized List<Endpoint> getAvailableEndpoints(String primaryUrl) {
+        List<Endpoint> all = new ArrayList<>();
+        all.add(new Endpoint(ConfigManager.getAiProvider(), primaryUrl,
+                ConfigManager.getApiKey(), ConfigManager.getAiModel()));
+        if (ConfigManager.isAiHedgeEnabled()) {
+            all.addAll(getBackupEndpoints());
+        }
+        if (all.size() == 1) {
+            return all;
+        }
+
+        long now = System.currentTimeMillis();
+        List<Endpoint> available = new ArrayList<>();
+        for (Endpoint endpoint : all) {
+            EndpointState state = states.get(endpoint.id());
+            if (state == null || state.openUntil == 0) {
+                available.add(endpoint);
+            } else if (now >= state.openUntil
+                    && (state.probeStartedAt == 0 || now - state.probeStartedAt > PROBE_TIMEOUT_MS)) {
+                // 半开：放行一次试探请求
+                state.probeStartedAt = now;
+                available.add(endpoint);
+            }
+        }
+        return available.isEmpty() ? all : available;
+    }
+
+    /**
+     * 对冲请求的触发延迟：该端点最近延迟的 p95
+     */
+    public static synchronized long getHedgeDelay(Endpoint endpoint) {
+        EndpointState state = states.get(endpoint.id());
+        if (state == null || state.sampleCount < MIN_SAMPLES) {
+            return DEFAULT_HEDGE_DELAY_MS;
+        }
+        long[] sorted = Arrays.copyOf(state.latencies, state.sampleCount);
+        Arrays.sort(sorted);
+        long p95 = sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.95) - 1)];
+        return Math.max(MIN_HEDGE_DELAY_MS, p95);
+    }
+
+    /**
+     * 记录成功响应（latencyMs 为收到响应头的耗时）
+     */
+    public static synchronized void recordSuccess(Endpoint endpoint, long latencyMs) {
+        EndpointState state = getState(endpoint);
+        state.latencies[state.nextSample] = latencyMs;
+        state.nextSample = (state.nextSample + 1) % LATENCY_WINDOW;
+        state.sampleCount = Math.min(LATENCY_WINDOW, state.sampleCount + 1);
+        if (state.openUntil != 0) {
+            debugLog(TAG + ": 端点恢复 " + endpoint);
+        }
+        state.consecutiveFailures = 0;
+        state.openUntil = 0;
+        state.openDuration = INITIAL_OPEN_MS;
+        state.probeStartedAt = 0;
+    }
+
+    /**
+     * 记录失败（网络错误、超时、5xx）
+     */
+    public static synchronized void recordFailure(Endpoint endpoint) {
+        EndpointState state = getState(endpoint);
+        state.consecutiveFailures++;
+        if (state.probeStartedAt != 0) {
+            // 试探失败，重新熔断并延长冷却时间
+            state.openDuration = Math.min(MAX_OPEN_MS, state.openDuration * 2);
+            state.openUntil = System.currentTimeMillis() + state.openDuration;
+            state.probeStartedAt = 0;
+            debugLog(TAG + ": 端点试探失败，继续熔断 " + (state.openDuration / 1000) + "s: " + endpoint);
+        } else if (state.openUntil == 0 && state.consecutiveFailures >= FAILURE_THRESHOLD) {
+            state.openUntil = System.currentTimeMillis() + state.openDuration;
+            debugLog(TAG + ": 端点连续失败 " + state.consecutiveFailures + " 次，熔断 "
+                    + (state.openDuration / 1000) + "s: " + endpoint);
+        }
+    }
+
+    /**
+     * 客户端错误（4xx，含429）：端点可达，问题在请求本身或限流，不计入失败，只释放半开状态的试探名额
+     */
+    public static void recordClientError(Endpoint endpoint) {
+        recordCancelled(endpoint);
+    }
+
+    /**
+     * 请求被取消（未得出结果），释放半开状态的试探名额
+     */
+    public static synchronized void recordCancelled(Endpoint endpoint) {
+        EndpointState state = states.get(endpoint.id());
+        if (state != null) {
+            state.probeStartedAt = 0;
+        }
+    }
+
+    /**
+     * 解析备用端点配置
+     * 格式：JSON数组 [{"provider": "...", "url": "...", "key": "...", "model": "..."}]
+     */
+    public static List<Endpoint> parseEndpoints(String json) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        if (json == null || json.trim().isEmpty()) {
+            return endpoints;
+        }
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject obj = array.optJSONObject(i);
+                if (obj == null) {
+                    continue;
+                }
+                String url = obj.optString("url", "").trim();
+                String key = obj.optString("key", "").trim();
+                String model = obj.optString("model", "").trim();
+                if (url.isEmpty() || key.isEmpty() || model.isEmpty()) {
+                    continue;
+                }
+                String provider = obj.optString("provider", "").trim();
+                endpoints.add(new Endpoint(provider.isEmpty() ? ConfigManager.PROVIDER_CUSTOM : provider,
+                        HttpAiClient.normalizeApiUrl(url), key, model));
+            }
+        } catch (Exception e) {
+            debugLog(TAG + ": 备用端点配置解析失败: " + e.getMessage());
+        }
+        return endpoints;
+    }
+
+    /**
+     * 备用端点配置转为可编辑文本：每行 "URL | API Key | 模型 | 服务商"
+     */
+    public static String toEditableText(String json) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            JSONArray array = new JSONArray(json == null || json.trim().isEmpty() ? "[]" : json);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject obj = array.optJSONObject(i);
+                if (obj == null) {
+                    continue;
+                }
+                if (sb.length() > 0) {
+                    sb.append("\n");
+                }
+                sb.append(obj.optString("url")).append(" | ")
+                  .append(obj.optString("key")).append(" | ")
+                  .append(obj.optString("model"));
+                String provider = obj.optString("provider", "");
+                if (!provider.isEmpty()) {
+                    sb.append(" | ").append(provider);
+                }
+            }
+        } catch (Exception ignored) {
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 解析可编辑文本为备用端点配置JSON
+     * @return JSON字符串；有格式错误的行时返回 null
+     */
+    public static String fromEditableText(String text) {
+        JSONArray array = new JSONArray();
+        if (text == null) {
+            return array.toString();
+        }
+        try {
+            for (String line : text.split("\n")) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.split("\\|");
+                if (parts.length < 3 || parts[0].trim().isEmpty()
+                        || parts[1].trim().isEmpty() || parts[2].trim().isEmpty()) {
+                    return null;
+                }
+                JSONObject obj = new JSONObject();
+                obj.put("url", parts[0].trim());
+                obj.put("key", parts[1].trim());
+                obj.put("model", parts[2].trim());
+                if (parts.length > 3 && !parts[3].trim().isEmpty()) {
+                    obj.put("provider", parts[3].trim());
+                }
+                array.put(obj);
+            }
+        } catch (Exception e) {
+            return null;
+        }
+        return array.toString();
+    }
+
+    // ========== 内部方法 ==========
+
+    private static List<Endpoint> getBackupEndpoints() {
+        String source = ConfigManager.getAiBackupEndpoints();
+        if (!source.equals(sBackupSource)) {
+            sBackupSource = source;
+            sBackups = parseEndpoints(source);
+        }
+        return sBackups;
+    }
+
+    private static EndpointState getState(Endpoint endpoint) {
+        EndpointState state = states.get(endpoint.id());
+        if (state == null) {
+            state = new EndpointState();
+            states.put(endpoint.id(), state);
+        }
+        return state;
+    }
+}
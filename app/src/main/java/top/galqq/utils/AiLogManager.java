@@ -85,12 +85,24 @@ public class AiLogManager {
      */
     public static void logAiSuccess(Context context, String provider, String model, 
                                      String userMessage, int optionsCount, String fullResponse) {
+        logAiSuccess(context, provider, model, userMessage, optionsCount, fullResponse, null);
+    }
+    
+    /**
+     * 添加AI请求成功日志（带完整响应和token用量）
+     */
+    public static void logAiSuccess(Context context, String provider, String model, 
+                                     String userMessage, int optionsCount, String fullResponse,
+                                     String tokenUsage) {
         StringBuilder sb = new StringBuilder();
         sb.append("AI请求成功\n");
         sb.append("Provider: ").append(provider).append("\n");
         sb.append("Model: ").append(model).append("\n");
         sb.append("Message: ").append(userMessage.substring(0, Math.min(50, userMessage.length()))).append("...\n");
         sb.append("生成选项数: ").append(optionsCount);
+        if (tokenUsage != null) {
+            sb.append("\n").append(tokenUsage);
+        }
         
         // 如果启用了详细日志且有完整响应，则记录
         if (fullResponse != null && !fullResponse.isEmpty()) {
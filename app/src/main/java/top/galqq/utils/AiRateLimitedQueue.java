@@ -4,7 +4,6 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.SystemClock;
 import android.text.TextUtils;
 
 import org.json.JSONArray;
@@ -14,7 +13,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -27,10 +25,14 @@ import top.galqq.hook.MessageInterceptor;
  * 
  * 功能：
  * 1. 动态QPS限流（初始3 req/s，429时降速，成功后恢复）
- * 2. 优先级队列（可见消息优先处理）
- * 3. 线程池异步处理
- * 4. 失败重试 + 指数退避
- * 5. 持久化队列（进程重启恢复）
+ * 2. 优先级队列（可见消息优先处理，支持滚动时动态调整优先级）
+ * 3. 全异步处理（固定线程池 + 回调，不阻塞等待HTTP结果）
+ * 4. 失败重试 + 指数退避（定时器调度）
+ * 5. 持久化队列（追加写日志 + 定期压缩，进程重启恢复）
+ * 6. 批量模式（同一会话的多条排队消息合并为一次请求）
+ * 7. 会话间加权公平调度（同优先级下活跃群聊不会饿死私聊）
+ * 8. 截止时间调度（按消息时间和可见性计算截止时间，过期请求直接丢弃，不再消耗token）
+ * 9. 有界队列 + 过载策略（队列满时按配置淘汰旧请求或拒绝新请求，内存和排队延迟有上限）
  */
 public class AiRateLimitedQueue {
     
@@ -47,18 +49,54 @@ public class AiRateLimitedQueue {
     // 单例
     private static volatile AiRateLimitedQueue instance;
     
-    // 优先级队列（自动排序）
-    private final PriorityBlockingQueue<PrioritizedRequest> requestQueue;
+    // 优先级队列（索引堆，支持按msgId调整优先级）
+    private final RequestHeap requestQueue;
     
-    // 动态限流器
+    // 动态限流器（每秒发起的请求数上限）
     private final DynamicRateLimiter rateLimiter;
     
+    // 自适应并发限制器（同时进行中的请求数上限）
+    private final ConcurrencyLimiter concurrencyLimiter;
+    
     // 持久化管理器
     private final RequestPersistence persistence;
     
-    // 异步执行线程池
+    // 异步执行线程池（固定大小，只用于构建请求，HTTP等待不占用线程）
     private final ExecutorService executorService;
     
+    // 定时器（重试退避、请求超时）
+    private final java.util.concurrent.ScheduledExecutorService scheduler;
+    
+    // 线程池大小
+    private static final int WORKER_POOL_SIZE = 2;
+    
+    // 重试参数
+    private static final int MAX_RATE_LIMIT_RETRIES = 3;
+    private static final int MAX_FORMAT_ERROR_RETRIES = 5;
+    private static final long[] BACKOFF_MS = {1000, 2000, 4000};  // 1s, 2s, 4s
+    private static final long FORMAT_RETRY_DELAY_MS = 500;
+    private static final long REQUEST_TIMEOUT_MS = 60000;
+    
+    // 批量模式单次最多合并的消息数
+    private static final int BATCH_MAX_SIZE = 5;
+    
+    // 截止时间参数：入队后至少保留的时间、可见消息的宽限时间、滚出屏幕后的保留时间
+    private static final long MIN_QUEUE_TTL_MS = 60_000;
+    private static final long VISIBLE_GRACE_MS = 60_000;
+    private static final long HIDDEN_TTL_MS = 120_000;
+    
+    // 上下文不足时推迟请求、等待进行中的历史回填的最长时间
+    private static final long BACKFILL_WAIT_MS = 1500;
+    
+    // 被丢弃的请求数：超过截止时间、队列满时被淘汰、被同会话的新请求合并、队列满时被拒绝
+    private final java.util.concurrent.atomic.AtomicLong expiredShedCount = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong evictedShedCount = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong collapsedShedCount = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong rejectedShedCount = new java.util.concurrent.atomic.AtomicLong();
+    
+    // 在途请求（排队中或执行中），key = msgId + 提示词标识，用于合并重复提交
+    private final java.util.Map<String, PrioritizedRequest> inFlightRequests = new java.util.HashMap<>();
+    
     // 当前正在处理的请求描述（用于监控）
     private final List<String> activeRequests = java.util.Collections.synchronizedList(new ArrayList<>());
     
@@ -69,18 +107,25 @@ public class AiRateLimitedQueue {
     private final Handler mainHandler;
     
     private AiRateLimitedQueue(Context context) {
-        // 初始化优先级队列（容量100）
-        this.requestQueue = new PriorityBlockingQueue<>(100);
+        // 初始化优先级队列（容量由配置决定，入队时检查）
+        this.requestQueue = new RequestHeap(100);
         
         // 初始化动态限流器（使用配置的QPS，默认3.0）
         float initialQps = ConfigManager.getAiQps();
         this.rateLimiter = new DynamicRateLimiter(initialQps, 0.5);
+        this.concurrencyLimiter = new ConcurrencyLimiter();
         
         // 初始化持久化管理器
         this.persistence = new RequestPersistence(context);
         
-        // 初始化线程池（用于并发执行请求，避免阻塞队列）
-        this.executorService = Executors.newCachedThreadPool();
+        // 初始化线程池（固定大小，请求全异步执行，线程数不随在途请求增长）
+        java.util.concurrent.ThreadPoolExecutor pool = new java.util.concurrent.ThreadPoolExecutor(
+            WORKER_POOL_SIZE, WORKER_POOL_SIZE, 30, TimeUnit.SECONDS,
+            new java.util.concurrent.LinkedBlockingQueue<>(),
+            r -> new Thread(r, "AiQueueExecutor"));
+        pool.allowCoreThreadTimeOut(true);
+        this.executorService = pool;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "AiQueueTimer"));
         
         this.mainHandler = new Handler(Looper.getMainLooper());
         
@@ -164,23 +209,144 @@ public class AiRateLimitedQueue {
                               List<ImageExtractor.ImageElement> imageElements,
                               String conversationId,
                               HttpAiClient.AiCallback callback) {
-        PrioritizedRequest request = new PrioritizedRequest(
-            context, msgContent, msgId, priority, contextMessages, 
-            currentSenderName, currentTimestamp, senderQQ, customSystemPrompt, 
-            imageElements, conversationId, callback, System.currentTimeMillis()
-        );
+        submitRequest(context, msgContent, msgId, priority, contextMessages,
+                     currentSenderName, currentTimestamp, senderQQ, customSystemPrompt,
+                     imageElements, conversationId, null, callback);
+    }
+    
+    /**
+     * 提交AI请求（带取消令牌）
+     * 
+     * @param cancelToken 取消令牌（可为null），取消后该回调不再收到结果；
+     *                    若请求已无其他等待者，则从队列移除或取消进行中的HTTP请求
+     */
+    public void submitRequest(Context context, String msgContent, String msgId, Priority priority, 
+                              List<top.galqq.utils.MessageContextManager.ChatMessage> contextMessages,
+                              String currentSenderName, long currentTimestamp,
+                              String senderQQ, String customSystemPrompt,
+                              List<ImageExtractor.ImageElement> imageElements,
+                              String conversationId,
+                              AiCancellationToken cancelToken,
+                              HttpAiClient.AiCallback callback) {
+        if (cancelToken != null && cancelToken.isCancelled()) {
+            return;
+        }
+        
+        PrioritizedRequest request;
+        synchronized (inFlightRequests) {
+            // 单飞合并：同一消息+同一提示词已有在途请求时，直接挂到该请求上等待结果
+            String dedupKey = PrioritizedRequest.buildDedupKey(msgId, customSystemPrompt);
+            PrioritizedRequest existing = dedupKey != null ? inFlightRequests.get(dedupKey) : null;
+            if (existing != null && !existing.cancelled) {
+                existing.callback.attach(callback);
+                debugLog(TAG + ": 合并重复请求 msgId=" + msgId + "，等待者=" + existing.callback.size());
+                // 新的提交者可见时，提升仍在排队的请求
+                if (priority == Priority.HIGH && existing.priority != Priority.HIGH
+                        && requestQueue.updatePriority(existing, Priority.HIGH)) {
+                    persistence.appendPriority(existing, Priority.HIGH);
+                }
+                if (cancelToken != null) {
+                    cancelToken.onCancel(() -> cancelCaller(existing, callback));
+                }
+                return;
+            }
+            
+            request = new PrioritizedRequest(
+                context, msgContent, msgId, priority, contextMessages, 
+                currentSenderName, currentTimestamp, senderQQ, customSystemPrompt, 
+                imageElements, conversationId, callback, System.currentTimeMillis()
+            );
+            if (request.dedupKey != null) {
+                inFlightRequests.put(request.dedupKey, request);
+            }
+        }
         
-        boolean added = requestQueue.offer(request);
+        if (cancelToken != null) {
+            final PrioritizedRequest submitted = request;
+            cancelToken.onCancel(() -> cancelCaller(submitted, callback));
+        }
+        
+        List<Eviction> evicted = new ArrayList<>(1);
+        boolean added = requestQueue.offer(request, ConfigManager.getAiQueueCapacity(),
+                ConfigManager.getAiOverloadPolicy(), evicted);
+        shedEvicted(evicted);
         if (added) {
             // XposedBridge.log(TAG + ": 请求入队 [" + priority + "] 队列大小=" + requestQueue.size());
-            // 只有HIGH优先级且有msgId的任务才持久化，避免IO过于频繁
-            if (priority == Priority.HIGH && msgId != null) {
-                persistence.saveQueueAsync(requestQueue);
+            persistence.appendEnqueue(request);
+        } else {
+            long rejected = rejectedShedCount.incrementAndGet();
+            debugLog(TAG + ": ⚠️ 队列已满，拒绝新请求 [" + priority + "]，累计拒绝 " + rejected);
+            removeInFlight(request);
+            request.callback.onFailure(new Exception("队列已满"));
+        }
+    }
+    
+    /**
+     * 处理入队时被过载策略淘汰的请求（按选中该请求的策略分别计为合并或淘汰）
+     */
+    private void shedEvicted(List<Eviction> evicted) {
+        for (Eviction eviction : evicted) {
+            shed(eviction.victim, null, eviction.collapsed ? collapsedShedCount : evictedShedCount,
+                    eviction.collapsed ? "被同会话的新请求合并" : "队列已满被淘汰");
+        }
+    }
+    
+    /**
+     * 调整排队中请求的优先级（消息滚入/滚出屏幕时由视图回调调用）
+     * 已出队（执行中）的请求不受影响
+     * 
+     * @return 实际调整的请求数
+     */
+    public int updatePriority(String msgId, Priority priority) {
+        if (msgId == null || priority == null) {
+            return 0;
+        }
+        int changed = requestQueue.updatePriority(msgId, priority);
+        if (changed > 0) {
+            debugLog(TAG + ": 调整优先级 msgId=" + msgId + " -> " + priority);
+            // 重启后只恢复HIGH请求，优先级变化需要记入日志
+            persistence.appendPriority(msgId, priority);
+        }
+        return changed;
+    }
+    
+    /**
+     * 取消某个提交者：移除其回调；若请求已无等待者，则从队列移除（排队中）或取消HTTP请求（进行中）
+     */
+    private void cancelCaller(PrioritizedRequest request, HttpAiClient.AiCallback callback) {
+        synchronized (inFlightRequests) {
+            if (request.callback.detach(callback) > 0) {
+                return; // 仍有其他视图在等待结果
             }
+            request.cancelled = true;
+            removeInFlight(request);
+        }
+        
+        if (requestQueue.remove(request)) {
+            debugLog(TAG + ": 视图已复用，移除排队中的请求 msgId=" + request.msgId);
+            persistence.appendComplete(request);
         } else {
-            debugLog(TAG + ": ⚠️ 队列已满，丢弃请求");
-            callback.onFailure(new Exception("队列已满"));
+            List<PrioritizedRequest> batch = request.batchMembers;
+            if (batch != null && !allCancelled(batch)) {
+                // 批量请求由多条消息共用，其他成员仍在等待时不取消
+                return;
+            }
+            for (okhttp3.Call call : request.activeCalls) {
+                if (!call.isCanceled()) {
+                    debugLog(TAG + ": 视图已复用，取消进行中的请求 msgId=" + request.msgId);
+                    call.cancel();
+                }
+            }
+        }
+    }
+    
+    private static boolean allCancelled(List<PrioritizedRequest> requests) {
+        for (PrioritizedRequest request : requests) {
+            if (!request.cancelled) {
+                return false;
+            }
         }
+        return true;
     }
     
     /**
@@ -190,14 +356,33 @@ public class AiRateLimitedQueue {
         List<PrioritizedRequest> restored = persistence.loadQueue(context);
         if (!restored.isEmpty()) {
             debugLog(TAG + ": 恢复了 " + restored.size() + " 个持久化请求");
-            for (PrioritizedRequest req : restored) {
-                requestQueue.offer(req);
+            synchronized (inFlightRequests) {
+                for (PrioritizedRequest req : restored) {
+                    if (req.dedupKey != null) {
+                        if (inFlightRequests.containsKey(req.dedupKey)) {
+                            continue;
+                        }
+                        inFlightRequests.put(req.dedupKey, req);
+                    }
+                    List<Eviction> evicted = new ArrayList<>(1);
+                    boolean added = requestQueue.offer(req, ConfigManager.getAiQueueCapacity(),
+                            ConfigManager.getAiOverloadPolicy(), evicted);
+                    shedEvicted(evicted);
+                    if (added) {
+                        // 加载时日志已清空，恢复的请求重新记入日志
+                        persistence.appendEnqueue(req);
+                    } else {
+                        rejectedShedCount.incrementAndGet();
+                        inFlightRequests.remove(req.dedupKey);
+                    }
+                }
             }
         }
     }
     
     /**
      * 启动工作线程（持续从队列取任务）
+     * 工作线程只负责出队和限流，请求本身异步执行，不会阻塞在HTTP调用上
      */
     private void startWorker() {
         workerThread = new Thread(() -> {
@@ -205,31 +390,57 @@ public class AiRateLimitedQueue {
             
             while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    // 阻塞获取下一个请求
-                    PrioritizedRequest request = requestQueue.take();
-                    
-                    // 限流：等待直到可以发送
-                    rateLimiter.acquire();
-                    
-                    // 异步提交到线程池执行，不阻塞工作线程
-                    executorService.submit(() -> {
-                        String reqInfo = "[" + request.priority + "] " + 
-                                       (request.msgContent.length() > 10 ? request.msgContent.substring(0, 10) + "..." : request.msgContent);
-                        activeRequests.add(reqInfo);
-                        try {
-                            // 处理请求（带重试）
-                            processRequest(request);
-                            
-                            // 处理完后更新持久化（移除已完成的）
-                            if (request.priority == Priority.HIGH && request.msgId != null) {
-                                persistence.saveQueueAsync(requestQueue);
+                    // 阻塞获取下一个请求并占用并发名额
+                    PrioritizedRequest request = takeWithSlot(requestQueue, concurrencyLimiter);
+                    boolean dispatched = false;
+                    try {
+                        if (request.cancelled) {
+                            // 等待名额期间被取消时请求不在队列中，取消时未记入日志
+                            persistence.appendComplete(request);
+                            continue;
+                        }
+                        if (request.isExpired(System.currentTimeMillis())) {
+                            shed(request, null, expiredShedCount, "已过截止时间");
+                            continue;
+                        }
+                        request.resolveContext();
+                        if (deferForBackfill(request)) {
+                            // 回填完成后重新入队，名额在finally中释放
+                            continue;
+                        }
+                        
+                        // 批量模式：取出同一会话、同一提示词的其他排队请求一起发送
+                        List<PrioritizedRequest> batch = null;
+                        if (request.isBatchable() && ConfigManager.isAiBatchEnabled()) {
+                            batch = requestQueue.drainBatchable(request, BATCH_MAX_SIZE - 1);
+                            long now = System.currentTimeMillis();
+                            java.util.Iterator<PrioritizedRequest> it = batch.iterator();
+                            while (it.hasNext()) {
+                                PrioritizedRequest item = it.next();
+                                if (item.isExpired(now)) {
+                                    it.remove();
+                                    shed(item, null, expiredShedCount, "已过截止时间");
+                                }
                             }
-                        } catch (Throwable t) {
-                            debugLog(TAG + ": 异步任务执行异常: " + t.getMessage());
-                        } finally {
-                            activeRequests.remove(reqInfo);
                         }
-                    });
+                        
+                        // 限流：等待直到可以发送
+                        rateLimiter.acquire();
+                        
+                        // 异步处理，不阻塞工作线程（名额在请求最终完成时释放）
+                        if (batch != null && !batch.isEmpty()) {
+                            batch.add(0, request);
+                            processBatch(batch);
+                        } else {
+                            request.holdsSlot = true;
+                            processRequest(request);
+                        }
+                        dispatched = true;
+                    } finally {
+                        if (!dispatched) {
+                            concurrencyLimiter.release();
+                        }
+                    }
                     
                 } catch (InterruptedException e) {
                     debugLog(TAG + ": 工作线程被中断");
@@ -244,173 +455,503 @@ public class AiRateLimitedQueue {
     }
     
     /**
-     * 处理单个请求（带重试）
+     * 取出下一个请求并占用并发名额
+     * 先等到有请求再等名额，队列空闲时不占用名额（监控显示和并发上限的增长判断都依赖进行中的请求数）；
+     * 等待名额期间若有更高优先级的请求入队，放回当前请求改取优先级更高的
+     */
+    static PrioritizedRequest takeWithSlot(RequestHeap queue, ConcurrencyLimiter limiter) throws InterruptedException {
+        PrioritizedRequest request = queue.take();
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            queue.offer(request);
+            throw e;
+        }
+        return queue.exchangeIfOutranked(request);
+    }
+    
+    /**
+     * 处理单个请求（带重试，全异步）
      * 支持两种重试：
-     * 1. 429速率限制：最多重试3次，指数退避
+     * 1. 429速率限制：最多重试3次，指数退避（由定时器调度，不占用线程）
      * 2. 格式错误：最多重试5次，静默重试
      */
     private void processRequest(PrioritizedRequest request) {
-        final int MAX_RATE_LIMIT_RETRIES = 3;
-        final int MAX_FORMAT_ERROR_RETRIES = 5;
-        final int[] BACKOFF_MS = {1000, 2000, 4000};  // 1s, 2s, 4s
+        String reqInfo = "[" + request.priority + "] " + 
+                       (request.msgContent.length() > 10 ? request.msgContent.substring(0, 10) + "..." : request.msgContent);
+        activeRequests.add(reqInfo);
+        executeAttempt(request, reqInfo, 0, 0);
+    }
+    
+    /**
+     * 批量处理同一会话的多条请求：一次请求生成所有消息的选项
+     * 未返回选项的消息（或整批失败时的所有消息）退回队列按单条处理
+     */
+    private void processBatch(List<PrioritizedRequest> batch) {
+        // 按消息时间排序，保证AI看到的顺序与聊天一致
+        java.util.Collections.sort(batch, (a, b) -> Long.compare(a.currentTimestamp, b.currentTimestamp));
+        
+        final List<String> infos = new ArrayList<>(batch.size());
+        final List<HttpAiClient.BatchItem> items = new ArrayList<>(batch.size());
+        final java.util.Set<String> batchMsgIds = new java.util.HashSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            PrioritizedRequest request = batch.get(i);
+            request.batchMembers = batch;
+            request.resolveContext();
+            String reqInfo = "[" + request.priority + "][批量" + (i + 1) + "/" + batch.size() + "] " + 
+                           (request.msgContent.length() > 10 ? request.msgContent.substring(0, 10) + "..." : request.msgContent);
+            infos.add(reqInfo);
+            activeRequests.add(reqInfo);
+            items.add(new HttpAiClient.BatchItem("m" + (i + 1), request.msgContent,
+                    request.currentSenderName, request.currentTimestamp, request.senderQQ));
+            batchMsgIds.add(request.msgId);
+        }
+        
+        // 上下文取最早一条消息之前的历史，并排除本批次中的消息
+        final PrioritizedRequest first = batch.get(0);
+        final List<top.galqq.utils.MessageContextManager.ChatMessage> contextMessages = new ArrayList<>();
+        if (first.contextMessages != null) {
+            for (top.galqq.utils.MessageContextManager.ChatMessage msg : first.contextMessages) {
+                if (msg.msgId == null || !batchMsgIds.contains(msg.msgId)) {
+                    contextMessages.add(msg);
+                }
+            }
+        }
         
-        int rateLimitAttempt = 0;
-        int formatErrorAttempt = 0;
-        Exception lastException = null;
+        debugLog(TAG + ": 批量请求 conversation=" + first.conversationId + "，消息数=" + batch.size());
         
-        while (rateLimitAttempt <= MAX_RATE_LIMIT_RETRIES && formatErrorAttempt < MAX_FORMAT_ERROR_RETRIES) {
-            try {
-                // 调用AI接口（同步）
-                final List<String> options = fetchOptionsSync(request);
-                
-                // 成功：通知限流器
+        final long startTime = System.currentTimeMillis();
+        final java.util.concurrent.atomic.AtomicBoolean completed = new java.util.concurrent.atomic.AtomicBoolean(false);
+        final List<okhttp3.Call> batchCalls = new java.util.concurrent.CopyOnWriteArrayList<>();
+        final java.util.concurrent.ScheduledFuture<?> timeoutFuture = scheduler.schedule(() -> {
+            if (completed.compareAndSet(false, true)) {
+                // 超时后不再等待结果，取消仍在进行的HTTP请求
+                for (okhttp3.Call call : batchCalls) {
+                    call.cancel();
+                }
+                concurrencyLimiter.onOverload();
+                concurrencyLimiter.release();
+                debugLog(TAG + ": 批量请求超时，退回单条处理");
+                for (int i = 0; i < batch.size(); i++) {
+                    requeueSingle(batch.get(i), infos.get(i));
+                }
+            }
+        }, REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        
+        HttpAiClient.BatchCallback batchCallback = new HttpAiClient.BatchCallback() {
+            @Override
+            public void onCallStarted(okhttp3.Call call) {
+                // 登记到每个成员，所有成员都取消时（见 cancelCaller）取消该请求
+                batchCalls.add(call);
+                for (PrioritizedRequest request : batch) {
+                    request.activeCalls.add(call);
+                }
+                if (completed.get() || allCancelled(batch)) {
+                    call.cancel();
+                }
+            }
+            
+            @Override
+            public void onSuccess(java.util.Map<String, List<String>> optionsByTag) {
+                if (!completed.compareAndSet(false, true)) {
+                    return;
+                }
+                timeoutFuture.cancel(false);
                 rateLimiter.onSuccess();
+                concurrencyLimiter.onSample(System.currentTimeMillis() - startTime);
+                concurrencyLimiter.release();
                 
-                // 回调成功（切换到UI线程）
-                mainHandler.post(() -> request.callback.onSuccess(options));
-                
+                for (int i = 0; i < batch.size(); i++) {
+                    PrioritizedRequest request = batch.get(i);
+                    String reqInfo = infos.get(i);
+                    List<String> options = optionsByTag.get(items.get(i).tag);
+                    if (options == null) {
+                        requeueSingle(request, reqInfo);
+                        continue;
+                    }
+                    finishRequest(request, reqInfo);
+                    if (request.cancelled) {
+                        MessageInterceptor.cacheOptions(request.msgId, options);
+                    } else {
+                        mainHandler.post(() -> request.callback.onSuccess(options));
+                    }
+                }
+            }
+            
+            @Override
+            public void onFailure(Exception e) {
+                if (!completed.compareAndSet(false, true)) {
+                    return;
+                }
+                timeoutFuture.cancel(false);
+                if (classifyError(e) instanceof RateLimitException) {
+                    rateLimiter.on429Error();
+                    concurrencyLimiter.onOverload();
+                } else if (isTimeout(e)) {
+                    concurrencyLimiter.onOverload();
+                }
+                concurrencyLimiter.release();
+                XposedBridge.log(TAG + ": ⚠️ 批量请求失败，退回单条处理: " + e.getMessage());
+                for (int i = 0; i < batch.size(); i++) {
+                    requeueSingle(batch.get(i), infos.get(i));
+                }
+            }
+        };
+        
+        executorService.execute(() -> {
+            try {
+                HttpAiClient.fetchOptionsBatch(first.context, items, contextMessages,
+                        first.customSystemPrompt, first.conversationId, batchCallback);
+            } catch (Throwable t) {
+                batchCallback.onFailure(new Exception(t.getMessage(), t));
+            }
+        });
+    }
+    
+    /**
+     * 批量未能处理的请求退回队列，之后按单条请求处理
+     */
+    private void requeueSingle(PrioritizedRequest request, String reqInfo) {
+        activeRequests.remove(reqInfo);
+        request.batchMembers = null;
+        if (request.cancelled) {
+            finishRequest(request, reqInfo);
+            return;
+        }
+        request.noBatch = true;
+        // 退回的请求已经入队过一次，不再受容量限制（最多超出一个批次）
+        requestQueue.offer(request);
+    }
+    
+    /**
+     * 上下文不足且会话历史回填进行中时推迟请求：不占用工作线程和并发名额，
+     * 回填结束或等待超过 BACKFILL_WAIT_MS 后重新入队（每个请求只推迟一次）
+     *
+     * @return 是否已推迟
+     */
+    private boolean deferForBackfill(PrioritizedRequest request) {
+        if (request.backfillDeferred || !request.isContextShort()) {
+            return false;
+        }
+        request.backfillDeferred = true;
+        final java.util.concurrent.atomic.AtomicBoolean requeued = new java.util.concurrent.atomic.AtomicBoolean(false);
+        Runnable requeue = () -> {
+            if (!requeued.compareAndSet(false, true)) {
                 return;
+            }
+            if (request.cancelled) {
+                // 推迟期间已被取消（不在队列中，取消时未记入日志）
+                persistence.appendComplete(request);
+            } else {
+                requestQueue.offer(request);
+            }
+        };
+        if (!ContextBackfill.whenDone(request.conversationId, requeue)) {
+            return false;
+        }
+        scheduler.schedule(requeue, BACKFILL_WAIT_MS, TimeUnit.MILLISECONDS);
+        debugLog(TAG + ": 上下文不足，等待会话 " + request.conversationId + " 的历史回填后再发送");
+        return true;
+    }
+    
+    /**
+     * 执行一次请求尝试，失败时按错误类型调度下一次尝试
+     */
+    private void executeAttempt(PrioritizedRequest request, String reqInfo,
+                                int rateLimitAttempt, int formatErrorAttempt) {
+        if (request.cancelled) {
+            // 等待重试期间已被取消
+            finishRequest(request, reqInfo);
+            return;
+        }
+        if (request.isExpired(System.currentTimeMillis())) {
+            // 退避等待期间消息已过期
+            shed(request, reqInfo, expiredShedCount, "已过截止时间");
+            return;
+        }
+        
+        final long startTime = System.currentTimeMillis();
+        fetchOptionsAsync(request, new HttpAiClient.AiCallback() {
+            @Override
+            public void onSuccess(List<String> options) {
+                // 成功：通知限流器（带图片的请求包含识图耗时，不作为延迟样本）
+                rateLimiter.onSuccess();
+                if (request.imageElements == null || request.imageElements.isEmpty()) {
+                    concurrencyLimiter.onSample(System.currentTimeMillis() - startTime);
+                }
+                finishRequest(request, reqInfo);
                 
-            } catch (RateLimitException e) {
-                // 429错误：动态降速
-                rateLimiter.on429Error();
-                lastException = e;
+                if (request.cancelled) {
+                    // 已取消但结果仍然返回：只缓存，不回调过期视图
+                    if (request.msgId != null) {
+                        MessageInterceptor.cacheOptions(request.msgId, options);
+                    }
+                    return;
+                }
                 
-                if (rateLimitAttempt < MAX_RATE_LIMIT_RETRIES) {
-                    long delay = BACKOFF_MS[rateLimitAttempt];
-                    XposedBridge.log(TAG + ": ⚠️ 触发429限流，等待 " + delay + "ms 后重试");
-                    SystemClock.sleep(delay);
-                    rateLimitAttempt++;
-                } else {
-                    break;  // 429重试次数用尽
+                // 回调成功（切换到UI线程）
+                mainHandler.post(() -> request.callback.onSuccess(options));
+            }
+            
+            @Override
+            public void onFailure(Exception e) {
+                if (request.cancelled) {
+                    // 主动取消导致的失败，不重试也不回调
+                    finishRequest(request, reqInfo);
+                    return;
                 }
                 
-            } catch (FormatErrorException e) {
-                // 格式错误：静默重试
-                formatErrorAttempt++;
-                lastException = e;
+                if (e instanceof RateLimitException || isTimeout(e)) {
+                    // 429或超时：服务商已过载，减少并发
+                    concurrencyLimiter.onOverload();
+                }
                 
-                if (formatErrorAttempt < MAX_FORMAT_ERROR_RETRIES) {
-                    XposedBridge.log(TAG + ": ⚠️ AI返回格式错误，自动重试 (" + formatErrorAttempt + "/" + MAX_FORMAT_ERROR_RETRIES + ")");
-                    // 短暂延迟后重试
-                    SystemClock.sleep(500);
-                } else {
+                if (e instanceof RateLimitException) {
+                    // 429错误：动态降速
+                    rateLimiter.on429Error();
+                    
+                    if (rateLimitAttempt < MAX_RATE_LIMIT_RETRIES) {
+                        long delay = BACKOFF_MS[rateLimitAttempt];
+                        XposedBridge.log(TAG + ": ⚠️ 触发429限流，等待 " + delay + "ms 后重试");
+                        scheduleAttempt(request, reqInfo, rateLimitAttempt + 1, formatErrorAttempt, delay);
+                        return;
+                    }
+                    // 429重试次数用尽
+                    finishRequest(request, reqInfo);
+                    mainHandler.post(() -> request.callback.onFailure(e));
+                    
+                } else if (e instanceof FormatErrorException) {
+                    // 格式错误：静默重试
+                    int nextFormatAttempt = formatErrorAttempt + 1;
+                    
+                    if (nextFormatAttempt < MAX_FORMAT_ERROR_RETRIES) {
+                        XposedBridge.log(TAG + ": ⚠️ AI返回格式错误，自动重试 (" + nextFormatAttempt + "/" + MAX_FORMAT_ERROR_RETRIES + ")");
+                        // 短暂延迟后重试
+                        scheduleAttempt(request, reqInfo, rateLimitAttempt, nextFormatAttempt, FORMAT_RETRY_DELAY_MS);
+                        return;
+                    }
                     // 达到最大重试次数
-                    XposedBridge.log(TAG + ": ❌ AI返回格式错误，已重试 " + MAX_FORMAT_ERROR_RETRIES + " 次仍失败");
-                    break;
+                    XposedBridge.log(TAG + ": ❌ 格式错误重试 " + MAX_FORMAT_ERROR_RETRIES + " 次后仍失败，通知显示重新加载按钮");
+                    finishRequest(request, reqInfo);
+                    notifyAllRetriesFailed(request);
+                    
+                } else {
+                    // 其他错误：直接失败，不重试
+                    XposedBridge.log(TAG + ": ❌ 请求失败: " + e.getMessage());
+                    finishRequest(request, reqInfo);
+                    mainHandler.post(() -> request.callback.onFailure(e));
                 }
-                
-            } catch (Exception e) {
-                // 其他错误：直接失败，不重试
-                XposedBridge.log(TAG + ": ❌ 请求失败: " + e.getMessage());
-                mainHandler.post(() -> request.callback.onFailure(e));
-                return;
             }
+        });
+    }
+    
+    /**
+     * 延迟调度下一次尝试（定时器线程只负责计时，实际请求仍交给线程池）
+     */
+    private void scheduleAttempt(PrioritizedRequest request, String reqInfo,
+                                 int rateLimitAttempt, int formatErrorAttempt, long delayMs) {
+        scheduler.schedule(() -> executeAttempt(request, reqInfo, rateLimitAttempt, formatErrorAttempt),
+                          delayMs, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * 请求最终完成（成功或失败）后的清理
+     */
+    private void finishRequest(PrioritizedRequest request, String reqInfo) {
+        activeRequests.remove(reqInfo);
+        if (request.holdsSlot) {
+            request.holdsSlot = false;
+            concurrencyLimiter.release();
         }
-        
-        // 重试次数用尽，最终失败
-        final Exception finalException = lastException;
-        final boolean isFormatError = finalException instanceof FormatErrorException;
-        
-        if (isFormatError) {
-            XposedBridge.log(TAG + ": ❌ 格式错误重试 " + MAX_FORMAT_ERROR_RETRIES + " 次后仍失败，通知显示重新加载按钮");
-            // 格式错误：通知显示重新加载按钮
-            if (request.callback instanceof HttpAiClient.AiCallbackWithRetry) {
-                HttpAiClient.AiCallbackWithRetry retryCallback = (HttpAiClient.AiCallbackWithRetry) request.callback;
-                // 创建重试动作
-                Runnable retryAction = () -> {
-                    XposedBridge.log(TAG + ": 用户点击重新加载");
-                    // 重新提交请求（保留senderQQ和customSystemPrompt）
-                    submitRequest(request.context, request.msgContent, request.msgId, request.priority,
-                                 request.contextMessages, request.currentSenderName, request.currentTimestamp,
-                                 request.senderQQ, request.customSystemPrompt, request.callback);
-                };
-                mainHandler.post(() -> retryCallback.onAllRetriesFailed(retryAction));
-            } else {
-                // 普通回调：直接失败
-                mainHandler.post(() -> request.callback.onFailure(finalException));
+        // 先移出在途表，之后的重复提交会发起新请求
+        removeInFlight(request);
+        // 记入日志（重启后不再恢复）
+        persistence.appendComplete(request);
+    }
+    
+    /**
+     * 丢弃请求（过期或被过载策略淘汰）：不再发起HTTP请求，等待中的视图显示重新加载按钮
+     */
+    private void shed(PrioritizedRequest request, String reqInfo,
+                      java.util.concurrent.atomic.AtomicLong counter, String reason) {
+        long count = counter.incrementAndGet();
+        debugLog(TAG + ": 丢弃请求（" + reason + "）msgId=" + request.msgId + "，累计 " + count);
+        finishRequest(request, reqInfo);
+        if (!request.cancelled) {
+            notifyAllRetriesFailed(request);
+        }
+    }
+    
+    /**
+     * 从在途表移除（仅当表中仍是该请求时）
+     */
+    private void removeInFlight(PrioritizedRequest request) {
+        if (request.dedupKey == null) {
+            return;
+        }
+        synchronized (inFlightRequests) {
+            if (inFlightRequests.get(request.dedupKey) == request) {
+                inFlightRequests.remove(request.dedupKey);
             }
-        } else {
-            mainHandler.post(() -> request.callback.onFailure(finalException));
         }
     }
     
     /**
-     * 同步调用AI接口（供内部使用）
+     * 格式错误重试用尽：通知显示重新加载按钮
+     */
+    private void notifyAllRetriesFailed(PrioritizedRequest request) {
+        // 创建重试动作
+        Runnable retryAction = () -> {
+            XposedBridge.log(TAG + ": 用户点击重新加载");
+            // 重新提交请求（保留图片和会话ID：公平调度权重、截止时间、批量和历史回填都依赖会话ID）
+            submitRequest(request.context, request.msgContent, request.msgId, request.priority,
+                         request.contextMessages, request.currentSenderName, request.currentTimestamp,
+                         request.senderQQ, request.customSystemPrompt, request.imageElements,
+                         request.conversationId, request.callback);
+        };
+        // 合并回调会分发给所有等待者：支持重试的显示重新加载按钮，普通回调直接失败
+        mainHandler.post(() -> request.callback.onAllRetriesFailed(retryAction));
+    }
+    
+    /**
+     * 异步调用AI接口（供内部使用）
+     * 结果通过回调返回，超时由定时器触发，不占用等待线程
      */
-    private List<String> fetchOptionsSync(PrioritizedRequest request) throws Exception {
-        final Object lock = new Object();
-        final List<String>[] resultHolder = new List[1];
-        final Exception[] errorHolder = new Exception[1];
+    private void fetchOptionsAsync(PrioritizedRequest request, HttpAiClient.AiCallback resultCallback) {
+        final java.util.concurrent.atomic.AtomicBoolean completed = new java.util.concurrent.atomic.AtomicBoolean(false);
         
-        HttpAiClient.AiCallback syncCallback = new HttpAiClient.AiCallback() {
+        // 超时（最多60秒，图片处理可能需要更长时间）
+        final java.util.concurrent.ScheduledFuture<?> timeoutFuture = scheduler.schedule(() -> {
+            if (completed.compareAndSet(false, true)) {
+                resultCallback.onFailure(new Exception("请求超时"));
+            }
+        }, REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        
+        HttpAiClient.AiCallback asyncCallback = new HttpAiClient.AiCallback() {
             @Override
             public void onSuccess(List<String> options) {
-                synchronized (lock) {
-                    resultHolder[0] = options;
-                    lock.notify();
+                if (completed.compareAndSet(false, true)) {
+                    timeoutFuture.cancel(false);
+                    resultCallback.onSuccess(options);
                 }
             }
             
             @Override
-            public void onFailure(Exception e) {
-                synchronized (lock) {
-                    errorHolder[0] = e;
-                    lock.notify();
+            public void onCallStarted(okhttp3.Call call) {
+                // 记录进行中的HTTP请求（对冲时可能有多个），供取消使用
+                request.activeCalls.add(call);
+                if (request.cancelled) {
+                    call.cancel();
                 }
             }
-        };
-        
-        synchronized (lock) {
-            // 检查是否有图片需要处理
-            boolean hasImages = request.imageElements != null && !request.imageElements.isEmpty() 
-                               && ConfigManager.isImageRecognitionEnabled();
             
-            if (hasImages) {
-                // 使用带图片的方法（传递conversationId和msgId用于缓存）
-                debugLog(TAG + ": 检测到图片，使用fetchOptionsWithImages处理");
-                HttpAiClient.fetchOptionsWithImages(request.context, request.msgContent,
-                                         request.currentSenderName, request.currentTimestamp,
-                                         request.contextMessages, request.customSystemPrompt,
-                                         request.imageElements, request.conversationId, request.msgId,
-                                         request.senderQQ, syncCallback);
-            } else if (request.customSystemPrompt != null && !request.customSystemPrompt.isEmpty()) {
-                // 使用自定义提示词（静默模式，传递senderQQ用于好感度）
-                HttpAiClient.fetchOptionsWithPromptSilent(request.context, request.msgContent,
-                                         request.currentSenderName, request.currentTimestamp,
-                                         request.contextMessages, request.customSystemPrompt,
-                                         request.senderQQ, syncCallback);
-            } else {
-                // 使用默认提示词（静默模式，传递senderQQ用于好感度）
-                HttpAiClient.fetchOptionsSilent(request.context, request.msgContent,
-                                         request.currentSenderName, request.currentTimestamp,
-                                         request.contextMessages, request.senderQQ, syncCallback);
+            @Override
+            public void onPartialOptions(List<String> options) {
+                // 流式输出的部分选项直接转发到UI线程
+                if (!completed.get()) {
+                    mainHandler.post(() -> request.callback.onPartialOptions(options));
+                }
             }
             
-            // 等待结果（最多60秒，图片处理可能需要更长时间）
-            lock.wait(60000);
-        }
-        
-        if (errorHolder[0] != null) {
-            String errorMsg = errorHolder[0].getMessage();
-            if (errorMsg != null) {
-                // 检查是否是429错误
-                if (errorMsg.contains("Rate limit")) {
-                    throw new RateLimitException(errorHolder[0]);
+            @Override
+            public void onFailure(Exception e) {
+                if (completed.compareAndSet(false, true)) {
+                    timeoutFuture.cancel(false);
+                    resultCallback.onFailure(classifyError(e));
                 }
-                // 检查是否是格式错误（可重试）
-                if (errorMsg.contains("格式") || errorMsg.contains("选项不足")) {
-                    throw new FormatErrorException(errorHolder[0]);
+            }
+        };
+        
+        executorService.execute(() -> {
+            try {
+                // 检查是否有图片需要处理
+                boolean hasImages = request.imageElements != null && !request.imageElements.isEmpty() 
+                                   && ConfigManager.isImageRecognitionEnabled();
+                
+                if (hasImages) {
+                    // 使用带图片的方法（传递conversationId和msgId用于缓存）
+                    debugLog(TAG + ": 检测到图片，使用fetchOptionsWithImages处理");
+                    HttpAiClient.fetchOptionsWithImages(request.context, request.msgContent,
+                                             request.currentSenderName, request.currentTimestamp,
+                                             request.contextMessages, request.customSystemPrompt,
+                                             request.imageElements, request.conversationId, request.msgId,
+                                             request.senderQQ, asyncCallback);
+                } else if (request.customSystemPrompt != null && !request.customSystemPrompt.isEmpty()) {
+                    // 使用自定义提示词（静默模式，传递senderQQ用于好感度）
+                    HttpAiClient.fetchOptionsWithPromptSilent(request.context, request.msgContent,
+                                             request.currentSenderName, request.currentTimestamp,
+                                             request.contextMessages, request.customSystemPrompt,
+                                             request.conversationId, request.senderQQ, asyncCallback);
+                } else {
+                    // 使用默认提示词（静默模式，传递senderQQ用于好感度）
+                    HttpAiClient.fetchOptionsSilent(request.context, request.msgContent,
+                                             request.currentSenderName, request.currentTimestamp,
+                                             request.contextMessages, request.conversationId,
+                                             request.senderQQ, asyncCallback);
                 }
+            } catch (Throwable t) {
+                debugLog(TAG + ": 异步任务执行异常: " + t.getMessage());
+                asyncCallback.onFailure(new Exception(t.getMessage(), t));
             }
-            throw errorHolder[0];
+        });
+    }
+    
+    /**
+     * 公平调度中会话的权重
+     * 群聊为1；私聊为配置的私聊权重；白名单好友的私聊再翻倍
+     */
+    private static double conversationWeight(PrioritizedRequest request) {
+        boolean isPrivateChat = request.conversationId != null && request.conversationId.equals(request.senderQQ);
+        if (!isPrivateChat) {
+            return 1;
         }
-        
-        if (resultHolder[0] == null) {
-            throw new Exception("请求超时");
+        double weight = ConfigManager.getAiPrivateChatWeight();
+        if (ConfigManager.isInWhitelist(request.senderQQ)) {
+            weight *= 2;
         }
-        
-        return resultHolder[0];
+        return weight;
+    }
+    
+    /**
+     * 是否为超时错误（队列超时或OkHttp超时）
+     */
+    private static boolean isTimeout(Exception e) {
+        String errorMsg = e.getMessage();
+        Throwable cause = e.getCause();
+        if (cause != null && cause.getMessage() != null) {
+            errorMsg = errorMsg + " " + cause.getMessage();
+        }
+        return errorMsg != null && (errorMsg.contains("超时") || errorMsg.contains("timeout"));
+    }
+    
+    /**
+     * 将AI客户端返回的错误归类为可重试的异常类型
+     */
+    private static Exception classifyError(Exception e) {
+        String errorMsg = e.getMessage();
+        if (errorMsg != null) {
+            // 检查是否是429错误
+            if (errorMsg.contains("Rate limit")) {
+                return new RateLimitException(e);
+            }
+            // 检查是否是格式错误（可重试）
+            if (errorMsg.contains("格式") || errorMsg.contains("选项不足")) {
+                return new FormatErrorException(e);
+            }
+        }
+        return e;
+    }
+    
+    /**
+     * 队列是否空闲（没有排队或进行中的请求），用于安排后台任务
+     */
+    public static boolean isIdle() {
+        AiRateLimitedQueue queue = instance;
+        return queue == null || isIdle(queue.requestQueue, queue.concurrencyLimiter);
+    }
+    
+    static boolean isIdle(RequestHeap queue, ConcurrencyLimiter limiter) {
+        return queue.size() == 0 && limiter.getInFlight() == 0;
     }
     
     /**
@@ -428,27 +969,70 @@ public class AiRateLimitedQueue {
     }
     
     /**
-     * 获取当前正在处理的请求列表
+     * 并发状态（进行中/当前上限）
      */
-    public List<String> getActiveRequests() {
-        return new ArrayList<>(activeRequests);
+    public String getConcurrencyInfo() {
+        return concurrencyLimiter.getInFlight() + "/" + concurrencyLimiter.getLimit();
     }
     
     /**
-     * 获取线程池状态信息
+     * 因超过截止时间被丢弃的请求数
      */
-    public String getThreadPoolInfo() {
-        if (executorService instanceof java.util.concurrent.ThreadPoolExecutor) {
-            java.util.concurrent.ThreadPoolExecutor pool = (java.util.concurrent.ThreadPoolExecutor) executorService;
-            return "Active: " + pool.getActiveCount() + 
-                   ", Pool: " + pool.getPoolSize() + 
-                   ", Core: " + pool.getCorePoolSize() + 
-                   ", Max: " + pool.getMaximumPoolSize();
-        }
-        return "Unknown Executor Type";
+    public long getExpiredShedCount() {
+        return expiredShedCount.get();
     }
     
-    // ========== 内部类 ==========
+    /**
+     * 队列满时被淘汰的请求数（丢弃最旧策略）
+     */
+    public long getEvictedShedCount() {
+        return evictedShedCount.get();
+    }
+    
+    /**
+     * 被同一会话的新请求合并掉的请求数
+     */
+    public long getCollapsedShedCount() {
+        return collapsedShedCount.get();
+    }
+    
+    /**
+     * 队列满时被拒绝的新请求数
+     */
+    public long getRejectedShedCount() {
+        return rejectedShedCount.get();
+    }
+    
+    /**
+     * 被丢弃的请求总数
+     */
+    public long getShedCount() {
+        return expiredShedCount.get() + evictedShedCount.get()
+                + collapsedShedCount.get() + rejectedShedCount.get();
+    }
+    
+    /**
+     * 获取当前正在处理的请求列表
+     */
+    public List<String> getActiveRequests() {
+        return new ArrayList<>(activeRequests);
+    }
+    
+    /**
+     * 获取线程池状态信息
+     */
+    public String getThreadPoolInfo() {
+        if (executorService instanceof java.util.concurrent.ThreadPoolExecutor) {
+            java.util.concurrent.ThreadPoolExecutor pool = (java.util.concurrent.ThreadPoolExecutor) executorService;
+            return "Active: " + pool.getActiveCount() + 
+                   ", Pool: " + pool.getPoolSize() + 
+                   ", Core: " + pool.getCorePoolSize() + 
+                   ", Max: " + pool.getMaximumPoolSize();
+        }
+        return "Unknown Executor Type";
+    }
+    
+    // ========== 内部类 ==========
     
     /**
      * 优先级枚举
@@ -474,19 +1058,30 @@ public class AiRateLimitedQueue {
     /**
      * 带优先级的请求对象
      */
-    private static class PrioritizedRequest implements Comparable<PrioritizedRequest> {
+    static class PrioritizedRequest implements Comparable<PrioritizedRequest> {
         final Context context;
         final String msgContent;
         final String msgId; // 用于持久化和缓存
-        final Priority priority;
-        final List<top.galqq.utils.MessageContextManager.ChatMessage> contextMessages; // 上下文消息
+        volatile Priority priority; // 仅在RequestHeap锁内修改
+        int heapIndex = -1; // 在RequestHeap中的下标（不在堆中为-1）
+        volatile List<top.galqq.utils.MessageContextManager.ChatMessage> contextMessages; // 上下文消息
+        List<String> contextMsgIds; // 恢复的请求：上下文消息ID，出队时从上下文缓存中取回
         final String currentSenderName; // 当前消息发送人昵称
         final long currentTimestamp; // 当前消息时间戳
         final String senderQQ; // 发送者QQ号（用于黑白名单过滤）
         final String customSystemPrompt; // 自定义系统提示词
         final List<ImageExtractor.ImageElement> imageElements; // 图片元素列表
         final String conversationId; // 会话ID（用于图片描述缓存）
-        final HttpAiClient.AiCallback callback;
+        final CoalescedCallback callback; // 所有等待该结果的回调
+        final String dedupKey; // 合并重复请求的key（msgId为空时为null）
+        volatile boolean cancelled = false; // 所有等待者都已取消
+        final List<okhttp3.Call> activeCalls = new java.util.concurrent.CopyOnWriteArrayList<>(); // 进行中的HTTP请求（用于取消）
+        volatile boolean noBatch = false; // 批量处理失败后退回，只按单条处理
+        volatile boolean backfillDeferred = false; // 已因等待历史回填推迟过一次
+        volatile List<PrioritizedRequest> batchMembers; // 所在批量请求的全部成员（不在批量请求中时为null）
+        volatile boolean holdsSlot = false; // 占用了并发名额（完成时释放）
+        double virtualStart = -1; // 公平调度的虚拟开始时间（首次入队时分配，仅在RequestHeap锁内访问）
+        volatile long deadline; // 截止时间，超过后不再发送（入队后仅在RequestHeap锁内修改）
         final long timestamp;  // 同优先级按时间排序
         
         PrioritizedRequest(Context context, String msgContent, String msgId, Priority priority, 
@@ -525,8 +1120,97 @@ public class AiRateLimitedQueue {
             this.customSystemPrompt = customSystemPrompt;
             this.imageElements = imageElements;
             this.conversationId = conversationId;
-            this.callback = callback;
+            this.callback = callback instanceof CoalescedCallback 
+                ? (CoalescedCallback) callback : new CoalescedCallback(callback);
+            this.dedupKey = buildDedupKey(msgId, customSystemPrompt);
             this.timestamp = timestamp;
+            this.deadline = deadlineFor(priority, timestamp);
+        }
+        
+        /**
+         * 按消息时间和可见性计算截止时间：
+         * - 基准：消息时间 + 历史消息阈值（与显示选项条的判断一致），且入队后至少保留 MIN_QUEUE_TTL_MS
+         * - 可见（HIGH）：至少再保留 VISIBLE_GRACE_MS，用户正在看的消息不会刚好过期
+         * - 不可见（NORMAL）：最多再保留 HIDDEN_TTL_MS，滚出屏幕的消息不再长期占用队列
+         */
+        long deadlineFor(Priority priority, long now) {
+            long msgTime = currentTimestamp > 0 ? currentTimestamp : timestamp;
+            long base = Math.max(msgTime + ConfigManager.getHistoryThreshold() * 1000L,
+                                 timestamp + MIN_QUEUE_TTL_MS);
+            if (priority == Priority.HIGH) {
+                return Math.max(base, now + VISIBLE_GRACE_MS);
+            }
+            return Math.min(base, now + HIDDEN_TTL_MS);
+        }
+        
+        boolean isExpired(long now) {
+            return now > deadline;
+        }
+        
+        /**
+         * 是否写入持久化日志（需要msgId；图片元素无法序列化，带图片的请求不恢复）
+         */
+        boolean isJournaled() {
+            return dedupKey != null && (imageElements == null || imageElements.isEmpty());
+        }
+        
+        /**
+         * 出队时确定最终上下文（不阻塞）：
+         * - 恢复的请求按消息ID取回上下文（此时上下文缓存中已有消息）
+         * - 上下文不足且会话历史已回填时，按当前消息时间重新取上下文
+         */
+        void resolveContext() {
+            if (contextMessages == null && contextMsgIds != null && conversationId != null) {
+                contextMessages = MessageContextManager.getMessagesByIds(conversationId, contextMsgIds);
+                contextMsgIds = null;
+            }
+            if (!isContextShort() || !ContextBackfill.isBackfilled(conversationId)) {
+                return;
+            }
+            List<top.galqq.utils.MessageContextManager.ChatMessage> current = contextMessages;
+            int wanted = ConfigManager.getContextMessageCount();
+            long before = currentTimestamp > 0 ? currentTimestamp : timestamp;
+            List<top.galqq.utils.MessageContextManager.ChatMessage> refreshed = MessageContextManager.getContextBefore(
+                    conversationId, msgId, before, wanted + PromptCompiler.windowSlack(wanted));
+            if (refreshed.size() > current.size()) {
+                contextMessages = PromptCompiler.anchorWindow(conversationId, refreshed, wanted);
+            }
+        }
+        
+        /**
+         * 上下文是否少于配置的条数（未启用上下文时为false）
+         */
+        boolean isContextShort() {
+            List<top.galqq.utils.MessageContextManager.ChatMessage> current = contextMessages;
+            return current != null && conversationId != null
+                && current.size() < ConfigManager.getContextMessageCount();
+        }
+        
+        /**
+         * 是否可以参与批量请求（需要会话ID，带图片的消息单独处理）
+         */
+        boolean isBatchable() {
+            return !noBatch && !cancelled && msgId != null && conversationId != null
+                && (imageElements == null || imageElements.isEmpty());
+        }
+        
+        /**
+         * 是否可以与head合并为一批（同一会话、同一提示词）
+         */
+        boolean isBatchableWith(PrioritizedRequest head) {
+            return isBatchable() && conversationId.equals(head.conversationId)
+                && android.text.TextUtils.equals(customSystemPrompt, head.customSystemPrompt);
+        }
+        
+        /**
+         * 合并key：msgId + 提示词标识（同一消息用不同提示词生成的结果不能共用）
+         */
+        static String buildDedupKey(String msgId, String customSystemPrompt) {
+            if (msgId == null) {
+                return null;
+            }
+            int promptHash = customSystemPrompt != null ? customSystemPrompt.hashCode() : 0;
+            return msgId + "|" + Integer.toHexString(promptHash);
         }
         
         @Override
@@ -535,11 +1219,19 @@ public class AiRateLimitedQueue {
             int p = Integer.compare(this.priority.value, other.priority.value);
             if (p != 0) return p;
             
-            // 同优先级按时间排序（FIFO）
+            // 同优先级按公平调度的虚拟开始时间排序（未启用公平调度时均为0）
+            int v = Double.compare(this.virtualStart, other.virtualStart);
+            if (v != 0) return v;
+            
+            // 再按截止时间排序（最早截止优先；未启用公平调度时即为EDF）
+            int d = Long.compare(this.deadline, other.deadline);
+            if (d != 0) return d;
+            
+            // 再按时间排序（FIFO）
             return Long.compare(this.timestamp, other.timestamp);
         }
         
-        // 序列化为JSON
+        // 序列化为JSON（提示词只保存标识，上下文只保存消息ID）
         JSONObject toJson() {
             try {
                 JSONObject json = new JSONObject();
@@ -547,6 +1239,23 @@ public class AiRateLimitedQueue {
                 json.put("msgId", msgId);
                 json.put("priority", priority.value);
                 json.put("timestamp", timestamp);
+                json.put("msgTime", currentTimestamp);
+                json.putOpt("senderName", currentSenderName);
+                json.putOpt("senderQQ", senderQQ);
+                json.putOpt("conversationId", conversationId);
+                if (customSystemPrompt != null) {
+                    json.put("prompt", Integer.toHexString(customSystemPrompt.hashCode()));
+                }
+                List<top.galqq.utils.MessageContextManager.ChatMessage> ctx = contextMessages;
+                if (ctx != null) {
+                    JSONArray ids = new JSONArray();
+                    for (top.galqq.utils.MessageContextManager.ChatMessage msg : ctx) {
+                        if (msg.msgId != null) {
+                            ids.put(msg.msgId);
+                        }
+                    }
+                    json.put("context", ids);
+                }
                 return json;
             } catch (Exception e) {
                 return null;
@@ -561,6 +1270,17 @@ public class AiRateLimitedQueue {
                 int priorityVal = json.getInt("priority");
                 long timestamp = json.getLong("timestamp");
                 
+                // 按标识找回提示词；提示词已被修改或删除时不再恢复（结果会与当前提示词不一致）
+                String customSystemPrompt = null;
+                String promptId = json.optString("prompt", null);
+                if (promptId != null) {
+                    customSystemPrompt = findPromptById(promptId);
+                    if (customSystemPrompt == null) {
+                        debugLog(TAG + ": 提示词已变更，不恢复请求 msgId=" + msgId);
+                        return null;
+                    }
+                }
+                
                 // 创建一个特殊的Callback，只负责更新缓存
                 HttpAiClient.AiCallback restoreCallback = new HttpAiClient.AiCallback() {
                     @Override
@@ -578,18 +1298,99 @@ public class AiRateLimitedQueue {
                     }
                 };
                 
-                // 恢复的请求不包含上下文（传null）
-                return new PrioritizedRequest(context, msgContent, msgId, 
-                    Priority.fromInt(priorityVal), null, null, 0, restoreCallback, timestamp);
+                // 上下文在出队时按消息ID取回（见 resolveContext）
+                PrioritizedRequest request = new PrioritizedRequest(context, msgContent, msgId,
+                    Priority.fromInt(priorityVal), null, json.optString("senderName", null),
+                    json.optLong("msgTime", 0), json.optString("senderQQ", null), customSystemPrompt,
+                    null, json.optString("conversationId", null), restoreCallback, timestamp);
+                JSONArray ids = json.optJSONArray("context");
+                if (ids != null) {
+                    request.contextMsgIds = new ArrayList<>(ids.length());
+                    for (int i = 0; i < ids.length(); i++) {
+                        request.contextMsgIds.add(ids.getString(i));
+                    }
+                }
+                return request;
             } catch (Exception e) {
                 return null;
             }
         }
+        
+        /**
+         * 按标识（内容哈希）查找当前提示词列表中的提示词
+         */
+        private static String findPromptById(String promptId) {
+            for (ConfigManager.PromptItem item : ConfigManager.getPromptList()) {
+                if (item.content != null && promptId.equals(Integer.toHexString(item.content.hashCode()))) {
+                    return item.content;
+                }
+            }
+            return null;
+        }
     }
     
     /**
-     * 动态QPS限流器
+     * 合并回调：同一在途请求的所有提交者共享一次结果
      */
+    private static class CoalescedCallback implements HttpAiClient.AiCallbackWithRetry {
+        private final List<HttpAiClient.AiCallback> callbacks = new java.util.concurrent.CopyOnWriteArrayList<>();
+        
+        CoalescedCallback(HttpAiClient.AiCallback first) {
+            attach(first);
+        }
+        
+        void attach(HttpAiClient.AiCallback callback) {
+            if (callback != null) {
+                callbacks.add(callback);
+            }
+        }
+        
+        /**
+         * 移除回调
+         * @return 剩余的等待者数量
+         */
+        int detach(HttpAiClient.AiCallback callback) {
+            callbacks.remove(callback);
+            return callbacks.size();
+        }
+        
+        int size() {
+            return callbacks.size();
+        }
+        
+        @Override
+        public void onSuccess(List<String> options) {
+            for (HttpAiClient.AiCallback cb : callbacks) {
+                cb.onSuccess(options);
+            }
+        }
+        
+        @Override
+        public void onPartialOptions(List<String> options) {
+            for (HttpAiClient.AiCallback cb : callbacks) {
+                cb.onPartialOptions(options);
+            }
+        }
+        
+        @Override
+        public void onFailure(Exception e) {
+            for (HttpAiClient.AiCallback cb : callbacks) {
+                cb.onFailure(e);
+            }
+        }
+        
+        @Override
+        public void onAllRetriesFailed(Runnable retryAction) {
+            for (HttpAiClient.AiCallback cb : callbacks) {
+                if (cb instanceof HttpAiClient.AiCallbackWithRetry) {
+                    ((HttpAiClient.AiCallbackWithRetry) cb).onAllRetriesFailed(retryAction);
+                } else {
+                    cb.onFailure(new Exception("AI返回格式错误"));
+                }
+            }
+        }
+    }
+    
     /**
      * 动态QPS限流器
      */
@@ -686,81 +1487,745 @@ public class AiRateLimitedQueue {
     }
     
     /**
-     * 持久化管理器
+     * 自适应并发限制器
+     * 
+     * 与QPS限流器配合使用：QPS限制每秒发起的请求数，这里限制同时进行中的请求数。
+     * - 延迟正常（平滑RTT不超过最小RTT的 LATENCY_TOLERANCE 倍）且名额用满时，上限加性增长（约每轮 +1）
+     * - 延迟明显上升时，上限缓慢下降（×0.9），说明服务商开始排队
+     * - 429或超时时，上限减半
+     * 下降操作每个RTT最多一次，避免同一批请求的连锁失败把上限一次压到底。
+     */
+    static class ConcurrencyLimiter {
+        private static final int MIN_LIMIT = 1;
+        private static final int MAX_LIMIT = 16;
+        private static final int INITIAL_LIMIT = 4;
+        private static final double LATENCY_TOLERANCE = 2.0;
+        private static final double EWMA_ALPHA = 0.2;
+        // 最小RTT每隔这么多个样本重新测量一次（服务商状态会变化）
+        private static final int MIN_RTT_RESET_SAMPLES = 100;
+        
+        private double limit = INITIAL_LIMIT;
+        private int inFlight = 0;
+        private long minRtt = Long.MAX_VALUE;
+        private double smoothedRtt = 0;
+        private int samples = 0;
+        private long lastDecreaseTime = 0;
+        
+        /**
+         * 获取名额（阻塞直到进行中的请求数低于上限）
+         */
+        synchronized void acquire() throws InterruptedException {
+            while (inFlight >= (int) limit) {
+                wait();
+            }
+            inFlight++;
+        }
+        
+        /**
+         * 释放名额
+         */
+        synchronized void release() {
+            if (inFlight > 0) {
+                inFlight--;
+            }
+            notifyAll();
+        }
+        
+        /**
+         * 记录一次成功请求的往返时间
+         */
+        synchronized void onSample(long rttMs) {
+            if (rttMs <= 0) {
+                return;
+            }
+            if (++samples >= MIN_RTT_RESET_SAMPLES) {
+                samples = 0;
+                minRtt = Long.MAX_VALUE;
+            }
+            minRtt = Math.min(minRtt, rttMs);
+            smoothedRtt = smoothedRtt == 0 ? rttMs : smoothedRtt * (1 - EWMA_ALPHA) + rttMs * EWMA_ALPHA;
+            
+            double oldLimit = limit;
+            if (smoothedRtt > minRtt * LATENCY_TOLERANCE) {
+                if (canDecrease()) {
+                    limit = Math.max(MIN_LIMIT, limit * 0.9);
+                }
+            } else if (inFlight >= (int) limit - 1) {
+                // 只有名额基本用满时才增长，空闲时的低延迟不能说明服务商能承受更多并发
+                limit = Math.min(MAX_LIMIT, limit + 1.0 / limit);
+            }
+            if ((int) oldLimit != (int) limit) {
+                debugLog(TAG + ": 并发上限 " + (int) oldLimit + " → " + (int) limit
+                        + "（RTT " + (long) smoothedRtt + "ms，最小 " + minRtt + "ms）");
+                notifyAll();
+            }
+        }
+        
+        /**
+         * 服务商过载（429或超时）：上限减半
+         */
+        synchronized void onOverload() {
+            if (!canDecrease()) {
+                return;
+            }
+            double oldLimit = limit;
+            limit = Math.max(MIN_LIMIT, limit * 0.5);
+            XposedBridge.log(TAG + ": 🔽 服务商过载，并发上限: " + (int) oldLimit + " → " + (int) limit);
+        }
+        
+        synchronized int getInFlight() {
+            return inFlight;
+        }
+        
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+        
+        private boolean canDecrease() {
+            long now = System.currentTimeMillis();
+            long interval = smoothedRtt > 0 ? (long) smoothedRtt : 1000;
+            if (now - lastDecreaseTime < interval) {
+                return false;
+            }
+            lastDecreaseTime = now;
+            return true;
+        }
+    }
+    
+    /**
+     * 过载策略淘汰的请求及原因
+     */
+    private static class Eviction {
+        final PrioritizedRequest victim;
+        final boolean collapsed; // true：被同会话的新请求合并；false：队列已满被淘汰
+
+        Eviction(PrioritizedRequest victim, boolean collapsed) {
+            this.victim = victim;
+            this.collapsed = collapsed;
+        }
+
+        static Eviction of(PrioritizedRequest victim) {
+            return victim != null ? new Eviction(victim, false) : null;
+        }
+    }
+    
+    /**
+     * 索引二叉堆（阻塞）
+     * 
+     * 替代PriorityBlockingQueue：每个请求记录自己在堆中的下标，并按msgId建立索引，
+     * 调整优先级和移除都是 O(log n)，无需线性扫描。
+     * 
+     * 公平调度（Start-time Fair Queuing）：每个会话是一个流，请求首次入队时分配虚拟开始时间
+     * start = max(当前虚拟时钟, 该会话上一个请求的结束时间)，结束时间 = start + 1/权重。
+     * 同优先级按虚拟开始时间出队，出队时虚拟时钟推进到该请求的开始时间。
+     * 这样刷屏的群聊只会排在自己之前的请求后面，新来的私聊几乎立即被调度；权重越高，同一会话连续请求的间隔越小。
+     */
+    static class RequestHeap {
+        private final java.util.concurrent.locks.ReentrantLock lock = new java.util.concurrent.locks.ReentrantLock();
+        private final java.util.concurrent.locks.Condition notEmpty = lock.newCondition();
+        private final java.util.Map<String, List<PrioritizedRequest>> msgIndex = new java.util.HashMap<>();
+        private PrioritizedRequest[] heap;
+        private int size = 0;
+        
+        // 公平调度状态：虚拟时钟，会话ID -> 该会话最后一个请求的虚拟结束时间
+        private double virtualClock = 0;
+        private final java.util.Map<String, Double> flowFinish = new java.util.HashMap<>();
+        
+        RequestHeap(int initialCapacity) {
+            this.heap = new PrioritizedRequest[Math.max(1, initialCapacity)];
+        }
+        
+        boolean offer(PrioritizedRequest request) {
+            lock.lock();
+            try {
+                if (request.heapIndex >= 0) {
+                    return false; // 已在队列中
+                }
+                if (request.virtualStart < 0) {
+                    assignVirtualStart(request);
+                }
+                if (size == heap.length) {
+                    heap = java.util.Arrays.copyOf(heap, heap.length * 2);
+                }
+                heap[size] = request;
+                request.heapIndex = size;
+                size++;
+                siftUp(request.heapIndex);
+                if (request.msgId != null) {
+                    List<PrioritizedRequest> list = msgIndex.get(request.msgId);
+                    if (list == null) {
+                        list = new ArrayList<>(1);
+                        msgIndex.put(request.msgId, list);
+                    }
+                    list.add(request);
+                }
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        PrioritizedRequest take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (size == 0) {
+                    notEmpty.await();
+                }
+                PrioritizedRequest request = removeAt(0);
+                virtualClock = Math.max(virtualClock, request.virtualStart);
+                return request;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * 队首请求优先于held时，把held放回队列并取出队首；否则原样返回held
+         */
+        PrioritizedRequest exchangeIfOutranked(PrioritizedRequest held) {
+            lock.lock();
+            try {
+                if (size == 0 || heap[0].compareTo(held) >= 0) {
+                    return held;
+                }
+                offer(held);
+                PrioritizedRequest request = removeAt(0);
+                virtualClock = Math.max(virtualClock, request.virtualStart);
+                return request;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        boolean remove(PrioritizedRequest request) {
+            lock.lock();
+            try {
+                int i = request.heapIndex;
+                if (i < 0 || i >= size || heap[i] != request) {
+                    return false;
+                }
+                removeAt(i);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * 有界入队：队列已满时按过载策略选择被淘汰的请求
+         * 可见消息（HIGH）的请求只会被同一会话的新请求合并掉，不会被其他请求挤出
+         *
+         * @param evicted 输出被淘汰的请求（已移出队列）及淘汰原因
+         * @return 新请求是否入队（false表示被拒绝）
+         */
+        boolean offer(PrioritizedRequest request, int capacity, String policy, List<Eviction> evicted) {
+            lock.lock();
+            try {
+                if (request.heapIndex >= 0) {
+                    return false;
+                }
+                while (size >= capacity) {
+                    Eviction eviction = chooseVictim(request, policy);
+                    if (eviction == null) {
+                        return false;
+                    }
+                    removeAt(eviction.victim.heapIndex);
+                    evicted.add(eviction);
+                }
+                return offer(request);
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * 选择被淘汰的请求（需持有锁），返回null表示拒绝新请求
+         */
+        private Eviction chooseVictim(PrioritizedRequest incoming, String policy) {
+            if (ConfigManager.OVERLOAD_COLLAPSE.equals(policy)) {
+                // 同一会话：新消息到来后旧消息的建议价值最低，淘汰该会话最旧的请求
+                PrioritizedRequest sameConversation = null;
+                if (incoming.conversationId != null) {
+                    for (int i = 0; i < size; i++) {
+                        PrioritizedRequest r = heap[i];
+                        if (incoming.conversationId.equals(r.conversationId)
+                                && r.priority.value >= incoming.priority.value
+                                && (sameConversation == null || r.timestamp < sameConversation.timestamp)) {
+                            sameConversation = r;
+                        }
+                    }
+                }
+                if (sameConversation != null) {
+                    return new Eviction(sameConversation, true);
+                }
+                // 该会话没有可合并的请求：从排队最多的会话淘汰最旧的普通请求
+                return Eviction.of(oldestNormalOfLargestConversation());
+            }
+            if (ConfigManager.OVERLOAD_REJECT_NEW.equals(policy) && incoming.priority != Priority.HIGH) {
+                return null;
+            }
+            return Eviction.of(oldestNormal());
+        }
+        
+        private PrioritizedRequest oldestNormal() {
+            PrioritizedRequest oldest = null;
+            for (int i = 0; i < size; i++) {
+                PrioritizedRequest r = heap[i];
+                if (r.priority == Priority.NORMAL && (oldest == null || r.timestamp < oldest.timestamp)) {
+                    oldest = r;
+                }
+            }
+            return oldest;
+        }
+        
+        private PrioritizedRequest oldestNormalOfLargestConversation() {
+            java.util.Map<String, Integer> counts = new java.util.HashMap<>();
+            String largest = null;
+            int largestCount = 0;
+            for (int i = 0; i < size; i++) {
+                PrioritizedRequest r = heap[i];
+                if (r.priority != Priority.NORMAL) {
+                    continue;
+                }
+                String flow = r.conversationId != null ? r.conversationId : "";
+                Integer count = counts.get(flow);
+                int newCount = count != null ? count + 1 : 1;
+                counts.put(flow, newCount);
+                if (newCount > largestCount) {
+                    largest = flow;
+                    largestCount = newCount;
+                }
+            }
+            if (largest == null) {
+                return null;
+            }
+            PrioritizedRequest oldest = null;
+            for (int i = 0; i < size; i++) {
+                PrioritizedRequest r = heap[i];
+                String flow = r.conversationId != null ? r.conversationId : "";
+                if (r.priority == Priority.NORMAL && flow.equals(largest)
+                        && (oldest == null || r.timestamp < oldest.timestamp)) {
+                    oldest = r;
+                }
+            }
+            return oldest;
+        }
+        
+        /**
+         * 调整单个请求的优先级（不在队列中则忽略）
+         */
+        boolean updatePriority(PrioritizedRequest request, Priority priority) {
+            lock.lock();
+            try {
+                int i = request.heapIndex;
+                if (i < 0 || i >= size || heap[i] != request || request.priority == priority) {
+                    return false;
+                }
+                request.priority = priority;
+                request.deadline = request.deadlineFor(priority, System.currentTimeMillis());
+                fix(i);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * 调整某条消息所有排队请求的优先级
+         * @return 实际调整的请求数
+         */
+        int updatePriority(String msgId, Priority priority) {
+            lock.lock();
+            try {
+                List<PrioritizedRequest> list = msgIndex.get(msgId);
+                if (list == null) {
+                    return 0;
+                }
+                int changed = 0;
+                long now = System.currentTimeMillis();
+                for (PrioritizedRequest request : list) {
+                    if (request.priority != priority) {
+                        request.priority = priority;
+                        request.deadline = request.deadlineFor(priority, now);
+                        fix(request.heapIndex);
+                        changed++;
+                    }
+                }
+                return changed;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * 取出最多max个可以与head合并为一批的排队请求（按优先级顺序）
+         */
+        List<PrioritizedRequest> drainBatchable(PrioritizedRequest head, int max) {
+            lock.lock();
+            try {
+                List<PrioritizedRequest> candidates = new ArrayList<>();
+                for (int i = 0; i < size; i++) {
+                    if (heap[i].isBatchableWith(head)) {
+                        candidates.add(heap[i]);
+                    }
+                }
+                java.util.Collections.sort(candidates);
+                List<PrioritizedRequest> drained = new ArrayList<>(Math.min(max, candidates.size()));
+                for (PrioritizedRequest request : candidates) {
+                    if (drained.size() >= max) {
+                        break;
+                    }
+                    removeAt(request.heapIndex);
+                    drained.add(request);
+                }
+                return drained;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        int size() {
+            lock.lock();
+            try {
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        private PrioritizedRequest removeAt(int i) {
+            PrioritizedRequest removed = heap[i];
+            size--;
+            PrioritizedRequest last = heap[size];
+            heap[size] = null;
+            if (i != size) {
+                heap[i] = last;
+                last.heapIndex = i;
+                fix(i);
+            }
+            removed.heapIndex = -1;
+            if (removed.msgId != null) {
+                List<PrioritizedRequest> list = msgIndex.get(removed.msgId);
+                if (list != null) {
+                    list.remove(removed);
+                    if (list.isEmpty()) {
+                        msgIndex.remove(removed.msgId);
+                    }
+                }
+            }
+            return removed;
+        }
+        
+        private void fix(int i) {
+            siftDown(i);
+            siftUp(i);
+        }
+        
+        /**
+         * 分配公平调度的虚拟开始时间（需持有锁）
+         */
+        private void assignVirtualStart(PrioritizedRequest request) {
+            if (!ConfigManager.isAiFairQueueEnabled()) {
+                request.virtualStart = 0;
+                return;
+            }
+            String flow = request.conversationId != null ? request.conversationId : "";
+            Double lastFinish = flowFinish.get(flow);
+            double start = lastFinish != null ? Math.max(virtualClock, lastFinish) : virtualClock;
+            request.virtualStart = start;
+            flowFinish.put(flow, start + 1.0 / conversationWeight(request));
+            
+            // 清理已落后于虚拟时钟的会话（它们再来请求时与新会话等价）
+            if (flowFinish.size() > 200) {
+                java.util.Iterator<java.util.Map.Entry<String, Double>> it = flowFinish.entrySet().iterator();
+                while (it.hasNext()) {
+                    if (it.next().getValue() <= virtualClock) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+        
+        private void siftUp(int i) {
+            PrioritizedRequest item = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent].compareTo(item) <= 0) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                heap[i].heapIndex = i;
+                i = parent;
+            }
+            heap[i] = item;
+            item.heapIndex = i;
+        }
+        
+        private void siftDown(int i) {
+            PrioritizedRequest item = heap[i];
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                int right = child + 1;
+                if (right < size && heap[right].compareTo(heap[child]) < 0) {
+                    child = right;
+                }
+                if (item.compareTo(heap[child]) <= 0) {
+                    break;
+                }
+                heap[i] = heap[child];
+                heap[i].heapIndex = i;
+                i = child;
+            }
+            heap[i] = item;
+            item.heapIndex = i;
+        }
+    }
+    
+    /**
+     * 持久化管理器（追加写日志）
+     * 
+     * 每个事件只追加一行JSON，写入量与队列长度无关：
+     * - {"op":"add", "key":..., 请求字段}：入队
+     * - {"op":"pri", "msgId":..., "priority":...}：优先级变化
+     * - {"op":"done", "key":...}：完成、取消或丢弃
+     * 后台线程同时在内存中维护仍在队列中的记录，日志中的失效记录过多时压缩：
+     * 只写入有效记录到临时文件，再替换原日志。
+     * 启动时回放日志得到重启前仍未完成的请求，只恢复HIGH请求（最多 MAX_RESTORE 条）。
      */
     private static class RequestPersistence {
+        // 旧版本的快照存储（SharedPreferences），升级后读取一次并删除
         private static final String PREF_NAME = "galqq_ai_queue";
         private static final String KEY_PENDING = "pending_requests";
+        
+        private static final String JOURNAL_NAME = "galqq_ai_queue.journal";
+        // 压缩条件：距上次压缩至少追加了 COMPACT_MIN_RECORDS 条，且失效记录占多数
+        private static final int COMPACT_MIN_RECORDS = 256;
+        private static final int COMPACT_RATIO = 4;
+        private static final int MAX_RESTORE = 50;
+        
         private final SharedPreferences prefs;
+        private final java.io.File journalFile;
         private final Handler bgHandler;
-        private long lastSaveTime = 0;
+        
+        // 以下字段只在后台线程访问
+        private final java.util.Map<String, JSONObject> live = new java.util.LinkedHashMap<>();
+        private java.io.Writer writer;
+        private int recordsSinceCompact = 0;
         
         RequestPersistence(Context context) {
             this.prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+            this.journalFile = new java.io.File(context.getFilesDir(), JOURNAL_NAME);
             // 使用后台线程处理IO
             android.os.HandlerThread thread = new android.os.HandlerThread("AiPersistence");
             thread.start();
             this.bgHandler = new Handler(thread.getLooper());
         }
         
-        // 异步保存队列（节流：最多1秒1次）
-        void saveQueueAsync(PriorityBlockingQueue<PrioritizedRequest> queue) {
-            long now = System.currentTimeMillis();
-            if (now - lastSaveTime < 1000) {
-                return; // 节流
+        /**
+         * 记录入队
+         */
+        void appendEnqueue(PrioritizedRequest request) {
+            if (!request.isJournaled()) {
+                return;
             }
-            lastSaveTime = now;
-            
             bgHandler.post(() -> {
+                JSONObject record = request.toJson();
+                if (record == null) {
+                    return;
+                }
                 try {
-                    // 复制当前队列快照
-                    List<PrioritizedRequest> snapshot = new ArrayList<>(queue);
-                    JSONArray array = new JSONArray();
-                    
-                    // 只保存HIGH优先级且有msgId的任务，最多50条
-                    int count = 0;
-                    for (PrioritizedRequest req : snapshot) {
-                        if (req.priority == Priority.HIGH && req.msgId != null) {
-                            JSONObject json = req.toJson();
-                            if (json != null) {
-                                array.put(json);
-                                count++;
-                            }
-                        }
-                        if (count >= 50) break;
-                    }
-                    
-                    prefs.edit().putString(KEY_PENDING, array.toString()).apply();
-                    // XposedBridge.log(TAG + ": 已持久化 " + count + " 个请求");
+                    record.put("op", "add");
+                    record.put("key", request.dedupKey);
                 } catch (Exception e) {
-                    XposedBridge.log(TAG + ": 持久化失败: " + e.getMessage());
+                    return;
+                }
+                live.put(request.dedupKey, record);
+                append(record);
+            });
+        }
+        
+        /**
+         * 记录单个请求的优先级变化
+         */
+        void appendPriority(PrioritizedRequest request, Priority priority) {
+            if (request.isJournaled()) {
+                appendPriority(request.msgId, priority);
+            }
+        }
+        
+        /**
+         * 记录某条消息所有请求的优先级变化
+         */
+        void appendPriority(String msgId, Priority priority) {
+            bgHandler.post(() -> {
+                boolean found = false;
+                for (JSONObject record : live.values()) {
+                    if (msgId.equals(record.optString("msgId", null))) {
+                        try {
+                            record.put("priority", priority.value);
+                        } catch (Exception ignored) {}
+                        found = true;
+                    }
+                }
+                if (!found) {
+                    return;
+                }
+                try {
+                    JSONObject record = new JSONObject();
+                    record.put("op", "pri");
+                    record.put("msgId", msgId);
+                    record.put("priority", priority.value);
+                    append(record);
+                } catch (Exception ignored) {}
+            });
+        }
+        
+        /**
+         * 记录完成（成功、失败、取消或丢弃）
+         */
+        void appendComplete(PrioritizedRequest request) {
+            if (!request.isJournaled()) {
+                return;
+            }
+            bgHandler.post(() -> {
+                if (live.remove(request.dedupKey) == null) {
+                    return; // 未记录或已记录完成
                 }
+                try {
+                    JSONObject record = new JSONObject();
+                    record.put("op", "done");
+                    record.put("key", request.dedupKey);
+                    append(record);
+                } catch (Exception ignored) {}
             });
         }
         
-        // 加载队列（同步）
+        // 加载队列（同步）：回放日志，加载后清空，恢复的请求入队时重新记入日志
         List<PrioritizedRequest> loadQueue(Context context) {
-            List<PrioritizedRequest> result = new ArrayList<>();
+            List<JSONObject> pending = new ArrayList<>();
+            
+            // 旧版本快照
             try {
-                String jsonStr = prefs.getString(KEY_PENDING, "[]");
-                JSONArray array = new JSONArray(jsonStr);
-                
-                for (int i = 0; i < array.length(); i++) {
-                    JSONObject json = array.getJSONObject(i);
-                    PrioritizedRequest req = PrioritizedRequest.fromJson(context, json);
-                    if (req != null) {
-                        result.add(req);
+                String jsonStr = prefs.getString(KEY_PENDING, null);
+                if (jsonStr != null) {
+                    JSONArray array = new JSONArray(jsonStr);
+                    for (int i = 0; i < array.length(); i++) {
+                        pending.add(array.getJSONObject(i));
                     }
+                    prefs.edit().remove(KEY_PENDING).apply();
                 }
-                
-                // 加载后清空，避免重复处理
-                prefs.edit().remove(KEY_PENDING).apply();
-                
             } catch (Exception e) {
                 XposedBridge.log(TAG + ": 加载持久化请求失败: " + e.getMessage());
             }
+            
+            // 回放日志
+            if (journalFile.exists()) {
+                java.util.Map<String, JSONObject> replayed = new java.util.LinkedHashMap<>();
+                try (java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(
+                        new java.io.FileInputStream(journalFile), java.nio.charset.StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        JSONObject record;
+                        try {
+                            record = new JSONObject(line);
+                        } catch (Exception e) {
+                            continue; // 进程被杀时最后一行可能不完整
+                        }
+                        String op = record.optString("op");
+                        if ("add".equals(op)) {
+                            replayed.put(record.optString("key"), record);
+                        } else if ("done".equals(op)) {
+                            replayed.remove(record.optString("key"));
+                        } else if ("pri".equals(op)) {
+                            String msgId = record.optString("msgId");
+                            for (JSONObject added : replayed.values()) {
+                                if (msgId.equals(added.optString("msgId", null))) {
+                                    added.put("priority", record.optInt("priority"));
+                                }
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    XposedBridge.log(TAG + ": 读取持久化日志失败: " + e.getMessage());
+                }
+                pending.addAll(replayed.values());
+                if (!journalFile.delete()) {
+                    XposedBridge.log(TAG + ": 清空持久化日志失败");
+                }
+            }
+            
+            // 只恢复HIGH请求，最多 MAX_RESTORE 条（保留最新的）
+            List<PrioritizedRequest> result = new ArrayList<>();
+            for (int i = pending.size() - 1; i >= 0 && result.size() < MAX_RESTORE; i--) {
+                JSONObject json = pending.get(i);
+                if (json.optInt("priority", Priority.NORMAL.value) != Priority.HIGH.value) {
+                    continue;
+                }
+                PrioritizedRequest req = PrioritizedRequest.fromJson(context, json);
+                if (req != null) {
+                    result.add(0, req);
+                }
+            }
             return result;
         }
+        
+        /**
+         * 追加一条记录（后台线程）
+         */
+        private void append(JSONObject record) {
+            try {
+                if (writer == null) {
+                    writer = new java.io.BufferedWriter(new java.io.OutputStreamWriter(
+                            new java.io.FileOutputStream(journalFile, true), java.nio.charset.StandardCharsets.UTF_8));
+                }
+                writer.write(record.toString());
+                writer.write('\n');
+                writer.flush();
+                recordsSinceCompact++;
+            } catch (Exception e) {
+                XposedBridge.log(TAG + ": 持久化失败: " + e.getMessage());
+                closeWriter();
+                return;
+            }
+            if (recordsSinceCompact >= COMPACT_MIN_RECORDS && recordsSinceCompact > live.size() * COMPACT_RATIO) {
+                compact();
+            }
+        }
+        
+        /**
+         * 压缩日志：只保留仍在队列中的请求（后台线程）
+         */
+        private void compact() {
+            closeWriter();
+            java.io.File tmp = new java.io.File(journalFile.getPath() + ".tmp");
+            try (java.io.Writer out = new java.io.BufferedWriter(new java.io.OutputStreamWriter(
+                    new java.io.FileOutputStream(tmp), java.nio.charset.StandardCharsets.UTF_8))) {
+                for (JSONObject record : live.values()) {
+                    out.write(record.toString());
+                    out.write('\n');
+                }
+            } catch (Exception e) {
+                XposedBridge.log(TAG + ": 压缩持久化日志失败: " + e.getMessage());
+                tmp.delete();
+                return;
+            }
+            if (tmp.renameTo(journalFile)) {
+                recordsSinceCompact = live.size();
+            } else {
+                tmp.delete();
+            }
+        }
+        
+        private void closeWriter() {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (Exception ignored) {}
+                writer = null;
+            }
+        }
     }
     
     /**
@@ -0,0 +1,167 @@
+package top.galqq.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.robv.android.xposed.XposedBridge;
+import top.galqq.config.ConfigManager;
+
+/**
+ * 连发消息合并器（按会话去抖）
+ *
+ * 自动显示模式下，对方短时间内连发多条消息时，只为最新一条生成选项：
+ * 1. 每条消息先等待一个可配置的时间窗口（ConfigManager.getAiBurstWindow）
+ * 2. 窗口内同一会话有更新的消息到达时，旧消息被标记为「已覆盖」，不再自动请求AI
+ * 3. 为防止活跃群聊一直推迟，单次连发最长等待 MAX_WAIT_FACTOR 倍窗口
+ * 4. 只合并真正连发到达的消息：消息时间距当前时间或等待中的消息在一个窗口内。
+ *    打开聊天、翻看历史时批量绑定的旧消息不参与合并，按普通自动显示处理
+ *
+ * 所有方法只在主线程调用。
+ */
+public class BurstCollapser {
+
+    private static final String TAG = "GalQQ.BurstCollapser";
+
+    private static void debugLog(String message) {
+        try {
+            if (ConfigManager.isVerboseLogEnabled()) {
+                XposedBridge.log(message);
+            }
+        } catch (Throwable ignored) {}
+    }
+
+    // 单次连发最长等待 = 窗口 × 该倍数
+    private static final int MAX_WAIT_FACTOR = 3;
+
+    // QQ消息时间只精确到秒，判断是否刚到达时额外放宽的误差
+    private static final long MSG_TIME_PRECISION_MS = 1000;
+
+    // 最多记录的已覆盖消息数
+    private static final int MAX_COVERED = 500;
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    // 会话ID -> 等待中的最新消息
+    private static final Map<String, Pending> pendingByConversation = new HashMap<>();
+
+    // 已被更新消息覆盖的msgId（LRU）
+    private static final Map<String, Boolean> coveredMsgIds =
+        new java.util.LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_COVERED;
+            }
+        };
+
+    private static class Pending {
+        final String msgId;
+        final long msgTime;
+        final long burstStart; // 本次连发的开始时间（用于最长等待）
+        Runnable action;
+        Runnable timer;
+
+        Pending(String msgId, long msgTime, long burstStart, Runnable action) {
+            this.msgId = msgId;
+            this.msgTime = msgTime;
+            this.burstStart = burstStart;
+            this.action = action;
+        }
+    }
+
+    /**
+     * 是否启用（窗口 > 0）
+     */
+    public static boolean isEnabled() {
+        try {
+            return ConfigManager.getAiBurstWindow() > 0;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * 消息是否已被同一会话的更新消息覆盖
+     */
+    public static boolean isCovered(String msgId) {
+        return msgId != null && coveredMsgIds.containsKey(msgId);
+    }
+
+    /**
+     * 消息是否应走连发合并：刚到达的消息，或与同一会话等待中的消息相隔不超过一个窗口。
+     * 已被覆盖的消息也返回 true，保持只显示按钮的状态
+     *
+     * @param msgTime 消息时间（毫秒）
+     */
+    public static boolean shouldCollapse(String conversationId, String msgId, long msgTime) {
+        if (conversationId == null || msgId == null) {
+            return false;
+        }
+        if (isCovered(msgId)) {
+            return true;
+        }
+        long window = ConfigManager.getAiBurstWindow();
+        if (Math.abs(System.currentTimeMillis() - msgTime) <= window + MSG_TIME_PRECISION_MS) {
+            return true;
+        }
+        Pending current = pendingByConversation.get(conversationId);
+        return current != null && (current.msgId.equals(msgId) || Math.abs(msgTime - current.msgTime) <= window + MSG_TIME_PRECISION_MS);
+    }
+
+    /**
+     * 提交一条消息，等待窗口结束后执行 action
+     * 调用方应先用 shouldCollapse 判断，只提交连发到达的消息
+     *
+     * @param conversationId 会话ID
+     * @param msgId          消息ID
+     * @param msgTime        消息时间（毫秒），用于判断新旧
+     * @param action         窗口结束时执行（请求AI），调用方需自行检查视图是否仍然有效
+     * @return false 表示该消息已被覆盖，不会执行 action
+     */
+    public static boolean submit(String conversationId, String msgId, long msgTime, Runnable action) {
+        if (conversationId == null || msgId == null || isCovered(msgId)) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        long burstStart = now;
+        Pending current = pendingByConversation.get(conversationId);
+        if (current != null) {
+            if (current.msgId.equals(msgId)) {
+                // 同一消息重新绑定（View复用），更新要执行的动作即可
+                current.action = action;
+                return true;
+            }
+            if (msgTime < current.msgTime) {
+                // 比等待中的消息更旧，直接覆盖
+                markCovered(msgId);
+                return false;
+            }
+            handler.removeCallbacks(current.timer);
+            markCovered(current.msgId);
+            burstStart = current.burstStart;
+            debugLog(TAG + ": 连发合并 conversation=" + conversationId + "，覆盖 msgId=" + current.msgId);
+        }
+
+        final Pending pending = new Pending(msgId, msgTime, burstStart, action);
+        pending.timer = () -> {
+            if (pendingByConversation.get(conversationId) == pending) {
+                pendingByConversation.remove(conversationId);
+            }
+            pending.action.run();
+        };
+        pendingByConversation.put(conversationId, pending);
+
+        long window = ConfigManager.getAiBurstWindow();
+        long deadline = burstStart + window * MAX_WAIT_FACTOR;
+        long delay = Math.max(0, Math.min(window, deadline - now));
+        handler.postDelayed(pending.timer, delay);
+        return true;
+    }
+
+    private static void markCovered(String msgId) {
+        coveredMsgIds.put(msgId, Boolean.TRUE);
+    }
+}
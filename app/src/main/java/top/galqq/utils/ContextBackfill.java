@@ -0,0 +1,383 @@
+package top.galqq.utils;
+
+import android.content.Context;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import de.robv.android.xposed.XposedBridge;
+import de.robv.android.xposed.XposedHelpers;
+import top.galqq.bridge.qqnt.ContactCompat;
+import top.galqq.bridge.qqnt.MsgServiceHelper;
+import top.galqq.config.ConfigManager;
+
+/**
+ * 冷会话上下文回填
+ *
+ * 功能：
+ * 1. 会话首次绑定消息（打开聊天）时，若上下文缓存（含磁盘）不足，
+ *    异步通过 QQNT 内核消息服务拉取该会话最近 N 条消息
+ * 2. 将内核 MsgRecord 规范化为 ChatMessage 写入 MessageContextManager（按msgId去重、按时间戳插入）
+ * 3. 每个会话每次进程只成功回填一次，失败后冷却 RETRY_COOLDOWN_MS 再重试
+ * 4. AI队列出队时若上下文不足，先推迟该请求，回填完成后再重新入队，使会话的第一条建议也有完整上下文
+ */
+public class ContextBackfill {
+
+    private static final String TAG = "GalQQ.ContextBackfill";
+
+    private static void debugLog(String message) {
+        try {
+            if (ConfigManager.isVerboseLogEnabled()) {
+                XposedBridge.log(message);
+            }
+        } catch (Throwable ignored) {}
+    }
+
+    // 内核回调超时
+    private static final long FETCH_TIMEOUT_MS = 5000;
+
+    // 回填失败后的重试冷却
+    private static final long RETRY_COOLDOWN_MS = 60 * 1000;
+
+    // 内核消息类型：灰字提示、文件、视频（与消息绑定时的过滤一致）
+    private static final int MSG_TYPE_GRAY_TIPS = 5;
+    private static final int MSG_TYPE_FILE = 3;
+    private static final int MSG_TYPE_VIDEO = 7;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "GalQQ-Backfill");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // 会话ID -> 回填状态
+    private static final Map<String, State> states = new ConcurrentHashMap<>();
+
+    private static class State {
+        final CountDownLatch done = new CountDownLatch(1);
+        final long startTime = System.currentTimeMillis();
+        volatile boolean success = false;
+        final List<Runnable> listeners = new ArrayList<>(); // 回填完成后执行（仅在锁内访问）
+    }
+
+    /**
+     * 会话有消息绑定时调用（不阻塞调用线程）
+     * 同一会话只在首次调用（或上次失败冷却结束后）真正发起回填
+     *
+     * @param context 上下文
+     * @param msgRecord 该会话中的任意一条内核消息（用于取 peerUid/chatType）
+     * @param conversationId 会话ID（peerUin）
+     */
+    public static void onConversationBound(Context context, Object msgRecord, String conversationId) {
+        if (context == null || msgRecord == null || conversationId == null
+                || !ConfigManager.isContextBackfillEnabled() || !ConfigManager.isContextEnabled()) {
+            return;
+        }
+        State existing = states.get(conversationId);
+        if (existing != null && (existing.success || existing.done.getCount() > 0
+                || System.currentTimeMillis() - existing.startTime < RETRY_COOLDOWN_MS)) {
+            return;
+        }
+
+        final String peerUid;
+        final int chatType;
+        try {
+            peerUid = String.valueOf(XposedHelpers.getObjectField(msgRecord, "peerUid"));
+            chatType = XposedHelpers.getIntField(msgRecord, "chatType");
+        } catch (Throwable t) {
+            debugLog(TAG + ": 无法获取peerUid/chatType: " + t.getMessage());
+            return;
+        }
+
+        State state = new State();
+        if (existing == null ? states.putIfAbsent(conversationId, state) != null
+                             : !states.replace(conversationId, existing, state)) {
+            return; // 其他线程已发起
+        }
+
+        final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        executor.execute(() -> run(appContext, conversationId, peerUid, chatType, state));
+    }
+
+    /**
+     * 会话的回填是否已成功完成（不阻塞）
+     */
+    public static boolean isBackfilled(String conversationId) {
+        State state = conversationId != null ? states.get(conversationId) : null;
+        return state != null && state.success;
+    }
+
+    /**
+     * 会话的回填进行中时，登记回填结束（无论成功与否）后要执行的操作
+     * 操作在回填线程上执行，应尽快返回
+     *
+     * @return 是否已登记；没有进行中的回填时返回false，操作不会被执行
+     */
+    public static boolean whenDone(String conversationId, Runnable action) {
+        State state = conversationId != null ? states.get(conversationId) : null;
+        if (state == null) {
+            return false;
+        }
+        synchronized (state) {
+            if (state.done.getCount() == 0) {
+                return false;
+            }
+            state.listeners.add(action);
+        }
+        return true;
+    }
+
+    /**
+     * 清除回填记录（会话上下文被清除后允许重新回填）
+     */
+    public static void reset(String conversationId) {
+        if (conversationId != null) {
+            states.remove(conversationId);
+        }
+    }
+
+    // ========== 内部方法 ==========
+
+    private static int targetCount() {
+        int count = ConfigManager.getContextMessageCount();
+        return Math.min(MessageContextManager.getMaxMessagesPerConversation(),
+                        count + PromptCompiler.windowSlack(count) + 1);
+    }
+
+    private static void run(Context context, String conversationId, String peerUid, int chatType, State state) {
+        try {
+            int target = targetCount();
+            // 先合并磁盘中保存的消息，已足够时不再访问内核
+            if (MessageContextManager.getContext(conversationId, target).size() >= target) {
+                state.success = true;
+                return;
+            }
+
+            List<?> records = fetchLatest(context, peerUid, chatType, target);
+            if (records == null) {
+                return;
+            }
+            long selfUin = AppRuntimeHelper.getLongAccountUin(context);
+            int added = 0;
+            for (Object record : records) {
+                if (addRecord(conversationId, record, selfUin)) {
+                    added++;
+                }
+            }
+            state.success = true;
+            debugLog(TAG + ": 回填 " + conversationId + " 完成，拉取 " + records.size() + " 条，新增 " + added + " 条");
+        } catch (Throwable t) {
+            debugLog(TAG + ": 回填 " + conversationId + " 失败: " + t.getMessage());
+        } finally {
+            state.done.countDown();
+            notifyListeners(state);
+        }
+    }
+
+    private static void notifyListeners(State state) {
+        List<Runnable> listeners;
+        synchronized (state) {
+            listeners = new ArrayList<>(state.listeners);
+            state.listeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (Throwable t) {
+                debugLog(TAG + ": 回填完成回调异常: " + t.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 通过内核消息服务拉取最近的消息
+     * 优先使用 getAioFirstViewLatestMsgs(peer, cnt, cb)，旧版本退回 getMsgs(peer, 0, cnt, true, cb)
+     *
+     * @return 内核 MsgRecord 列表，失败或超时返回null
+     */
+    private static List<?> fetchLatest(Context context, String peerUid, int chatType, int count) throws Exception {
+        Object app = AppRuntimeHelper.getAppRuntime(context);
+        if (app == null) {
+            debugLog(TAG + ": AppRuntime为空，跳过回填");
+            return null;
+        }
+        Object service = MsgServiceHelper.getKernelMsgServiceRaw(app, context);
+        if (service == null) {
+            return null;
+        }
+        // ContactCompat 按线程上下文类加载器查找内核类
+        Thread.currentThread().setContextClassLoader(context.getClassLoader());
+        Object contact = new ContactCompat(chatType, peerUid, "").toKernelObject();
+        if (contact == null) {
+            return null;
+        }
+
+        Method latest = findMethod(service, "getAioFirstViewLatestMsgs", 3);
+        Method getMsgs = latest == null ? findMethod(service, "getMsgs", 5) : null;
+        Method method = latest != null ? latest : getMsgs;
+        if (method == null) {
+            debugLog(TAG + ": 内核消息服务不支持拉取历史消息");
+            return null;
+        }
+
+        final Object[] result = new Object[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        Class<?> callbackType = method.getParameterTypes()[method.getParameterTypes().length - 1];
+        Object callback = Proxy.newProxyInstance(callbackType.getClassLoader(), new Class[]{callbackType},
+            (proxy, m, args) -> {
+                if ("onResult".equals(m.getName()) && args != null && args.length >= 3) {
+                    int code = args[0] instanceof Integer ? (Integer) args[0] : -1;
+                    if (code == 0 && args[2] instanceof List) {
+                        result[0] = args[2];
+                    } else {
+                        debugLog(TAG + ": 内核返回错误 code=" + code + ", msg=" + args[1]);
+                    }
+                    latch.countDown();
+                }
+                return null;
+            });
+
+        if (latest != null) {
+            latest.invoke(service, contact, count, callback);
+        } else {
+            getMsgs.invoke(service, contact, 0L, count, true, callback);
+        }
+        if (!latch.await(FETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            debugLog(TAG + ": 内核回调超时");
+            return null;
+        }
+        return (List<?>) result[0];
+    }
+
+    private static Method findMethod(Object service, String name, int paramCount) {
+        for (Method m : service.getClass().getMethods()) {
+            if (m.getName().equals(name) && m.getParameterTypes().length == paramCount
+                    && m.getParameterTypes()[paramCount - 1].isInterface()) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 将内核 MsgRecord 规范化为上下文消息（与消息绑定时的提取规则一致，图片以占位符表示）
+     *
+     * @return 是否新增到上下文
+     */
+    private static boolean addRecord(String conversationId, Object record, long selfUin) {
+        try {
+            int msgType = XposedHelpers.getIntField(record, "msgType");
+            if (msgType == MSG_TYPE_GRAY_TIPS || msgType == MSG_TYPE_FILE || msgType == MSG_TYPE_VIDEO) {
+                return false;
+            }
+            try {
+                if (msgType == 11 && XposedHelpers.getIntField(record, "subMsgType") == 7) {
+                    return false; // 转发聊天记录容器
+                }
+            } catch (Throwable ignored) {}
+
+            String senderUin = String.valueOf(XposedHelpers.getObjectField(record, "senderUin"));
+            if (!passFilter(senderUin)) {
+                return false;
+            }
+
+            String content = extractContent(record);
+            if (content.isEmpty()) {
+                return false;
+            }
+
+            boolean isSelf = XposedHelpers.getIntField(record, "sendType") == 1
+                    || (selfUin > 0 && senderUin.equals(String.valueOf(selfUin)));
+            String senderName = firstNonEmpty(record, "sendRemarkName", "sendNickName");
+            if (senderName == null) {
+                senderName = senderUin;
+            }
+            if (isSelf) {
+                senderName = senderName + "[我]";
+            }
+
+            String msgId = String.valueOf(XposedHelpers.getObjectField(record, "msgId"));
+            long msgTime = Long.parseLong(String.valueOf(XposedHelpers.getObjectField(record, "msgTime"))) * 1000L;
+
+            return MessageContextManager.addMessage(conversationId, senderName, senderUin, content, isSelf, msgId, msgTime, 0);
+        } catch (Throwable t) {
+            debugLog(TAG + ": 跳过无法解析的消息: " + t.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 提取文字内容，附加引用回复；图片以 [图片] 占位
+     */
+    private static String extractContent(Object record) {
+        List<?> elements = (List<?>) XposedHelpers.getObjectField(record, "elements");
+        if (elements == null || elements.isEmpty()) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder();
+        String reply = null;
+        for (Object element : elements) {
+            Object textElement = optField(element, "textElement");
+            if (textElement != null) {
+                Object value = optField(textElement, "content");
+                if (value != null) {
+                    text.append(value);
+                }
+                continue;
+            }
+            if (optField(element, "picElement") != null) {
+                text.append("[图片]");
+                continue;
+            }
+            Object replyElement = optField(element, "replyElement");
+            if (replyElement != null && reply == null) {
+                Object replyText = optField(replyElement, "sourceMsgText");
+                if (replyText != null && !String.valueOf(replyText).trim().isEmpty()) {
+                    Object replySender = optField(replyElement, "senderShowName");
+                    reply = " (回复 @" + (replySender != null ? replySender : "某人") + ": \"" + replyText + "\")";
+                }
+            }
+        }
+        String content = text.toString().trim();
+        if (!content.isEmpty() && reply != null) {
+            content = content + reply;
+        }
+        return content;
+    }
+
+    private static boolean passFilter(String senderUin) {
+        String filterMode = ConfigManager.getFilterMode();
+        if ("blacklist".equals(filterMode)) {
+            return !ConfigManager.isInBlacklist(senderUin);
+        } else if ("whitelist".equals(filterMode)) {
+            return ConfigManager.isInWhitelist(senderUin);
+        }
+        return true;
+    }
+
+    private static String firstNonEmpty(Object record, String... fields) {
+        for (String field : fields) {
+            Object value = optField(record, field);
+            if (value != null && !String.valueOf(value).trim().isEmpty()) {
+                return String.valueOf(value);
+            }
+        }
+        return null;
+    }
+
+    private static Object optField(Object obj, String field) {
+        try {
+            return XposedHelpers.getObjectField(obj, field);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+}
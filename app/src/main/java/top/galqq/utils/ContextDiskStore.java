@@ -0,0 +1,336 @@
+package top.galqq.utils;
+
+import com.tencent.mmkv.MMKV;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.robv.android.xposed.XposedBridge;
+import top.galqq.config.ConfigManager;
+import top.galqq.utils.MessageContextManager.ChatMessage;
+
+/**
+ * 会话上下文持久化存储
+ *
+ * 功能：
+ * 1. 使用独立的 MMKV 文件保存每个会话最近的消息（紧凑二进制格式），QQ重启后上下文依然可用
+ * 2. 每个会话最多保存 MessageContextManager 缓存上限条消息，单条内容超长时截断
+ * 3. 按最近写入时间 LRU 淘汰，最多保存 MAX_CONVERSATIONS 个会话
+ * 4. 写入异步批量进行：消息绑定只标记会话为脏，后台线程每 FLUSH_DELAY_MS 统一写盘
+ * 5. 同时保存会话的滚动摘要（ConversationSummarizer），随会话一起淘汰
+ */
+public class ContextDiskStore {
+
+    private static final String TAG = "GalQQ.ContextDiskStore";
+
+    private static void debugLog(String message) {
+        try {
+            if (ConfigManager.isVerboseLogEnabled()) {
+                XposedBridge.log(message);
+            }
+        } catch (Throwable ignored) {}
+    }
+
+    private static final String MMKV_ID = "galqq_context_store";
+
+    // 最多保存的会话数
+    private static final int MAX_CONVERSATIONS = 300;
+
+    // 单条消息内容最大保存长度（字符）
+    private static final int MAX_CONTENT_LENGTH = 2000;
+
+    // 批量写盘延迟
+    private static final long FLUSH_DELAY_MS = 2000;
+
+    // 存储格式版本
+    private static final int FORMAT_VERSION = 1;
+
+    // 存储键前缀：消息数据 / 最近写入时间 / 滚动摘要
+    private static final String PREFIX_MESSAGES = "m:";
+    private static final String PREFIX_ACCESS = "t:";
+    private static final String PREFIX_SUMMARY = "s:";
+
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "GalQQ-ContextStore");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private static MMKV sMmkv;
+
+    // 访问顺序索引：会话ID -> 最近写入时间（首次访问时从MMKV构建）
+    private static LinkedHashMap<String, Long> sIndex;
+
+    // 等待写盘的会话
+    private static final Set<String> dirty = new LinkedHashSet<>();
+    private static boolean flushScheduled = false;
+
+    /**
+     * 读取会话保存的消息（按时间顺序）
+     * @return 未保存过或读取失败时返回空列表
+     */
+    public static synchronized List<ChatMessage> load(String conversationId) {
+        if (conversationId == null || !ensureLoaded() || !sIndex.containsKey(conversationId)) {
+            return new ArrayList<>();
+        }
+        byte[] data = sMmkv.decodeBytes(PREFIX_MESSAGES + conversationId);
+        List<ChatMessage> messages = decode(data);
+        if (messages == null) {
+            removeEntry(conversationId);
+            return new ArrayList<>();
+        }
+        return messages;
+    }
+
+    /**
+     * 读取会话的滚动摘要
+     * @return 没有摘要时返回null
+     */
+    public static synchronized String loadSummary(String conversationId) {
+        if (conversationId == null || !ensureLoaded() || !sIndex.containsKey(conversationId)) {
+            return null;
+        }
+        return sMmkv.decodeString(PREFIX_SUMMARY + conversationId, null);
+    }
+
+    /**
+     * 保存会话的滚动摘要（会话消息已写盘时才保存，随会话一起淘汰）
+     */
+    public static synchronized void saveSummary(String conversationId, String summary) {
+        if (conversationId == null || !ensureLoaded() || !sIndex.containsKey(conversationId)) {
+            return;
+        }
+        sMmkv.encode(PREFIX_SUMMARY + conversationId, summary);
+    }
+
+    /**
+     * 标记会话需要写盘（不阻塞调用线程）
+     */
+    public static void markDirty(String conversationId) {
+        if (conversationId == null) {
+            return;
+        }
+        synchronized (dirty) {
+            dirty.add(conversationId);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        writer.schedule(ContextDiskStore::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 立即写入会话消息（内存中的会话被淘汰时由后台线程调用）
+     */
+    public static void saveNow(String conversationId, List<ChatMessage> messages) {
+        try {
+            save(conversationId, messages);
+        } catch (Throwable t) {
+            debugLog(TAG + ": 写入失败 " + conversationId + ": " + t.getMessage());
+        }
+    }
+
+    /**
+     * 删除会话保存的消息
+     */
+    public static void remove(String conversationId) {
+        if (conversationId == null) {
+            return;
+        }
+        writer.execute(() -> {
+            synchronized (ContextDiskStore.class) {
+                if (ensureLoaded()) {
+                    removeEntry(conversationId);
+                }
+            }
+        });
+    }
+
+    /**
+     * 清空所有保存的消息
+     */
+    public static void clear() {
+        writer.execute(() -> {
+            synchronized (ContextDiskStore.class) {
+                if (ensureLoaded()) {
+                    sMmkv.clearAll();
+                    sIndex.clear();
+                    debugLog(TAG + ": 已清空");
+                }
+            }
+        });
+    }
+
+    // ========== 内部方法 ==========
+
+    /**
+     * 批量写盘：对每个脏会话取内存快照并编码
+     */
+    private static void flush() {
+        List<String> batch;
+        synchronized (dirty) {
+            batch = new ArrayList<>(dirty);
+            dirty.clear();
+            flushScheduled = false;
+        }
+        int written = 0;
+        for (String conversationId : batch) {
+            try {
+                List<ChatMessage> snapshot = MessageContextManager.snapshotForDisk(conversationId);
+                if (snapshot == null) {
+                    continue; // 会话已被清除
+                }
+                if (save(conversationId, snapshot)) {
+                    written++;
+                }
+            } catch (Throwable t) {
+                debugLog(TAG + ": 写入失败 " + conversationId + ": " + t.getMessage());
+            }
+        }
+        debugLog(TAG + ": 批量写入 " + written + "/" + batch.size() + " 个会话");
+    }
+
+    private static synchronized boolean save(String conversationId, List<ChatMessage> messages) throws IOException {
+        if (!ensureLoaded()) {
+            return false;
+        }
+        if (messages.isEmpty()) {
+            removeEntry(conversationId);
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        sMmkv.encode(PREFIX_MESSAGES + conversationId, encode(messages));
+        sMmkv.encode(PREFIX_ACCESS + conversationId, now);
+        sIndex.remove(conversationId);
+        sIndex.put(conversationId, now);
+
+        Iterator<Map.Entry<String, Long>> it = sIndex.entrySet().iterator();
+        while (sIndex.size() > MAX_CONVERSATIONS && it.hasNext()) {
+            String eldest = it.next().getKey();
+            it.remove();
+            sMmkv.removeValuesForKeys(new String[]{PREFIX_MESSAGES + eldest, PREFIX_ACCESS + eldest, PREFIX_SUMMARY + eldest});
+        }
+        return true;
+    }
+
+    private static boolean ensureLoaded() {
+        if (sIndex != null) {
+            return true;
+        }
+        try {
+            MMKV mmkv = MMKV.mmkvWithID(MMKV_ID, MMKV.MULTI_PROCESS_MODE);
+            if (mmkv == null) {
+                return false;
+            }
+
+            // 按写入时间升序建立LRU索引
+            List<Map.Entry<String, Long>> entries = new ArrayList<>();
+            String[] keys = mmkv.allKeys();
+            if (keys != null) {
+                for (String k : keys) {
+                    if (k.startsWith(PREFIX_ACCESS)) {
+                        String key = k.substring(PREFIX_ACCESS.length());
+                        entries.add(new java.util.AbstractMap.SimpleEntry<>(key, mmkv.decodeLong(k, 0)));
+                    }
+                }
+            }
+            java.util.Collections.sort(entries, (a, b) -> Long.compare(a.getValue(), b.getValue()));
+
+            LinkedHashMap<String, Long> index = new LinkedHashMap<>(Math.max(16, entries.size() * 2));
+            for (Map.Entry<String, Long> e : entries) {
+                index.put(e.getKey(), e.getValue());
+            }
+
+            sMmkv = mmkv;
+            sIndex = index;
+            debugLog(TAG + ": 加载索引完成，共 " + index.size() + " 个会话");
+            return true;
+        } catch (Throwable t) {
+            debugLog(TAG + ": 初始化失败: " + t.getMessage());
+            return false;
+        }
+    }
+
+    private static void removeEntry(String conversationId) {
+        sIndex.remove(conversationId);
+        sMmkv.removeValuesForKeys(new String[]{PREFIX_MESSAGES + conversationId, PREFIX_ACCESS + conversationId,
+                                               PREFIX_SUMMARY + conversationId});
+    }
+
+    /**
+     * 编码格式：版本、条数，之后每条消息依次为
+     * 发送人名称、发送人QQ号(可空)、内容、是否自己、时间戳、消息ID(可空)、图片数量
+     */
+    private static byte[] encode(List<ChatMessage> messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(messages.size() * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FORMAT_VERSION);
+        out.writeShort(messages.size());
+        for (ChatMessage msg : messages) {
+            out.writeUTF(msg.senderName != null ? msg.senderName : "");
+            writeNullable(out, msg.senderUin);
+            String content = msg.content != null ? msg.content : "";
+            out.writeUTF(content.length() > MAX_CONTENT_LENGTH ? content.substring(0, MAX_CONTENT_LENGTH) : content);
+            out.writeBoolean(msg.isSelf);
+            out.writeLong(msg.timestamp);
+            writeNullable(out, msg.msgId);
+            out.writeShort(msg.imageCount);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static List<ChatMessage> decode(byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readByte() != FORMAT_VERSION) {
+                return null;
+            }
+            int count = in.readUnsignedShort();
+            List<ChatMessage> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String senderName = in.readUTF();
+                String senderUin = readNullable(in);
+                String content = in.readUTF();
+                boolean isSelf = in.readBoolean();
+                long timestamp = in.readLong();
+                String msgId = readNullable(in);
+                int imageCount = in.readUnsignedShort();
+                messages.add(new ChatMessage(senderName, senderUin, content, isSelf, timestamp, msgId, imageCount));
+            }
+            return messages;
+        } catch (IOException e) {
+            debugLog(TAG + ": 数据损坏: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,411 @@
+package top.galqq.utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.robv.android.xposed.XposedBridge;
+import top.galqq.config.ConfigManager;
+import top.galqq.utils.MessageContextManager.ChatMessage;
+
+/**
+ * 会话滚动摘要
+ *
+ * 功能：
+ * 1. AI队列空闲时，把已移出上下文窗口（或被缓存淘汰）的消息压缩进每个会话的滚动摘要
+ * 2. 本地抽取式摘要，不额外调用AI：按内容长度、与其他消息的话题重合度（汉字二元组）、
+ *    是否提问打分，保留得分最高的 MAX_ITEMS 条；旧条目每轮衰减，逐步让位给新话题
+ * 3. 同时统计时间范围、消息总数和主要参与者
+ * 4. 摘要与上下文一起保存在 ContextDiskStore 中，请求时作为单独一条消息放在系统提示词之后
+ */
+public class ConversationSummarizer {
+
+    private static final String TAG = "GalQQ.Summarizer";
+
+    private static void debugLog(String message) {
+        try {
+            if (ConfigManager.isVerboseLogEnabled()) {
+                XposedBridge.log(message);
+            }
+        } catch (Throwable ignored) {}
+    }
+
+    // 摘要保留的关键消息条数
+    private static final int MAX_ITEMS = 8;
+
+    // 每条关键消息保留的最大字符数
+    private static final int MAX_ITEM_LENGTH = 50;
+
+    // 摘要中列出的参与者数
+    private static final int MAX_PARTICIPANTS = 4;
+
+    // 旧条目每轮的得分衰减
+    private static final double DECAY = 0.85;
+
+    // 空闲检查间隔
+    private static final long IDLE_CHECK_MS = 30 * 1000;
+
+    // 过短或无信息量的消息
+    private static final Set<String> TRIVIAL = new HashSet<>(java.util.Arrays.asList(
+        "哈哈", "哈哈哈", "哈哈哈哈", "嗯", "嗯嗯", "好", "好的", "好滴", "ok", "OK", "收到", "哦", "噢", "啊",
+        "6", "666", "？", "?", "。", "行", "可以", "对", "是的", "谢谢", "[图片]"));
+
+    private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("MM-dd HH:mm", Locale.getDefault());
+        }
+    };
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "GalQQ-Summarizer");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+    private static volatile boolean started = false;
+
+    // 会话ID -> 摘要（首次访问时从磁盘加载）
+    private static final Map<String, Summary> summaries = new ConcurrentHashMap<>();
+
+    // 有新消息、等待摘要的会话
+    private static final Set<String> changed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 摘要中的一条关键消息
+     */
+    private static class Item {
+        final long timestamp;
+        final String sender;
+        final String text;
+        double score;
+
+        Item(long timestamp, String sender, String text, double score) {
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.text = text;
+            this.score = score;
+        }
+    }
+
+    /**
+     * 会话摘要（只在摘要线程修改，rendered 供请求线程读取）
+     */
+    private static class Summary {
+        long watermark;        // 已摘要的最新消息时间戳
+        long firstTime;
+        long lastTime;
+        int total;
+        final LinkedHashMap<String, Integer> participants = new LinkedHashMap<>();
+        final List<Item> items = new ArrayList<>();
+        volatile String rendered = "";
+    }
+
+    /**
+     * 会话有新消息时调用（开销很小，可在消息绑定路径调用）
+     */
+    public static void markChanged(String conversationId) {
+        if (conversationId == null) {
+            return;
+        }
+        changed.add(conversationId);
+        if (!started) {
+            synchronized (ConversationSummarizer.class) {
+                if (!started) {
+                    started = true;
+                    scheduler.scheduleWithFixedDelay(ConversationSummarizer::runIdlePass,
+                            IDLE_CHECK_MS, IDLE_CHECK_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取要随请求发送的会话摘要（单独作为一条消息，放在系统提示词之后、上下文之前）
+     * @return 未启用或没有摘要时返回null
+     */
+    public static String getPromptSummary(String conversationId) {
+        if (conversationId == null || !ConfigManager.isContextEnabled() || !ConfigManager.isContextSummaryEnabled()) {
+            return null;
+        }
+        String summary = getSummary(conversationId);
+        return summary.isEmpty() ? null : summary;
+    }
+
+    /**
+     * 获取会话摘要文本
+     * @return 没有摘要时返回空字符串
+     */
+    public static String getSummary(String conversationId) {
+        Summary summary = loadSummary(conversationId);
+        return summary != null ? summary.rendered : "";
+    }
+
+    /**
+     * 清除会话摘要（磁盘部分由 ContextDiskStore 一并删除）
+     */
+    public static void clear(String conversationId) {
+        if (conversationId != null) {
+            summaries.remove(conversationId);
+            changed.remove(conversationId);
+        }
+    }
+
+    public static void clearAll() {
+        summaries.clear();
+        changed.clear();
+    }
+
+    // ========== 内部方法 ==========
+
+    private static Summary loadSummary(String conversationId) {
+        Summary summary = summaries.get(conversationId);
+        if (summary != null) {
+            return summary;
+        }
+        summary = fromJson(ContextDiskStore.loadSummary(conversationId));
+        if (summary == null) {
+            return null;
+        }
+        Summary existing = summaries.putIfAbsent(conversationId, summary);
+        return existing != null ? existing : summary;
+    }
+
+    /**
+     * 空闲时处理所有有新消息的会话
+     */
+    private static void runIdlePass() {
+        try {
+            // 关闭摘要时缓存不再保留被淘汰的消息
+            boolean enabled = ConfigManager.isContextEnabled() && ConfigManager.isContextSummaryEnabled();
+            MessageContextManager.setKeepEvicted(enabled);
+            if (changed.isEmpty() || !enabled) {
+                return;
+            }
+            int count = ConfigManager.getContextMessageCount();
+            runIdlePass(AiRateLimitedQueue::isIdle, count + PromptCompiler.windowSlack(count));
+        } catch (Throwable t) {
+            debugLog(TAG + ": 摘要失败: " + t.getMessage());
+        }
+    }
+
+    /**
+     * @param idle AI队列是否空闲（每个会话处理前重新检查）
+     * @param windowSize 上下文窗口大小，窗口之外的消息并入摘要
+     */
+    static void runIdlePass(java.util.function.BooleanSupplier idle, int windowSize) throws Exception {
+        List<String> batch = new ArrayList<>(changed);
+        for (String conversationId : batch) {
+            if (!idle.getAsBoolean()) {
+                return; // 有新请求，剩余会话留到下次
+            }
+            changed.remove(conversationId);
+            summarize(conversationId, windowSize);
+        }
+    }
+
+    private static void summarize(String conversationId, int windowSize) throws Exception {
+        Summary summary = loadSummary(conversationId);
+        long watermark = summary != null ? summary.watermark : 0;
+
+        // 候选：被缓存淘汰的消息 + 缓存中已在窗口之外的消息（都只取水位之后的）
+        List<ChatMessage> candidates = new ArrayList<>();
+        for (ChatMessage msg : MessageContextManager.drainEvicted(conversationId)) {
+            if (msg.timestamp > watermark) {
+                candidates.add(msg);
+            }
+        }
+        List<ChatMessage> all = MessageContextManager.snapshotForDisk(conversationId);
+        if (all != null) {
+            for (int i = 0; i < all.size() - windowSize; i++) {
+                if (all.get(i).timestamp > watermark) {
+                    candidates.add(all.get(i));
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        Collections.sort(candidates, (a, b) -> Long.compare(a.timestamp, b.timestamp));
+
+        if (summary == null) {
+            summary = new Summary();
+            summary.firstTime = candidates.get(0).timestamp;
+            summaries.put(conversationId, summary);
+        }
+        merge(summary, candidates);
+        summary.rendered = render(summary);
+        ContextDiskStore.saveSummary(conversationId, toJson(summary).toString());
+        debugLog(TAG + ": " + conversationId + " 摘要新增 " + candidates.size() + " 条，累计 " + summary.total + " 条");
+    }
+
+    /**
+     * 将新移出窗口的消息并入摘要
+     */
+    private static void merge(Summary summary, List<ChatMessage> messages) {
+        // 话题重合度：统计汉字/字母二元组在本批消息中出现的消息数
+        List<String> texts = new ArrayList<>(messages.size());
+        Map<String, Integer> bigramFreq = new HashMap<>();
+        for (ChatMessage msg : messages) {
+            String text = normalize(msg.content);
+            texts.add(text);
+            for (String bigram : bigrams(text)) {
+                Integer n = bigramFreq.get(bigram);
+                bigramFreq.put(bigram, n == null ? 1 : n + 1);
+            }
+        }
+
+        for (Item item : summary.items) {
+            item.score *= DECAY;
+        }
+
+        for (int i = 0; i < messages.size(); i++) {
+            ChatMessage msg = messages.get(i);
+            String sender = msg.senderName != null ? msg.senderName : "未知";
+            Integer n = summary.participants.get(sender);
+            summary.participants.put(sender, n == null ? 1 : n + 1);
+            summary.total++;
+            summary.lastTime = Math.max(summary.lastTime, msg.timestamp);
+            summary.watermark = Math.max(summary.watermark, msg.timestamp);
+
+            String text = texts.get(i);
+            if (text.length() < 4 || TRIVIAL.contains(text)) {
+                continue;
+            }
+            Set<String> grams = bigrams(text);
+            double overlap = 0;
+            for (String bigram : grams) {
+                overlap += bigramFreq.get(bigram) - 1;
+            }
+            double topical = grams.isEmpty() ? 0 : Math.min(1.0, overlap / grams.size());
+            double score = 0.4 * Math.min(text.length(), 40) / 40.0
+                    + 0.4 * topical
+                    + (text.contains("?") || text.contains("？") ? 0.2 : 0)
+                    + (msg.isSelf ? 0.1 : 0);
+            String shortText = text.length() > MAX_ITEM_LENGTH ? text.substring(0, MAX_ITEM_LENGTH) + "…" : text;
+            summary.items.add(new Item(msg.timestamp, sender, shortText, score));
+        }
+
+        // 保留得分最高的条目，输出时按时间排序
+        if (summary.items.size() > MAX_ITEMS) {
+            Collections.sort(summary.items, (a, b) -> Double.compare(b.score, a.score));
+            summary.items.subList(MAX_ITEMS, summary.items.size()).clear();
+        }
+        Collections.sort(summary.items, (a, b) -> Long.compare(a.timestamp, b.timestamp));
+    }
+
+    private static String render(Summary summary) {
+        if (summary.total == 0) {
+            return "";
+        }
+        List<Map.Entry<String, Integer>> people = new ArrayList<>(summary.participants.entrySet());
+        Collections.sort(people, (a, b) -> Integer.compare(b.getValue(), a.getValue()));
+
+        StringBuilder sb = new StringBuilder("【较早聊天摘要】");
+        SimpleDateFormat format = TIME_FORMAT.get();
+        sb.append(format.format(new Date(summary.firstTime))).append(" ~ ")
+          .append(format.format(new Date(summary.lastTime)))
+          .append("，共").append(summary.total).append("条，主要参与者：");
+        for (int i = 0; i < Math.min(MAX_PARTICIPANTS, people.size()); i++) {
+            if (i > 0) sb.append("、");
+            sb.append(people.get(i).getKey()).append("(").append(people.get(i).getValue()).append(")");
+        }
+        for (Item item : summary.items) {
+            sb.append("\n- ").append(item.sender).append(": ").append(item.text);
+        }
+        sb.append("\n（以上为已移出上下文的较早消息摘要，仅供参考）");
+        return sb.toString();
+    }
+
+    private static String normalize(String content) {
+        if (content == null) {
+            return "";
+        }
+        return PromptCompiler.stripImageInfo(content).replace('\n', ' ').trim();
+    }
+
+    private static Set<String> bigrams(String text) {
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i + 1 < text.length(); i++) {
+            char a = text.charAt(i);
+            char b = text.charAt(i + 1);
+            if (Character.isLetterOrDigit(a) && Character.isLetterOrDigit(b)) {
+                result.add(text.substring(i, i + 2));
+            }
+        }
+        return result;
+    }
+
+    private static JSONObject toJson(Summary summary) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("watermark", summary.watermark);
+        json.put("firstTime", summary.firstTime);
+        json.put("lastTime", summary.lastTime);
+        json.put("total", summary.total);
+        JSONObject people = new JSONObject();
+        for (Map.Entry<String, Integer> e : summary.participants.entrySet()) {
+            people.put(e.getKey(), e.getValue());
+        }
+        json.put("participants", people);
+        JSONArray items = new JSONArray();
+        for (Item item : summary.items) {
+            JSONObject obj = new JSONObject();
+            obj.put("t", item.timestamp);
+            obj.put("s", item.sender);
+            obj.put("x", item.text);
+            obj.put("w", item.score);
+            items.put(obj);
+        }
+        json.put("items", items);
+        return json;
+    }
+
+    private static Summary fromJson(String data) {
+        if (data == null || data.isEmpty()) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(data);
+            Summary summary = new Summary();
+            summary.watermark = json.optLong("watermark");
+            summary.firstTime = json.optLong("firstTime");
+            summary.lastTime = json.optLong("lastTime");
+            summary.total = json.optInt("total");
+            JSONObject people = json.optJSONObject("participants");
+            if (people != null) {
+                java.util.Iterator<String> keys = people.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    summary.participants.put(key, people.optInt(key));
+                }
+            }
+            JSONArray items = json.optJSONArray("items");
+            if (items != null) {
+                for (int i = 0; i < items.length(); i++) {
+                    JSONObject obj = items.getJSONObject(i);
+                    summary.items.add(new Item(obj.optLong("t"), obj.optString("s"), obj.optString("x"), obj.optDouble("w")));
+                }
+            }
+            summary.rendered = render(summary);
+            return summary;
+        } catch (Exception e) {
+            debugLog(TAG + ": 摘要数据损坏: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package top.galqq.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * 对冲请求 + 故障转移
+ *
+ * 按顺序向多个端点发起同一请求：
+ * 1. 先请求第一个端点；超过该端点的 p95 延迟仍未响应时，向下一个端点发起对冲请求（同时最多 MAX_PARALLEL 个）
+ * 2. 某个端点失败（网络错误、5xx）时立即转向下一个端点
+ * 3. 第一个返回2xx响应的端点胜出，其余请求被取消
+ *    返回4xx（请求格式不被接受、鉴权失败、429限流等）时同样直接结束：换端点无法解决，
+ *    不计入端点失败，429由AI队列按原有的限流退避重试
+ * 4. 所有端点都失败时，把最后一个错误（或错误响应）交给回调
+ *
+ * 只有一个端点时与直接 enqueue 完全相同。
+ */
+public class HedgedCall {
+
+    private static final String TAG = "GalQQ.HedgedCall";
+
+    // 同时进行的最大请求数（主请求 + 1个对冲请求）
+    private static final int MAX_PARALLEL = 2;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "GalQQ-Hedge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * 为指定端点构建请求
+     */
+    public interface RequestFactory {
+        Request create(AiEndpointManager.Endpoint endpoint) throws Exception;
+    }
+
+    /**
+     * 最终结果回调（在OkHttp线程调用，只调用一次）
+     */
+    public interface EndpointCallback {
+        /**
+         * 胜出端点的响应；所有端点都失败时为最后一个错误响应
+         */
+        void onResponse(AiEndpointManager.Endpoint endpoint, Call call, Response response) throws IOException;
+
+        void onFailure(AiEndpointManager.Endpoint endpoint, Call call, IOException e);
+
+        /**
+         * 每发起一个HTTP请求调用一次（用于外部取消）
+         */
+        default void onCallStarted(Call call) {}
+    }
+
+    private static class Attempt {
+        final AiEndpointManager.Endpoint endpoint;
+        final Call call;
+        final long startTime;
+
+        Attempt(AiEndpointManager.Endpoint endpoint, Call call) {
+            this.endpoint = endpoint;
+            this.call = call;
+            this.startTime = System.currentTimeMillis();
+        }
+    }
+
+    private final OkHttpClient client;
+    private final List<AiEndpointManager.Endpoint> endpoints;
+    private final RequestFactory factory;
+    private final EndpointCallback callback;
+
+    private final List<Attempt> inFlight = new ArrayList<>();
+    private int nextIndex = 0;
+    private boolean decided = false;
+    private ScheduledFuture<?> hedgeTimer;
+
+    private HedgedCall(OkHttpClient client, List<AiEndpointManager.Endpoint> endpoints,
+                       RequestFactory factory, EndpointCallback callback) {
+        this.client = client;
+        this.endpoints = endpoints;
+        this.factory = factory;
+        this.callback = callback;
+    }
+
+    /**
+     * 发起请求
+     * @param endpoints 按优先顺序排列的端点（至少一个）
+     */
+    public static void enqueue(OkHttpClient client, List<AiEndpointManager.Endpoint> endpoints,
+                               RequestFactory factory, EndpointCallback callback) throws Exception {
+        HedgedCall hedged = new HedgedCall(client, endpoints, factory, callback);
+        AiEndpointManager.Endpoint primary = endpoints.get(0);
+        synchronized (hedged) {
+            // 第一个端点的请求构建失败直接抛出，由调用方按原有逻辑处理
+            hedged.nextIndex = 1;
+            hedged.launch(factory.create(primary), primary);
+        }
+    }
+
+    // ========== 内部方法 ==========
+
+    /**
+     * 发起下一个端点的请求（需持有锁）
+     * @return 是否成功发起
+     */
+    private boolean launchNext() {
+        while (!decided && nextIndex < endpoints.size() && !isCancelledExternally()) {
+            AiEndpointManager.Endpoint endpoint = endpoints.get(nextIndex++);
+            try {
+                launch(factory.create(endpoint), endpoint);
+                return true;
+            } catch (Exception e) {
+                Log.w(TAG, "构建请求失败，跳过端点 " + endpoint + ": " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private void launch(Request request, AiEndpointManager.Endpoint endpoint) {
+        Call call = client.newCall(request);
+        Attempt attempt = new Attempt(endpoint, call);
+        inFlight.add(attempt);
+        callback.onCallStarted(call);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                onAttemptFailure(attempt, e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                onAttemptResponse(attempt, response);
+            }
+        });
+        scheduleHedge(endpoint);
+    }
+
+    private void scheduleHedge(AiEndpointManager.Endpoint endpoint) {
+        if (hedgeTimer != null) {
+            hedgeTimer.cancel(false);
+            hedgeTimer = null;
+        }
+        if (nextIndex >= endpoints.size()) {
+            return;
+        }
+        long delay = AiEndpointManager.getHedgeDelay(endpoint);
+        hedgeTimer = scheduler.schedule(this::onHedgeTimer, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void onHedgeTimer() {
+        hedgeTimer = null;
+        if (decided || inFlight.size() >= MAX_PARALLEL) {
+            return;
+        }
+        Log.d(TAG, "请求超过p95延迟未响应，发起对冲请求");
+        launchNext();
+    }
+
+    /**
+     * 外部取消（视图复用等）：仍在进行中的请求被取消且尚未决出结果
+     */
+    private boolean isCancelledExternally() {
+        for (Attempt attempt : inFlight) {
+            if (attempt.call.isCanceled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void onAttemptFailure(Attempt attempt, IOException e) {
+        synchronized (this) {
+            inFlight.remove(attempt);
+            if (decided) {
+                return; // 已有胜出者，本请求是被取消的对冲请求
+            }
+            if (attempt.call.isCanceled()) {
+                // 外部取消：取消其余请求，直接交给回调
+                AiEndpointManager.recordCancelled(attempt.endpoint);
+                finish(null);
+            } else {
+                AiEndpointManager.recordFailure(attempt.endpoint);
+                Log.w(TAG, "端点 " + attempt.endpoint + " 请求失败: " + e.getMessage());
+                if (launchNext() || !inFlight.isEmpty()) {
+                    return; // 等待其他端点
+                }
+                finish(null);
+            }
+        }
+        callback.onFailure(attempt.endpoint, attempt.call, e);
+    }
+
+    private void onAttemptResponse(Attempt attempt, Response response) throws IOException {
+        synchronized (this) {
+            inFlight.remove(attempt);
+            if (decided) {
+                response.close();
+                return;
+            }
+            if (response.isSuccessful()) {
+                AiEndpointManager.recordSuccess(attempt.endpoint, System.currentTimeMillis() - attempt.startTime);
+                if (attempt.endpoint != endpoints.get(0)) {
+                    Log.d(TAG, "由备用端点 " + attempt.endpoint + " 返回结果");
+                }
+                finish(attempt);
+            } else if (isClientError(response.code())) {
+                AiEndpointManager.recordClientError(attempt.endpoint);
+                Log.w(TAG, "端点 " + attempt.endpoint + " 返回 HTTP " + response.code() + "，不转移");
+                finish(attempt);
+            } else {
+                AiEndpointManager.recordFailure(attempt.endpoint);
+                Log.w(TAG, "端点 " + attempt.endpoint + " 返回 HTTP " + response.code());
+                if (launchNext() || !inFlight.isEmpty()) {
+                    response.close();
+                    return;
+                }
+                finish(attempt);
+            }
+        }
+        callback.onResponse(attempt.endpoint, attempt.call, response);
+    }
+
+    /**
+     * 4xx（408请求超时除外）是请求本身的问题或限流，不是端点故障
+     */
+    private static boolean isClientError(int code) {
+        return code >= 400 && code < 500 && code != 408;
+    }
+
+    /**
+     * 决出结果：取消其余请求和对冲定时器（需持有锁）
+     */
+    private void finish(Attempt winner) {
+        decided = true;
+        if (hedgeTimer != null) {
+            hedgeTimer.cancel(false);
+            hedgeTimer = null;
+        }
+        for (Attempt other : inFlight) {
+            if (other != winner) {
+                other.call.cancel();
+                AiEndpointManager.recordCancelled(other.endpoint);
+            }
+        }
+        inFlight.clear();
+    }
+}
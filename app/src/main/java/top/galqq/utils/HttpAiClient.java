@@ -317,6 +317,17 @@ public class HttpAiClient {
     public interface AiCallback {
         void onSuccess(List<String> options);
         void onFailure(Exception e);
+
+        /**
+         * 流式输出模式下，每解析出一个完整选项回调一次（在OkHttp线程回调，默认忽略）
+         * @param options 截至目前已完成的选项（不足3个）
+         */
+        default void onPartialOptions(List<String> options) {}
+
+        /**
+         * HTTP请求已创建（用于外部取消进行中的请求，默认忽略）
+         */
+        default void onCallStarted(Call call) {}
     }
 
     /**
@@ -330,6 +341,41 @@ public class HttpAiClient {
         void onAllRetriesFailed(Runnable retryAction);
     }
 
+    /**
+     * 批量模式中的一条待生成选项的消息
+     */
+    public static class BatchItem {
+        public final String tag;           // 消息标签（返回JSON的键）
+        public final String userMessage;   // 消息内容
+        public final String senderName;    // 发送人昵称
+        public final long timestamp;       // 消息时间戳
+        public final String senderUin;     // 发送者QQ号（用于好感度，可为null）
+
+        public BatchItem(String tag, String userMessage, String senderName, long timestamp, String senderUin) {
+            this.tag = tag;
+            this.userMessage = userMessage;
+            this.senderName = senderName;
+            this.timestamp = timestamp;
+            this.senderUin = senderUin;
+        }
+    }
+
+    /**
+     * 批量模式回调
+     */
+    public interface BatchCallback {
+        /**
+         * @param optionsByTag 消息标签 -> 选项（只包含解析出至少3个选项的消息）
+         */
+        void onSuccess(java.util.Map<String, List<String>> optionsByTag);
+        void onFailure(Exception e);
+
+        /**
+         * HTTP请求已创建（默认忽略）
+         */
+        default void onCallStarted(Call call) {}
+    }
+
     /**
      * 获取AI生成的回复选项（无上下文和元数据，向后兼容）
      */
@@ -380,6 +426,16 @@ public class HttpAiClient {
                 callback.onSuccess(options);
             }
 
+            @Override
+            public void onPartialOptions(List<String> options) {
+                callback.onPartialOptions(options);
+            }
+
+            @Override
+            public void onCallStarted(Call call) {
+                callback.onCallStarted(call);
+            }
+
             @Override
             public void onFailure(Exception e) {
                 // 检查是否是格式错误（可重试的错误）
@@ -448,18 +504,19 @@ public class HttpAiClient {
     }
     
     /**
-     * 获取AI生成的回复选项（带发送者QQ，静默模式）
-     * 用于队列重试场景，支持好感度
+     * 获取AI生成的回复选项（带会话ID、发送者QQ，静默模式）
+     * 用于队列重试场景，支持好感度和会话摘要
      * 
+     * @param conversationId 会话ID（用于会话摘要和上下文图片，可为null）
      * @param senderUin 发送者QQ号（用于获取好感度）
      */
     public static void fetchOptionsSilent(Context context, String userMessage,
                                     String currentSenderName, long currentTimestamp,
                                     List<top.galqq.utils.MessageContextManager.ChatMessage> contextMessages,
-                                    String senderUin,
+                                    String conversationId, String senderUin,
                                     AiCallback callback) {
         fetchOptionsInternal(context, userMessage, currentSenderName, currentTimestamp, 
-                            contextMessages, null, null, null, senderUin, callback, true);
+                            contextMessages, null, null, conversationId, senderUin, callback, true);
     }
     
     /**
@@ -496,19 +553,20 @@ public class HttpAiClient {
     }
     
     /**
-     * 获取AI生成的回复选项（带自定义提示词、发送者QQ，静默模式）
-     * 用于队列重试场景，支持好感度
+     * 获取AI生成的回复选项（带自定义提示词、会话ID、发送者QQ，静默模式）
+     * 用于队列重试场景，支持好感度和会话摘要
      * 
+     * @param conversationId 会话ID（用于会话摘要和上下文图片，可为null）
      * @param senderUin 发送者QQ号（用于获取好感度）
      */
     public static void fetchOptionsWithPromptSilent(Context context, String userMessage,
                                     String currentSenderName, long currentTimestamp,
                                     List<top.galqq.utils.MessageContextManager.ChatMessage> contextMessages,
                                     String customPrompt,
-                                    String senderUin,
+                                    String conversationId, String senderUin,
                                     AiCallback callback) {
         fetchOptionsInternal(context, userMessage, currentSenderName, currentTimestamp, 
-                            contextMessages, customPrompt, null, null, senderUin, callback, true);
+                            contextMessages, customPrompt, null, conversationId, senderUin, callback, true);
     }
     
     /**
@@ -1078,264 +1136,46 @@ public class HttpAiClient {
                 jsonBody.put("reasoning_effort", reasoningEffort);
                 Log.d(TAG, "启用思考模式: reasoning_effort=" + reasoningEffort);
             }
-
-            JSONArray messages = new JSONArray();
             
-            // 系统提示词
+            // 结构化输出：支持的服务商直接返回JSON，减少格式错误重试
+            final StructuredOutput.Mode outputMode = StructuredOutput.getMode(provider, model, false);
+            StructuredOutput.apply(jsonBody, outputMode);
+            
+            // 流式输出：选项边生成边回调，凑够3个后提前结束
+            final boolean streamEnabled = ConfigManager.isAiStreamEnabled();
+            if (streamEnabled) {
+                jsonBody.put("stream", true);
+                // 流式响应默认不带usage，需显式请求在结束前返回一条用量数据
+                JSONObject streamOptions = new JSONObject();
+                streamOptions.put("include_usage", true);
+                jsonBody.put("stream_options", streamOptions);
+            }
+
+            // 系统提示词（保持不变），已移出上下文窗口的较早消息摘要单独作为一条消息
             JSONObject sysMsg = new JSONObject();
             sysMsg.put("role", "system");
             sysMsg.put("content", sysPrompt);
-            messages.put(sysMsg);
+            String summary = ConversationSummarizer.getPromptSummary(conversationId);
+            JSONObject summaryMsg = buildSummaryMessage(summary);
 
-            // 添加历史上下文（如果有）
-            if (contextMessages != null && !contextMessages.isEmpty()) {
-                // 创建时间格式化器
-                java.text.SimpleDateFormat timeFormat = new java.text.SimpleDateFormat("HH:mm:ss", java.util.Locale.getDefault());
-                
-                // 检查是否启用上下文图片识别（不再要求必须启用外挂AI）
-                boolean contextImageEnabled = ConfigManager.isContextImageRecognitionEnabled() 
-                                            && ConfigManager.isImageRecognitionEnabled()
-                                            && conversationId != null;
-                
-                for (top.galqq.utils.MessageContextManager.ChatMessage msg : contextMessages) {
-                    JSONObject ctxMsg = new JSONObject();
-                    // 对方的消息作为"user"，自己的消息作为"assistant"
-                    ctxMsg.put("role", msg.isSelf ? "assistant" : "user");
-                    
-                    // 格式化时间戳
-                    String timeStr = timeFormat.format(new java.util.Date(msg.timestamp));
-                    
-                    // 获取消息内容
-                    String msgContent = msg.content;
-                    
-                    // 【修复】如果图片识别关闭，过滤掉消息内容中的图片信息
-                    if (!ConfigManager.isImageRecognitionEnabled() && msgContent != null) {
-                        // 移除 [图片: URL (宽x高)] 格式的内容
-                        msgContent = msgContent.replaceAll("\\[图片:[^\\]]*\\]", "").trim();
-                        // 移除 [图片内容:\n  图1: ...\n  图2: ...] 格式的内容
-                        msgContent = msgContent.replaceAll("\\[图片内容:[^\\]]*\\]", "").trim();
-                    }
-                    
-                    // 如果启用上下文图片识别，尝试获取缓存的图片描述或base64
-                    // 扩展条件：检查 hasImages 或消息内容中包含图片URL
-                    boolean hasImageContent = msg.hasImages && msg.imageCount > 0;
-                    boolean hasImageUrl = msgContent != null && msgContent.contains("[图片:") && msgContent.contains("multimedia.nt.qq.com.cn");
-                    
-                    if (contextImageEnabled && (hasImageContent || hasImageUrl)) {
-                        java.util.List<String> base64Images = new java.util.ArrayList<>();
-                        java.util.List<String> textDescriptions = new java.util.ArrayList<>();
-                        boolean hasBase64Images = false;
-                        
-                        // 方式1：从 hasImages 标记的消息获取缓存
-                        if (hasImageContent && msg.msgId != null) {
-                            java.util.List<String> cachedDescriptions = ImageDescriptionCache.getAll(conversationId, msg.msgId, msg.imageCount);
-                            for (String cached : cachedDescriptions) {
-                                if (cached != null && cached.startsWith("BASE64:")) {
-                                    hasBase64Images = true;
-                                    base64Images.add(cached.substring(7)); // 去掉 "BASE64:" 前缀
-                                } else if (cached != null) {
-                                    textDescriptions.add(cached);
-                                }
-                            }
-                        }
-                        
-                        // 方式2：从消息内容中提取的图片URL获取缓存
-                        if (!hasBase64Images && hasImageUrl) {
-                            java.util.regex.Pattern pattern = java.util.regex.Pattern.compile(
-                                "\\[图片:\\s*(https?://[^\\s\\]]+)");
-                            java.util.regex.Matcher matcher = pattern.matcher(msg.content);
-                            
-                            int imageIndex = 0;
-                            while (matcher.find()) {
-                                String imageUrl = matcher.group(1);
-                                if (imageUrl.contains(" (")) {
-                                    imageUrl = imageUrl.substring(0, imageUrl.indexOf(" ("));
-                                }
-                                
-                                String cacheKey = msg.msgId != null ? msg.msgId : ("url_" + imageUrl.hashCode());
-                                String cached = ImageDescriptionCache.get(conversationId, cacheKey, imageIndex);
-                                
-                                if (cached != null && cached.startsWith("BASE64:")) {
-                                    hasBase64Images = true;
-                                    base64Images.add(cached.substring(7));
-                                } else if (cached != null) {
-                                    textDescriptions.add(cached);
-                                }
-                                
-                                imageIndex++;
-                            }
-                        }
-                        
-                        if (hasBase64Images) {
-                            // 有base64图片，需要构建带图片的content数组
-                            JSONArray contentArray = new JSONArray();
-                            
-                            // 构建文本内容（使用新格式）
-                            StringBuilder textContentBuilder = new StringBuilder();
-                            
-                            // 添加好感度（如果启用且有senderUin）
-                            if (ConfigManager.isAffinityEnabled() && ConfigManager.isAiIncludeAffinity() 
-                                && msg.senderUin != null && !msg.senderUin.isEmpty() && !msg.isSelf) {
-                                try {
-                                    AffinityManager affinityManager = AffinityManager.getInstance(context);
-                                    int affinity = affinityManager.getAffinity(msg.senderUin);
-                                    if (affinity >= 0) {
-                                        textContentBuilder.append("[好感度:").append(affinity).append("]");
-                                    }
-                                } catch (Throwable t) {
-                                    // 忽略好感度获取失败
-                                }
-                            }
-                            
-                            // 添加发送人名称
-                            String displayName = (msg.senderName != null && !msg.senderName.isEmpty()) 
-                                ? msg.senderName : "昵称获取失败";
-                            textContentBuilder.append(displayName);
-                            
-                            // 添加[我]标记
-                            if (msg.isSelf) {
-                                textContentBuilder.append("[我]");
-                            }
-                            
-                            // 添加QQ号
-                            if (msg.senderUin != null && !msg.senderUin.isEmpty()) {
-                                textContentBuilder.append("[").append(msg.senderUin).append("]");
-                            }
-                            
-                            // 添加时间和内容
-                            textContentBuilder.append(" [").append(timeStr).append("]: ").append(msgContent);
-                            
-                            if (!textDescriptions.isEmpty()) {
-                                textContentBuilder.append("\n[图片描述: ").append(String.join(", ", textDescriptions)).append("]");
-                            }
-                            
-                            JSONObject textObj = new JSONObject();
-                            textObj.put("type", "text");
-                            textObj.put("text", textContentBuilder.toString());
-                            contentArray.put(textObj);
-                            
-                            // 添加图片
-                            for (String base64 : base64Images) {
-                                JSONObject imageContent = new JSONObject();
-                                imageContent.put("type", "image_url");
-                                JSONObject imageUrlObj = new JSONObject();
-                                imageUrlObj.put("url", base64); // base64已经带有data:image前缀
-                                imageUrlObj.put("detail", "low");
-                                imageContent.put("image_url", imageUrlObj);
-                                contentArray.put(imageContent);
-                            }
-                            
-                            ctxMsg.put("content", contentArray);
-                            messages.put(ctxMsg);
-                            continue; // 跳过下面的普通处理
-                        } else if (!textDescriptions.isEmpty()) {
-                            // 只有文字描述（外挂AI识别的结果）
-                            msgContent = msg.getContentWithImageDescriptions(conversationId);
-                        }
-                    }
-                    
-                    // 格式化为 "[好感度]发送人[我][qq号][时间]: 消息内容"
-                    StringBuilder formattedContent = new StringBuilder();
-                    
-                    // 添加好感度（如果启用且有senderUin）
-                    if (ConfigManager.isAffinityEnabled() && ConfigManager.isAiIncludeAffinity() 
-                        && msg.senderUin != null && !msg.senderUin.isEmpty() && !msg.isSelf) {
-                        try {
-                            AffinityManager affinityManager = AffinityManager.getInstance(context);
-                            int affinity = affinityManager.getAffinity(msg.senderUin);
-                            if (affinity >= 0) {
-                                formattedContent.append("[好感度:").append(affinity).append("]");
-                            }
-                        } catch (Throwable t) {
-                            // 忽略好感度获取失败
-                        }
-                    }
-                    
-                    // 添加发送人名称（如果获取失败显示"昵称获取失败"）
-                    String displayName = (msg.senderName != null && !msg.senderName.isEmpty()) 
-                        ? msg.senderName : "昵称获取失败";
-                    formattedContent.append(displayName);
-                    
-                    // 添加[我]标记（如果是自己发送的）
-                    if (msg.isSelf) {
-                        formattedContent.append("[我]");
-                    }
-                    
-                    // 添加QQ号（如果有）
-                    if (msg.senderUin != null && !msg.senderUin.isEmpty()) {
-                        formattedContent.append("[").append(msg.senderUin).append("]");
-                    }
-                    
-                    // 添加时间和内容
-                    formattedContent.append(" [").append(timeStr).append("]: ").append(msgContent);
-                    
-                    ctxMsg.put("content", formattedContent.toString());
-                    messages.put(ctxMsg);
-                }
-                Log.i(TAG, "Added " + contextMessages.size() + " context messages");
+            // 添加历史上下文（如果有，增量编译：已序列化的消息直接复用）
+            List<top.galqq.utils.MessageContextManager.ChatMessage> selectedContext =
+                    selectContextByBudget(contextMessages, conversationId);
+            PromptCompiler.CompiledContext compiledContext = PromptCompiler.compileContext(context, conversationId, selectedContext);
+            if (selectedContext != null && !selectedContext.isEmpty()) {
+                Log.i(TAG, "Added " + selectedContext.size() + " context messages");
             }
 
             // 当前用户消息（添加特殊标注）
             JSONObject userMsg = new JSONObject();
             userMsg.put("role", "user");
             
-            // 【修复】如果图片识别关闭，过滤掉当前消息中的图片信息
-            String filteredUserMessage = userMessage;
-            if (!ConfigManager.isImageRecognitionEnabled() && filteredUserMessage != null) {
-                // 移除 [图片: URL (宽x高)] 格式的内容
-                filteredUserMessage = filteredUserMessage.replaceAll("\\[图片:[^\\]]*\\]", "").trim();
-                // 移除 [图片内容:\n  图1: ...\n  图2: ...] 格式的内容
-                filteredUserMessage = filteredUserMessage.replaceAll("\\[图片内容:[^\\]]*\\]", "").trim();
-            }
-            
-            // 格式化当前消息：添加[当前需添加选项信息]标签
-            // 新格式：[好感度]昵称[我][qq号][时间]：信息
-            String formattedCurrentMsg;
-            if (currentTimestamp > 0) {
-                // 创建时间格式化器
-                java.text.SimpleDateFormat timeFormat = new java.text.SimpleDateFormat("HH:mm:ss", java.util.Locale.getDefault());
-                String currentTimeStr = timeFormat.format(new java.util.Date(currentTimestamp));
-                
-                // 构建昵称部分（如果获取失败显示"昵称获取失败"）
-                String displayName = (currentSenderName != null && !currentSenderName.isEmpty()) 
-                    ? currentSenderName : "昵称获取失败";
-                
-                // 构建好感度部分（如果启用且有senderUin）
-                String affinityPart = "";
-                boolean affinityEnabled = ConfigManager.isAffinityEnabled();
-                boolean aiIncludeAffinity = ConfigManager.isAiIncludeAffinity();
-                if (ConfigManager.isVerboseLogEnabled()) {
-                    Log.d(TAG, "好感度配置检查: affinityEnabled=" + affinityEnabled + ", aiIncludeAffinity=" + aiIncludeAffinity + ", senderUin=" + senderUin);
-                }
-                
-                if (affinityEnabled && aiIncludeAffinity && senderUin != null) {
-                    try {
-                        AffinityManager affinityManager = AffinityManager.getInstance(context);
-                        int affinity = affinityManager.getAffinity(senderUin);
-                        if (ConfigManager.isVerboseLogEnabled()) {
-                            Log.d(TAG, "获取到好感度: " + affinity + " for " + senderUin);
-                        }
-                        if (affinity >= 0) {
-                            affinityPart = "[好感度:" + affinity + "]";
-                            if (ConfigManager.isVerboseLogEnabled()) {
-                                Log.d(TAG, "好感度部分: " + affinityPart);
-                            }
-                        }
-                    } catch (Throwable t) {
-                        Log.w(TAG, "获取好感度失败: " + t.getMessage(), t);
-                    }
-                }
-                
-                // 构建QQ号部分
-                String qqPart = (senderUin != null && !senderUin.isEmpty()) ? "[" + senderUin + "]" : "";
-                
-                // 格式：[当前需添加选项信息] [好感度]昵称[qq号][时间]: 内容
-                formattedCurrentMsg = "[当前需添加选项信息] " + affinityPart + displayName + qqPart + " [" + currentTimeStr + "]: " + filteredUserMessage;
-            } else {
-                // 降级：如果没有时间戳，仅添加标签和昵称
-                String displayName = (currentSenderName != null && !currentSenderName.isEmpty()) 
-                    ? currentSenderName : "昵称获取失败";
-                formattedCurrentMsg = "[当前需添加选项信息] " + displayName + ": " + filteredUserMessage;
+            String formattedCurrentMsg = formatCurrentMessage(context, userMessage, currentSenderName,
+                    currentTimestamp, senderUin, "[当前需添加选项信息]");
+            // 好感度等易变信息放在最后一条消息，保持前面的提示词前缀不变
+            String affinityNote = PromptCompiler.buildAffinityNote(context, selectedContext);
+            if (!affinityNote.isEmpty()) {
+                formattedCurrentMsg = affinityNote + "\n\n" + formattedCurrentMsg;
             }
             
             // 检查是否有图片需要发送（OpenAI Vision格式）
@@ -1373,39 +1213,42 @@ public class HttpAiClient {
                 userMsg.put("content", formattedCurrentMsg);
             }
             
-            messages.put(userMsg);
-
-            jsonBody.put("messages", messages);
-
-            RequestBody body = RequestBody.create(
-                    jsonBody.toString(),
-                    MediaType.get("application/json; charset=utf-8")
-            );
-
-            Request request = new Request.Builder()
-                    .url(apiUrl)
-                    .addHeader("Authorization", "Bearer " + apiKey)
-                    .addHeader("Content-Type", "application/json")
-                    .post(body)
-                    .build();
+            // 返回格式要求随端点的结构化输出模式变化，按端点附加（见 buildEndpointRequest）
+            String requestJson = PromptCompiler.assembleBody(jsonBody, sysMsg, summaryMsg, compiledContext,
+                    StructuredOutput.withFormatHint(userMsg, outputMode));
+            final int estimatedTokens = TokenEstimator.estimateMessage(sysPrompt)
+                    + (summary != null ? TokenEstimator.estimateMessage(summary) : 0)
+                    + TokenEstimator.estimateContext(selectedContext, isContextImageCounted(conversationId))
+                    + TokenEstimator.estimateMessage(formattedCurrentMsg)
+                    + (imageBase64List != null ? imageBase64List.size() * TokenEstimator.IMAGE_TOKENS : 0);
 
             // 记录完整的请求信息到日志（仅在启用详细日志时）
             if (ConfigManager.isVerboseLogEnabled()) {
                 // 日志中截断base64内容（200字符），但实际请求包保持完整
-                String jsonForLog = truncateBase64InJson(jsonBody.toString(), 200);
-                String requestLog = buildRequestLog(provider, model, apiUrl, apiKey, jsonForLog);
+                String jsonForLog = truncateBase64InJson(requestJson, 200);
+                String requestLog = buildRequestLog(provider, model, apiUrl, apiKey, jsonForLog)
+                        + "\n预估输入tokens: " + estimatedTokens;
                 Log.d(TAG, "发送AI请求:\n" + requestLog);
                 AiLogManager.addLog(context, "AI请求\n" + requestLog);
             } else {
                 Log.d(TAG, "发送AI请求: " + provider + " / " + model);
             }
 
-            getClient().newCall(request).enqueue(new Callback() {
+            // 多端点时：主端点超过p95延迟未响应则对冲到下一个端点，失败时自动转移
+            List<AiEndpointManager.Endpoint> endpoints = AiEndpointManager.getAvailableEndpoints(apiUrl);
+            HedgedCall.enqueue(getClient(), endpoints,
+                    endpoint -> buildEndpointRequest(endpoint, model, outputMode, false, requestJson, jsonBody, sysMsg, summaryMsg, compiledContext, userMsg),
+                    new HedgedCall.EndpointCallback() {
+                @Override
+                public void onCallStarted(Call call) {
+                    callback.onCallStarted(call);
+                }
+
                 @Override
-                public void onFailure(Call call, IOException e) {
+                public void onFailure(AiEndpointManager.Endpoint endpoint, Call call, IOException e) {
                     String error = e.getMessage();
                     Log.e(TAG, "AI请求失败: " + error, e);
-                    logError(context, provider, model, apiUrl, error);
+                    logError(context, endpoint.provider, endpoint.model, endpoint.url, error);
                     if (!suppressToast) {
                         showToast(context, "网络连接失败 😢");
                     }
@@ -1413,25 +1256,36 @@ public class HttpAiClient {
                 }
 
                 @Override
-                public void onResponse(Call call, Response response) throws IOException {
+                public void onResponse(AiEndpointManager.Endpoint endpoint, Call call, Response response) throws IOException {
                     String responseBody = null;
+                    StructuredOutput.Mode endpointMode = StructuredOutput.getMode(endpoint.provider, endpoint.model, false);
                     try {
                         if (!response.isSuccessful()) {
                             int code = response.code();
                             String error = "HTTP " + code + ": " + response.message();
                             responseBody = response.body() != null ? response.body().string() : "";
                             
+                            // 服务商不支持response_format：降级后按格式错误重试
+                            if (endpointMode != StructuredOutput.Mode.NONE
+                                    && StructuredOutput.isUnsupportedError(code, responseBody)) {
+                                StructuredOutput.downgrade(endpoint.provider, endpoint.model, endpointMode);
+                                logError(context, endpoint.provider, endpoint.model, endpoint.url,
+                                        "服务商不支持结构化输出(" + endpointMode.label + ")，已降级\n" + responseBody);
+                                callback.onFailure(new IOException("服务商不支持结构化输出格式，已降级后重试"));
+                                return;
+                            }
+                            
                             // 特殊处理429速率限制错误（静默处理，不显示Toast）
                             if (code == 429) {
                                 Log.w(TAG, "速率限制: " + error);
-                                logError(context, provider, model, apiUrl, "Rate Limit (429)\n" + responseBody);
+                                logError(context, endpoint.provider, endpoint.model, endpoint.url, "Rate Limit (429)\n" + responseBody);
                                 // 不调用showToast，静默失败
                                 callback.onFailure(new IOException("Rate limit reached"));
                                 return;
                             }
                             
                             // 其他错误正常处理
-                            logError(context, provider, model, apiUrl, error + "\n" + responseBody);
+                            logError(context, endpoint.provider, endpoint.model, endpoint.url, error + "\n" + responseBody);
                             if (!suppressToast) {
                                 showToast(context, "AI服务暂时不可用 😢");
                             }
@@ -1439,11 +1293,19 @@ public class HttpAiClient {
                             return;
                         }
 
+                        // 流式响应（服务商不支持stream时会直接返回完整JSON，走普通解析）
+                        if (streamEnabled && isEventStream(response)) {
+                            handleStreamResponse(context, call, response, endpoint.provider, endpoint.model, endpoint.url,
+                                                 userMessage, estimatedTokens, endpointMode, callback, suppressToast);
+                            return;
+                        }
+
                         responseBody = response.body().string();
                         Log.d(TAG, "AI响应: " + responseBody.substring(0, Math.min(200, responseBody.length())));
 
                         // 解析JSON格式的响应
                         List<String> options = parseJsonResponse(responseBody);
+                        StructuredOutput.recordResult(endpoint.provider, endpointMode, options != null && options.size() >= 3);
                         
                         if (options == null || options.size() < 3) {
                             // 改进的错误日志记录
@@ -1461,7 +1323,7 @@ public class HttpAiClient {
                                     "=== 原始响应内容 ===\n" + responseBody + "\n" +
                                     "=== 响应内容结束 ===\n" +
                                     "提示: 如果AI返回格式不正确，请检查系统提示词是否要求返回JSON格式";
-                                logError(context, provider, model, apiUrl, fullLog);
+                                logError(context, endpoint.provider, endpoint.model, endpoint.url, fullLog);
                                 showToast(context, "AI返回格式错误 😢");
                             }
                             callback.onFailure(new Exception(error));
@@ -1470,14 +1332,16 @@ public class HttpAiClient {
 
                         // 成功 - 如果启用了详细日志，记录完整响应
                         String fullResponse = ConfigManager.isVerboseLogEnabled() ? responseBody : null;
-                        AiLogManager.logAiSuccess(context, provider, model, userMessage, options.size(), fullResponse);
+                        String tokenUsage = TokenEstimator.formatUsage(estimatedTokens, readUsage(responseBody));
+                        Log.d(TAG, tokenUsage);
+                        AiLogManager.logAiSuccess(context, endpoint.provider, endpoint.model, userMessage, options.size(), fullResponse, tokenUsage);
                         callback.onSuccess(options);
 
                     } catch (Exception e) {
                         Log.e(TAG, "解析失败", e);
                         String error = "解析错误: " + e.getMessage();
                         if (!suppressToast) {
-                            logError(context, provider, model, apiUrl, error + "\n响应: " + responseBody);
+                            logError(context, endpoint.provider, endpoint.model, endpoint.url, error + "\n响应: " + responseBody);
                             showToast(context, "AI返回格式错误 😢");
                         }
                         callback.onFailure(e);
@@ -1497,18 +1361,565 @@ public class HttpAiClient {
         }
     }
 
+    /**
+     * 批量获取同一会话中多条消息的回复选项
+     * 系统提示词和上下文只发送一次，要求AI返回以消息标签为键的JSON对象：
+     * {"m1": ["选项1", "选项2", "选项3"], "m2": [...]}
+     * 
+     * @param items 待生成选项的消息（按时间顺序）
+     * @param contextMessages 这些消息之前的历史上下文（可为null）
+     * @param customPrompt 自定义提示词内容（如果为null则使用默认）
+     * @param conversationId 会话ID（用于上下文图片缓存）
+     * @param callback 回调（不在UI线程）
+     */
+    public static void fetchOptionsBatch(Context context, List<BatchItem> items,
+                                         List<top.galqq.utils.MessageContextManager.ChatMessage> contextMessages,
+                                         String customPrompt, String conversationId,
+                                         BatchCallback callback) {
+        String apiUrl = normalizeApiUrl(ConfigManager.getApiUrl());
+        String apiKey = ConfigManager.getApiKey();
+        String sysPrompt = (customPrompt != null && !customPrompt.isEmpty()) 
+                ? customPrompt : ConfigManager.getSysPrompt();
+        String model = ConfigManager.getAiModel();
+        String provider = ConfigManager.getAiProvider();
+        float temperature = ConfigManager.getAiTemperature();
+        int maxTokens = ConfigManager.getAiMaxTokens();
+
+        if (TextUtils.isEmpty(apiUrl) || TextUtils.isEmpty(apiKey)) {
+            callback.onFailure(new IllegalArgumentException("API配置不完整"));
+            return;
+        }
+
+        try {
+            JSONObject jsonBody = new JSONObject();
+            jsonBody.put("model", model);
+            if (temperature > 0 && temperature <= 2.0) {
+                jsonBody.put("temperature", temperature);
+            }
+            if (maxTokens > 0 && maxTokens <= 4096) {
+                // 多条消息的输出按条数放大
+                jsonBody.put("max_tokens", Math.min(4096, maxTokens * items.size()));
+            }
+            if (ConfigManager.isReasoningEffortEnabled()) {
+                jsonBody.put("reasoning_effort", ConfigManager.getAiReasoningEffort());
+            }
+            final StructuredOutput.Mode outputMode = StructuredOutput.getMode(provider, model, true);
+            StructuredOutput.apply(jsonBody, outputMode);
+
+            // 系统提示词与单条请求一致（保持前缀可被服务商缓存），批量格式要求放在最后的user消息里
+            StringBuilder tags = new StringBuilder();
+            for (BatchItem item : items) {
+                if (tags.length() > 0) tags.append(", ");
+                tags.append(item.tag);
+            }
+            JSONObject sysMsg = new JSONObject();
+            sysMsg.put("role", "system");
+            sysMsg.put("content", sysPrompt);
+            String summary = ConversationSummarizer.getPromptSummary(conversationId);
+            JSONObject summaryMsg = buildSummaryMessage(summary);
+
+            List<top.galqq.utils.MessageContextManager.ChatMessage> selectedContext =
+                    selectContextByBudget(contextMessages, conversationId);
+            PromptCompiler.CompiledContext compiledContext = PromptCompiler.compileContext(context, conversationId, selectedContext);
+
+            // 所有待处理消息合并为一条user消息
+            StringBuilder batchContent = new StringBuilder();
+            batchContent.append("【批量模式】本次有多条消息需要添加选项，每条以 [当前需添加选项信息 标签] 标注（标签: ")
+                    .append(tags).append("）。请为每条消息分别生成3个回复选项，只返回一个JSON对象，键为消息标签，值为选项数组，例如：")
+                    .append("{\"").append(items.get(0).tag).append("\": [\"选项1\", \"选项2\", \"选项3\"]}\n");
+            String affinityNote = PromptCompiler.buildAffinityNote(context, selectedContext);
+            if (!affinityNote.isEmpty()) {
+                batchContent.append("\n").append(affinityNote).append("\n");
+            }
+            for (BatchItem item : items) {
+                if (batchContent.length() > 0) batchContent.append("\n");
+                batchContent.append(formatCurrentMessage(context, item.userMessage, item.senderName,
+                        item.timestamp, item.senderUin, "[当前需添加选项信息 " + item.tag + "]"));
+            }
+            JSONObject userMsg = new JSONObject();
+            userMsg.put("role", "user");
+            userMsg.put("content", batchContent.toString());
+
+            String requestJson = PromptCompiler.assembleBody(jsonBody, sysMsg, summaryMsg, compiledContext, userMsg);
+            final int estimatedTokens = TokenEstimator.estimateMessage(sysPrompt)
+                    + (summary != null ? TokenEstimator.estimateMessage(summary) : 0)
+                    + TokenEstimator.estimateContext(selectedContext, isContextImageCounted(conversationId))
+                    + TokenEstimator.estimateMessage(batchContent.toString());
+
+            if (ConfigManager.isVerboseLogEnabled()) {
+                String requestLog = buildRequestLog(provider, model, apiUrl, apiKey,
+                        truncateBase64InJson(requestJson, 200)) + "\n预估输入tokens: " + estimatedTokens;
+                Log.d(TAG, "发送批量AI请求(" + items.size() + "条):\n" + requestLog);
+                AiLogManager.addLog(context, "批量AI请求(" + items.size() + "条)\n" + requestLog);
+            }
+
+            List<AiEndpointManager.Endpoint> endpoints = AiEndpointManager.getAvailableEndpoints(apiUrl);
+            HedgedCall.enqueue(getClient(), endpoints,
+                    endpoint -> buildEndpointRequest(endpoint, model, outputMode, true, requestJson, jsonBody, sysMsg, summaryMsg, compiledContext, userMsg),
+                    new HedgedCall.EndpointCallback() {
+                @Override
+                public void onCallStarted(Call call) {
+                    callback.onCallStarted(call);
+                }
+
+                @Override
+                public void onFailure(AiEndpointManager.Endpoint endpoint, Call call, IOException e) {
+                    Log.e(TAG, "批量AI请求失败: " + e.getMessage(), e);
+                    logError(context, endpoint.provider, endpoint.model, endpoint.url, "批量请求失败: " + e.getMessage());
+                    callback.onFailure(e);
+                }
+
+                @Override
+                public void onResponse(AiEndpointManager.Endpoint endpoint, Call call, Response response) throws IOException {
+                    String responseBody = null;
+                    StructuredOutput.Mode endpointMode = StructuredOutput.getMode(endpoint.provider, endpoint.model, true);
+                    try {
+                        responseBody = response.body() != null ? response.body().string() : "";
+                        if (!response.isSuccessful()) {
+                            int code = response.code();
+                            if (endpointMode != StructuredOutput.Mode.NONE
+                                    && StructuredOutput.isUnsupportedError(code, responseBody)) {
+                                StructuredOutput.downgrade(endpoint.provider, endpoint.model, endpointMode);
+                                logError(context, endpoint.provider, endpoint.model, endpoint.url,
+                                        "服务商不支持结构化输出(" + endpointMode.label + ")，已降级\n" + responseBody);
+                                callback.onFailure(new IOException("服务商不支持结构化输出格式，已降级"));
+                            } else if (code == 429) {
+                                logError(context, endpoint.provider, endpoint.model, endpoint.url, "Rate Limit (429)\n" + responseBody);
+                                callback.onFailure(new IOException("Rate limit reached"));
+                            } else {
+                                String error = "HTTP " + code + ": " + response.message();
+                                logError(context, endpoint.provider, endpoint.model, endpoint.url, error + "\n" + responseBody);
+                                callback.onFailure(new IOException(error));
+                            }
+                            return;
+                        }
+
+                        java.util.Map<String, List<String>> result = parseBatchResponse(responseBody, items);
+                        StructuredOutput.recordResult(endpoint.provider, endpointMode, !result.isEmpty());
+                        if (result.isEmpty()) {
+                            logError(context, endpoint.provider, endpoint.model, endpoint.url, "批量模式返回格式无法识别\n" + responseBody);
+                            callback.onFailure(new Exception("批量返回格式无法识别"));
+                            return;
+                        }
+                        Log.d(TAG, "批量请求成功: " + result.size() + "/" + items.size() + " 条消息，"
+                                + TokenEstimator.formatUsage(estimatedTokens, readUsage(responseBody)));
+                        callback.onSuccess(result);
+                    } catch (Exception e) {
+                        Log.e(TAG, "批量解析失败", e);
+                        logError(context, endpoint.provider, endpoint.model, endpoint.url, "批量解析错误: " + e.getMessage() + "\n响应: " + responseBody);
+                        callback.onFailure(e);
+                    } finally {
+                        response.close();
+                    }
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "批量请求构建失败", e);
+            callback.onFailure(e);
+        }
+    }
+
+    /**
+     * 构建发往指定端点的请求：模型和结构化输出模式与主请求相同时直接复用已拼装的请求体，
+     * 否则按该端点替换model、response_format和返回格式要求重新拼装
+     *
+     * @param userMsg 未附加返回格式要求的user消息（批量请求的消息本身已要求返回JSON）
+     */
+    private static Request buildEndpointRequest(AiEndpointManager.Endpoint endpoint, String model,
+                                                StructuredOutput.Mode outputMode, boolean batch, String requestJson,
+                                                JSONObject params, JSONObject sysMsg, JSONObject summaryMsg,
+                                                PromptCompiler.CompiledContext compiledContext,
+                                                JSONObject userMsg) throws Exception {
+        String json = requestJson;
+        StructuredOutput.Mode endpointMode = StructuredOutput.getMode(endpoint.provider, endpoint.model, batch);
+        if (!model.equals(endpoint.model) || endpointMode != outputMode) {
+            JSONObject endpointParams = new JSONObject(params.toString());
+            endpointParams.put("model", endpoint.model);
+            StructuredOutput.apply(endpointParams, endpointMode);
+            JSONObject endpointUserMsg = batch ? userMsg : StructuredOutput.withFormatHint(userMsg, endpointMode);
+            json = PromptCompiler.assembleBody(endpointParams, sysMsg, summaryMsg, compiledContext, endpointUserMsg);
+        }
+        RequestBody body = RequestBody.create(
+                json,
+                MediaType.get("application/json; charset=utf-8")
+        );
+        return new Request.Builder()
+                .url(endpoint.url)
+                .addHeader("Authorization", "Bearer " + endpoint.apiKey)
+                .addHeader("Content-Type", "application/json")
+                .post(body)
+                .build();
+    }
+
+    /**
+     * 会话摘要消息（紧跟系统提示词之后）
+     * @return 没有摘要时返回null
+     */
+    private static JSONObject buildSummaryMessage(String summary) throws Exception {
+        if (summary == null) {
+            return null;
+        }
+        JSONObject summaryMsg = new JSONObject();
+        summaryMsg.put("role", "system");
+        summaryMsg.put("content", summary);
+        return summaryMsg;
+    }
+
+    /**
+     * 按token预算截取上下文（ConfigManager.getContextTokenBudget 为0时原样返回）
+     */
+    private static List<top.galqq.utils.MessageContextManager.ChatMessage> selectContextByBudget(
+            List<top.galqq.utils.MessageContextManager.ChatMessage> contextMessages, String conversationId) {
+        int budget = ConfigManager.getContextTokenBudget();
+        if (budget <= 0 || contextMessages == null || contextMessages.isEmpty()) {
+            return contextMessages;
+        }
+        List<top.galqq.utils.MessageContextManager.ChatMessage> selected =
+                TokenEstimator.selectByBudget(contextMessages, budget, isContextImageCounted(conversationId));
+        if (selected.size() < contextMessages.size()) {
+            Log.d(TAG, "上下文超出token预算(" + budget + ")，保留最近 " + selected.size() + "/" + contextMessages.size() + " 条");
+        }
+        return selected;
+    }
+
+    /**
+     * 上下文中的图片是否会随请求发送（用于token估算）
+     */
+    private static boolean isContextImageCounted(String conversationId) {
+        return conversationId != null
+                && ConfigManager.isImageRecognitionEnabled()
+                && ConfigManager.isContextImageRecognitionEnabled();
+    }
+
+    /**
+     * 从响应（或流式数据块）中读取服务商返回的用量：记录提示词缓存命中，返回输入token数
+     * @return token数，未返回或解析失败时为 -1
+     */
+    private static int readUsage(String json) {
+        if (json == null || !json.contains("\"usage\"")) {
+            return -1;
+        }
+        try {
+            JSONObject response = new JSONObject(json);
+            JSONObject usage = response.optJSONObject("usage");
+            PromptCacheStats.record(usage);
+            int cached = PromptCacheStats.parseCachedTokens(usage);
+            if (cached >= 0) {
+                Log.d(TAG, "提示词缓存命中tokens: " + cached);
+            }
+            return TokenEstimator.parsePromptTokens(response);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 解析批量模式响应：从content中取出以消息标签为键的JSON对象
+     * 值可以是字符串数组，也可以是带options等字段的对象；不足3个选项的消息不返回
+     */
+    private static java.util.Map<String, List<String>> parseBatchResponse(String responseBody, List<BatchItem> items) {
+        java.util.Map<String, List<String>> result = new java.util.HashMap<>();
+        String content = responseBody;
+        try {
+            JSONObject json = new JSONObject(responseBody);
+            JSONArray choices = json.optJSONArray("choices");
+            if (choices != null && choices.length() > 0) {
+                JSONObject first = choices.getJSONObject(0);
+                JSONObject message = first.optJSONObject("message");
+                content = message != null ? message.optString("content", "") : first.optString("text", "");
+            }
+        } catch (Exception ignored) {
+            // 非标准响应，直接在原文中查找
+        }
+
+        String jsonStr = extractJsonFromMarkdown(content);
+        if (jsonStr == null) {
+            jsonStr = extractJsonFromText(content);
+        }
+        if (jsonStr == null) {
+            return result;
+        }
+
+        try {
+            JSONObject map = new JSONObject(jsonStr);
+            for (BatchItem item : items) {
+                Object value = map.opt(item.tag);
+                List<String> options = null;
+                if (value instanceof JSONArray) {
+                    options = jsonArrayToList((JSONArray) value);
+                } else if (value instanceof JSONObject) {
+                    options = parseOptionsJson(value.toString());
+                }
+                if (options != null && options.size() >= 3) {
+                    result.put(item.tag, options);
+                }
+            }
+        } catch (Exception e) {
+            Log.d(TAG, "parseBatchResponse失败: " + e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * 格式化需要生成选项的消息
+     * 格式：label [好感度]昵称[qq号] [时间]: 内容
+     * 
+     * @param label 消息标注（单条为 [当前需添加选项信息]，批量模式带消息标签）
+     */
+    private static String formatCurrentMessage(Context context, String userMessage,
+                                               String currentSenderName, long currentTimestamp,
+                                               String senderUin, String label) {
+        // 【修复】如果图片识别关闭，过滤掉当前消息中的图片信息
+        String filteredUserMessage = userMessage;
+        if (!ConfigManager.isImageRecognitionEnabled() && filteredUserMessage != null) {
+            // 移除 [图片: URL (宽x高)] 和 [图片内容: ...] 格式的内容
+            filteredUserMessage = PromptCompiler.stripImageInfo(filteredUserMessage);
+        }
+        
+        // 格式化当前消息：添加[当前需添加选项信息]标签
+        // 新格式：[好感度]昵称[我][qq号][时间]：信息
+        String formattedCurrentMsg;
+        if (currentTimestamp > 0) {
+            String currentTimeStr = PromptCompiler.formatTime(currentTimestamp);
+            
+            // 构建昵称部分（如果获取失败显示"昵称获取失败"）
+            String displayName = (currentSenderName != null && !currentSenderName.isEmpty()) 
+                ? currentSenderName : "昵称获取失败";
+            
+            // 构建好感度部分（如果启用且有senderUin）
+            String affinityPart = "";
+            boolean affinityEnabled = ConfigManager.isAffinityEnabled();
+            boolean aiIncludeAffinity = ConfigManager.isAiIncludeAffinity();
+            if (ConfigManager.isVerboseLogEnabled()) {
+                Log.d(TAG, "好感度配置检查: affinityEnabled=" + affinityEnabled + ", aiIncludeAffinity=" + aiIncludeAffinity + ", senderUin=" + senderUin);
+            }
+            
+            if (affinityEnabled && aiIncludeAffinity && senderUin != null) {
+                try {
+                    AffinityManager affinityManager = AffinityManager.getInstance(context);
+                    int affinity = affinityManager.getAffinity(senderUin);
+                    if (ConfigManager.isVerboseLogEnabled()) {
+                        Log.d(TAG, "获取到好感度: " + affinity + " for " + senderUin);
+                    }
+                    if (affinity >= 0) {
+                        affinityPart = "[好感度:" + affinity + "]";
+                        if (ConfigManager.isVerboseLogEnabled()) {
+                            Log.d(TAG, "好感度部分: " + affinityPart);
+                        }
+                    }
+                } catch (Throwable t) {
+                    Log.w(TAG, "获取好感度失败: " + t.getMessage(), t);
+                }
+            }
+            
+            // 构建QQ号部分
+            String qqPart = (senderUin != null && !senderUin.isEmpty()) ? "[" + senderUin + "]" : "";
+            
+            // 格式：[当前需添加选项信息] [好感度]昵称[qq号][时间]: 内容
+            formattedCurrentMsg = label + " " + affinityPart + displayName + qqPart + " [" + currentTimeStr + "]: " + filteredUserMessage;
+        } else {
+            // 降级：如果没有时间戳，仅添加标签和昵称
+            String displayName = (currentSenderName != null && !currentSenderName.isEmpty()) 
+                ? currentSenderName : "昵称获取失败";
+            formattedCurrentMsg = label + " " + displayName + ": " + filteredUserMessage;
+        }
+        
+        return formattedCurrentMsg;
+    }
+
+    /**
+     * 判断响应是否为SSE流（text/event-stream 或以 "data:" 开头）
+     */
+    private static boolean isEventStream(Response response) {
+        String contentType = response.header("Content-Type");
+        if (contentType != null && contentType.contains("text/event-stream")) {
+            return true;
+        }
+        try {
+            return response.body() != null
+                && response.body().source().rangeEquals(0, okio.ByteString.encodeUtf8("data:"));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 处理SSE流式响应
+     * 逐行读取 data: 事件，增量解析选项；解析到3个选项后立即取消请求。
+     * 流结束仍不足3个时，对累积的content走完整解析流程兜底。
+     */
+    private static void handleStreamResponse(Context context, Call call, Response response,
+                                             String provider, String model, String apiUrl,
+                                             String userMessage, int estimatedTokens, StructuredOutput.Mode outputMode,
+                                             AiCallback callback, boolean suppressToast) throws IOException {
+        okio.BufferedSource source = response.body().source();
+        StreamingOptionsParser parser = new StreamingOptionsParser();
+        StringBuilder content = new StringBuilder();
+        List<String> options = new ArrayList<>();
+        long startTime = System.currentTimeMillis();
+        int reportedTokens = -1;
+        boolean contentFinished = false;
+
+        String line;
+        readLoop:
+        while ((line = source.readUtf8Line()) != null) {
+            if (!line.startsWith("data:")) {
+                continue; // 空行、注释行（: keep-alive）、event: 等
+            }
+            String data = line.substring(5).trim();
+            if (data.isEmpty()) {
+                continue;
+            }
+            if ("[DONE]".equals(data)) {
+                break;
+            }
+
+            if (data.contains("\"usage\"") && !data.contains("\"usage\":null")) {
+                int tokens = readUsage(data);
+                if (tokens >= 0) {
+                    reportedTokens = tokens;
+                }
+            }
+
+            // 内容已解析完毕：继续读到 [DONE]，只为拿到最后的usage数据
+            if (contentFinished) {
+                continue;
+            }
+            String delta = extractStreamDelta(data);
+            if (delta == null || delta.isEmpty()) {
+                continue;
+            }
+            content.append(delta);
+
+            for (String raw : parser.feed(delta)) {
+                String option = cleanOptionText(raw);
+                if (option.isEmpty()) {
+                    continue;
+                }
+                options.add(option);
+                if (options.size() >= 3) {
+                    break readLoop;
+                }
+                callback.onPartialOptions(new ArrayList<>(options));
+            }
+            if (parser.isFinished()) {
+                contentFinished = true;
+            }
+        }
+
+        if (options.size() >= 3) {
+            // 已拿到3个选项，剩余内容不再需要（usage在流末尾，提前结束时记为未返回）
+            call.cancel();
+            Log.d(TAG, "流式解析完成，耗时 " + (System.currentTimeMillis() - startTime) + "ms，提前结束请求");
+        } else {
+            // 增量解析不足（非JSON格式等），对完整content兜底解析
+            List<String> parsed = parseContentWithStrategies(content.toString());
+            if (parsed != null && parsed.size() >= 3) {
+                options = parsed;
+            } else {
+                String error = parsed == null && options.isEmpty()
+                    ? "AI返回格式无法识别，请检查系统提示词配置"
+                    : "AI返回选项不足: 期望3个，实际" + Math.max(options.size(), parsed != null ? parsed.size() : 0) + "个";
+                StructuredOutput.recordResult(provider, outputMode, false);
+                if (!suppressToast) {
+                    logError(context, provider, model, apiUrl, error + "\n" +
+                        "=== 流式内容 ===\n" + content + "\n=== 内容结束 ===");
+                    showToast(context, "AI返回格式错误 😢");
+                }
+                callback.onFailure(new Exception(error));
+                return;
+            }
+        }
+
+        StructuredOutput.recordResult(provider, outputMode, true);
+        String fullResponse = ConfigManager.isVerboseLogEnabled() ? content.toString() : null;
+        String tokenUsage = TokenEstimator.formatUsage(estimatedTokens, reportedTokens);
+        Log.d(TAG, tokenUsage);
+        AiLogManager.logAiSuccess(context, provider, model, userMessage, options.size(), fullResponse, tokenUsage);
+        callback.onSuccess(options);
+    }
+
+    /**
+     * 从单个SSE事件的data中提取content增量
+     * OpenAI兼容格式：choices[0].delta.content；忽略 reasoning_content 等思考过程
+     */
+    private static String extractStreamDelta(String data) {
+        try {
+            JSONObject chunk = new JSONObject(data);
+            JSONArray choices = chunk.optJSONArray("choices");
+            if (choices == null || choices.length() == 0) {
+                return null;
+            }
+            JSONObject choice = choices.getJSONObject(0);
+            JSONObject delta = choice.optJSONObject("delta");
+            if (delta != null) {
+                return delta.isNull("content") ? null : delta.optString("content", null);
+            }
+            // 少数服务商使用 text 字段
+            return choice.isNull("text") ? null : choice.optString("text", null);
+        } catch (Exception e) {
+            Log.d(TAG, "忽略无法解析的流式数据: " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * 解析JSON格式的AI响应（重构版）
-     * 支持多种格式的智能解析，按优先级依次尝试：
+     * 先用单遍扫描（ResponseScanner）处理常见的OpenAI格式和直接options格式，
+     * 扫描未能给出至少3个选项时退回完整的多策略解析链（parseJsonResponseLegacy）
+     */
+    static List<String> parseJsonResponse(String responseBody) {
+        // 边界情况处理
+        if (responseBody == null || responseBody.trim().isEmpty()) {
+            Log.w(TAG, "响应为空");
+            return null;
+        }
+        List<String> result = parseWithScanner(responseBody);
+        if (result != null) {
+            return result;
+        }
+        // content不是可识别的格式或响应结构未知：交给完整解析链，结果与引入扫描前一致
+        return parseJsonResponseLegacy(responseBody);
+    }
+
+    /**
+     * 快速路径：单遍扫描同时取出content和选项数组，避免反复构建JSONObject
+     * @return 至少3个选项，否则返回null
+     */
+    static List<String> parseWithScanner(String responseBody) {
+        ResponseScanner.Result scanned = ResponseScanner.scan(responseBody);
+        if (!scanned.options.isEmpty()) {
+            List<String> options = new ArrayList<>();
+            for (String raw : scanned.options) {
+                String option = cleanOptionText(raw);
+                if (!option.isEmpty()) {
+                    options.add(option);
+                }
+            }
+            if (options.size() >= 3) {
+                Log.d(TAG, "解析成功: 单遍扫描");
+                return options;
+            }
+        }
+        for (String content : scanned.contents) {
+            // content不是选项JSON（列表、纯文本等），只对content本身执行多策略解析
+            List<String> result = parseContentWithStrategies(content);
+            if (result != null && result.size() >= 3) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 多策略解析链：
      * 1. 直接JSON格式（响应本身就是options JSON）
      * 2. OpenAI标准格式（choices[0].message.content）
      * 3. 从content中提取：Markdown代码块、混合文本JSON、列表、纯文本
      * 4. 处理多个JSON对象拼接的情况（流式响应或重试响应）
      */
-    private static List<String> parseJsonResponse(String responseBody) {
-        // 边界情况处理
+    static List<String> parseJsonResponseLegacy(String responseBody) {
         if (responseBody == null || responseBody.trim().isEmpty()) {
-            Log.w(TAG, "响应为空");
             return null;
         }
         
@@ -2568,7 +2979,7 @@ public class HttpAiClient {
      * @param apiUrl 原始API URL
      * @return 规范化后的API URL
      */
-    private static String normalizeApiUrl(String apiUrl) {
+    static String normalizeApiUrl(String apiUrl) {
         if (apiUrl == null || apiUrl.trim().isEmpty()) {
             return apiUrl;
         }
@@ -1,7 +1,6 @@
 package top.galqq.utils;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -15,6 +14,8 @@ import de.robv.android.xposed.XposedBridge;
  * 1. 缓存每个会话的历史消息
  * 2. 为AI调用提供上下文
  * 3. 自动管理内存，避免泄漏
+ * 4. 通过 ContextDiskStore 持久化，QQ重启后首次读取会话时从磁盘懒加载
+ * 5. 按字节估算内存占用，超过全局预算时在后台按最近访问时间淘汰会话（淘汰前写盘，之后可重新懒加载）
  */
 public class MessageContextManager {
     
@@ -34,9 +35,31 @@ public class MessageContextManager {
     // 最大会话数（超过则清理最旧的）
     private static final int MAX_CONVERSATIONS = 100;
     
+    // 全局内存预算（估算字节数），超过后淘汰到预算的 TRIM_TARGET_RATIO
+    private static final long MAX_TOTAL_BYTES = 4L * 1024 * 1024;
+    private static final double TRIM_TARGET_RATIO = 0.9;
+    
     // conversationId -> messages
     private static final Map<String, ConversationContext> contextMap = new ConcurrentHashMap<>();
     
+    // 所有已挂入contextMap的会话占用的字节数
+    private static final java.util.concurrent.atomic.AtomicLong totalBytes = new java.util.concurrent.atomic.AtomicLong();
+    
+    // 因内存预算或会话数被淘汰的会话数
+    private static final java.util.concurrent.atomic.AtomicLong trimmedCount = new java.util.concurrent.atomic.AtomicLong();
+    
+    // 后台淘汰线程（避免在消息绑定路径上遍历所有会话）
+    private static final java.util.concurrent.ExecutorService trimExecutor =
+        java.util.concurrent.Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "GalQQ-ContextTrim");
+            t.setDaemon(true);
+            return t;
+        });
+    private static final java.util.concurrent.atomic.AtomicBoolean trimScheduled = new java.util.concurrent.atomic.AtomicBoolean(false);
+    
+    // 是否保留被淘汰的消息供滚动摘要使用（由摘要线程按配置更新，关闭摘要时不保留）
+    private static volatile boolean keepEvicted = true;
+    
     /**
      * 聊天消息对象
      */
@@ -49,6 +72,7 @@ public class MessageContextManager {
         public final String msgId;         // 消息ID（用于去重和图片缓存）
         public final int imageCount;       // 图片数量（用于上下文图片识别）
         public final boolean hasImages;    // 是否包含图片
+        public final int byteSize;         // 估算的内存占用（字节）
         
         public ChatMessage(String senderName, String content, boolean isSelf, long timestamp, String msgId) {
             this(senderName, null, content, isSelf, timestamp, msgId, 0);
@@ -67,6 +91,16 @@ public class MessageContextManager {
             this.msgId = msgId;
             this.imageCount = imageCount;
             this.hasImages = imageCount > 0;
+            this.byteSize = MESSAGE_OVERHEAD + stringBytes(senderName) + stringBytes(senderUin)
+                    + stringBytes(content) + stringBytes(msgId);
+        }
+        
+        // 对象头、字段及索引项的固定开销
+        private static final int MESSAGE_OVERHEAD = 96;
+        
+        private static int stringBytes(String s) {
+            // String对象头 + UTF-16字符数组
+            return s == null ? 0 : 40 + 2 * s.length();
         }
         
         @Override
@@ -110,46 +144,211 @@ public class MessageContextManager {
     
     /**
      * 会话上下文
+     * 
+     * 按时间戳有序的环形缓冲区：
+     * 1. 按时间顺序到达的消息直接追加到队尾，O(1)
+     * 2. 乱序加载的消息用二分查找定位插入点，只移动其后的元素
+     * 3. 满了之后覆盖最旧的消息；比最旧消息还早的乱序消息直接丢弃
+     * 4. msgId 哈希索引，去重和按ID查找为 O(1)
      */
-    private static class ConversationContext {
-        final LinkedList<ChatMessage> messages = new LinkedList<>();
-        long lastAccessTime = System.currentTimeMillis();
+    static class ConversationContext {
+        private final ChatMessage[] buffer;
+        private final Map<String, ChatMessage> idIndex = new java.util.HashMap<>();
+        private int head = 0;   // 最旧消息所在的槽位
+        private int size = 0;
+        volatile long lastAccessTime = System.currentTimeMillis();
+        private long bytes = 0;             // 缓冲区和待摘要消息占用的字节数
+        private boolean attached = false;   // 是否已挂入contextMap（只有挂入的会话计入全局占用）
+        private boolean diskLoaded = false; // 是否已合并磁盘中保存的消息
+        private List<ChatMessage> evicted;  // 被淘汰、等待摘要的消息
+        
+        ConversationContext() {
+            this(MAX_MESSAGES_PER_CONVERSATION);
+        }
+        
+        /** @param capacity 缓冲区容量（基准测试用其他容量） */
+        ConversationContext(int capacity) {
+            buffer = new ChatMessage[capacity];
+        }
+        
+        /**
+         * 标记已从磁盘加载
+         * @return 是否为首次标记（调用方负责实际加载）
+         */
+        synchronized boolean markDiskLoaded() {
+            if (diskLoaded) {
+                return false;
+            }
+            diskLoaded = true;
+            return true;
+        }
+        
+        /** 第i条（0为最旧）消息 */
+        private ChatMessage at(int i) {
+            return buffer[(head + i) % buffer.length];
+        }
+        
+        private void set(int i, ChatMessage message) {
+            buffer[(head + i) % buffer.length] = message;
+        }
+        
+        private void account(long delta) {
+            bytes += delta;
+            if (attached) {
+                totalBytes.addAndGet(delta);
+            }
+        }
         
-        synchronized void addMessage(ChatMessage message) {
-            messages.add(message);
+        /** 挂入contextMap前调用，开始计入全局占用 */
+        synchronized void attach() {
+            if (!attached) {
+                attached = true;
+                totalBytes.addAndGet(bytes);
+            }
+        }
+        
+        /** 移出contextMap后调用，从全局占用中扣除 */
+        synchronized void detach() {
+            if (attached) {
+                attached = false;
+                totalBytes.addAndGet(-bytes);
+            }
+        }
+        
+        synchronized long bytes() {
+            return bytes;
+        }
+        
+        synchronized boolean contains(String msgId) {
+            return idIndex.containsKey(msgId);
+        }
+        
+        /**
+         * @return 是否添加成功（msgId重复或比已满缓冲区中最旧的消息还早时返回false）
+         */
+        synchronized boolean addMessage(ChatMessage message) {
+            lastAccessTime = System.currentTimeMillis();
+            if (message.msgId != null && idIndex.containsKey(message.msgId)) {
+                return false;
+            }
             
-            // 按时间戳排序（处理乱序加载问题）
-            java.util.Collections.sort(messages, new java.util.Comparator<ChatMessage>() {
-                @Override
-                public int compare(ChatMessage m1, ChatMessage m2) {
-                    return Long.compare(m1.timestamp, m2.timestamp);
+            int capacity = buffer.length;
+            if (size == 0 || message.timestamp >= at(size - 1).timestamp) {
+                // 快速路径：按时间顺序到达
+                if (size == capacity) {
+                    evictOldest();
                 }
-            });
-            
-            // 限制消息数量
-            while (messages.size() > MAX_MESSAGES_PER_CONVERSATION) {
-                messages.removeFirst();
+                set(size++, message);
+            } else {
+                // 乱序：二分查找第一个时间戳大于新消息的位置（同时间戳保持到达顺序）
+                int lo = 0;
+                int hi = size;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (at(mid).timestamp <= message.timestamp) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                if (size == capacity) {
+                    if (lo == 0) {
+                        // 比所有缓存消息都旧，插入后也会立即被淘汰
+                        return false;
+                    }
+                    evictOldest();
+                    lo--;
+                }
+                for (int i = size; i > lo; i--) {
+                    set(i, at(i - 1));
+                }
+                set(lo, message);
+                size++;
             }
-            lastAccessTime = System.currentTimeMillis();
+            if (message.msgId != null) {
+                idIndex.put(message.msgId, message);
+            }
+            account(message.byteSize);
+            return true;
+        }
+        
+        private void evictOldest() {
+            ChatMessage oldest = buffer[head];
+            buffer[head] = null;
+            head = (head + 1) % buffer.length;
+            size--;
+            if (oldest != null && oldest.msgId != null) {
+                idIndex.remove(oldest.msgId);
+            }
+            if (oldest == null) {
+                return;
+            }
+            // 保留给滚动摘要（最多一个缓冲区的量，关闭摘要时不保留）
+            if (keepEvicted && (evicted == null || evicted.size() < buffer.length)) {
+                if (evicted == null) {
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(oldest);
+            } else {
+                account(-oldest.byteSize);
+            }
+        }
+        
+        synchronized List<ChatMessage> drainEvicted() {
+            List<ChatMessage> result = evicted != null ? evicted : new ArrayList<ChatMessage>();
+            evicted = null;
+            for (ChatMessage msg : result) {
+                account(-msg.byteSize);
+            }
+            return result;
+        }
+        
+        synchronized int size() {
+            return size;
+        }
+        
+        /** 全部消息快照（写盘用，不更新访问时间） */
+        synchronized List<ChatMessage> snapshot() {
+            List<ChatMessage> result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(at(i));
+            }
+            return result;
         }
         
         synchronized List<ChatMessage> getRecentMessages(int count) {
             lastAccessTime = System.currentTimeMillis();
             
-            if (count <= 0 || messages.isEmpty()) {
+            if (count <= 0 || size == 0) {
                 return new ArrayList<>();
             }
             
-            int actualCount = Math.min(count, messages.size());
+            int actualCount = Math.min(count, size);
             // 获取最近的N条消息
             List<ChatMessage> result = new ArrayList<>(actualCount);
-            int startIndex = messages.size() - actualCount;
-            for (int i = startIndex; i < messages.size(); i++) {
-                result.add(messages.get(i));
+            for (int i = size - actualCount; i < size; i++) {
+                result.add(at(i));
             }
             
             return result;
         }
+        
+        synchronized List<ChatMessage> getMessagesByIds(java.util.Set<String> msgIds) {
+            List<ChatMessage> result = new ArrayList<>();
+            for (String msgId : msgIds) {
+                ChatMessage msg = idIndex.get(msgId);
+                if (msg != null) {
+                    result.add(msg);
+                }
+            }
+            java.util.Collections.sort(result, new java.util.Comparator<ChatMessage>() {
+                @Override
+                public int compare(ChatMessage m1, ChatMessage m2) {
+                    return Long.compare(m1.timestamp, m2.timestamp);
+                }
+            });
+            return result;
+        }
     }
     
     /**
@@ -194,8 +393,9 @@ public class MessageContextManager {
      * @param msgId 消息ID（用于去重）
      * @param msgTime 消息时间戳（毫秒）
      * @param imageCount 图片数量
+     * @return 是否新增到上下文（重复或被拒绝时返回false）
      */
-    public static void addMessage(String conversationId, String senderName, String senderUin, String content, 
+    public static boolean addMessage(String conversationId, String senderName, String senderUin, String content, 
                                   boolean isSelf, String msgId, long msgTime, int imageCount) {
         // XposedBridge.log(TAG + ": 📥 准备添加消息到上下文");
         // XposedBridge.log(TAG + ":   conversationId=" + conversationId);
@@ -207,32 +407,27 @@ public class MessageContextManager {
         
         if (conversationId == null || content == null || content.trim().isEmpty()) {
             debugLog(TAG + ": ❌ 拒绝添加：conversationId或content为空");
-            return;
+            return false;
         }
         
         try {
             ConversationContext context = contextMap.get(conversationId);
             if (context == null) {
-                // 检查是否需要清理旧会话
-                if (contextMap.size() >= MAX_CONVERSATIONS) {
-                    cleanup();
+                ConversationContext created = new ConversationContext();
+                created.attach();
+                context = contextMap.putIfAbsent(conversationId, created);
+                if (context == null) {
+                    context = created;
+                    debugLog(TAG + ": Created new conversation context: " + conversationId);
+                } else {
+                    created.detach();
                 }
-                
-                context = new ConversationContext();
-                contextMap.put(conversationId, context);
-                debugLog(TAG + ": Created new conversation context: " + conversationId);
             }
             
-            // 去重：如果msgId不为null，检查是否已存在
-            if (msgId != null) {
-                synchronized (context.messages) {
-                    for (ChatMessage msg : context.messages) {
-                        if (msgId.equals(msg.msgId)) {
-                            // XposedBridge.log(TAG + ": ⚠️ 跳过重复消息 (msgId=" + msgId + ")");
-                            return;
-                        }
-                    }
-                }
+            // 去重：msgId已存在时跳过（哈希索引，不再线性扫描）
+            if (msgId != null && context.contains(msgId)) {
+                // XposedBridge.log(TAG + ": ⚠️ 跳过重复消息 (msgId=" + msgId + ")");
+                return false;
             }
             
             // 如果传入的时间戳无效（0），使用当前时间
@@ -248,15 +443,25 @@ public class MessageContextManager {
                 imageCount
             );
             
-            context.addMessage(message);
+            if (!context.addMessage(message)) {
+                return false;
+            }
+            // 只标记脏，由后台线程批量写盘和摘要
+            ContextDiskStore.markDirty(conversationId);
+            ConversationSummarizer.markChanged(conversationId);
+            // 超过内存预算或会话数时在后台淘汰
+            cleanup();
             
             //XposedBridge.log(TAG + ": ✅ 成功添加消息 [" + conversationId + "] " 
             //    + senderName + ": " + content.substring(0, Math.min(30, content.length())) 
             //    + (content.length() > 30 ? "..." : ""));
-            //XposedBridge.log(TAG + ":   当前会话消息数=" + context.messages.size());
+            //XposedBridge.log(TAG + ":   当前会话消息数=" + context.size());
+            
+            return true;
             
         } catch (Exception e) {
             debugLog(TAG + ": Error adding message: " + e.getMessage());
+            return false;
         }
     }
     
@@ -273,7 +478,7 @@ public class MessageContextManager {
         }
         
         try {
-            ConversationContext context = contextMap.get(conversationId);
+            ConversationContext context = loadContext(conversationId);
             if (context == null) {
                 return new ArrayList<>();
             }
@@ -288,34 +493,218 @@ public class MessageContextManager {
         }
     }
     
+    /**
+     * 获取指定消息之前的上下文消息（不含该消息本身）
+     * 
+     * @param conversationId 会话ID
+     * @param msgId 当前消息ID（可为null）
+     * @param beforeTime 只返回时间戳不晚于此时间的消息
+     * @param count 需要的消息数量
+     * @return 最近的N条消息（按时间顺序，最旧的在前）
+     */
+    public static List<ChatMessage> getContextBefore(String conversationId, String msgId, long beforeTime, int count) {
+        if (conversationId == null || count <= 0) {
+            return new ArrayList<>();
+        }
+        ConversationContext context = loadContext(conversationId);
+        if (context == null) {
+            return new ArrayList<>();
+        }
+        List<ChatMessage> all = context.getRecentMessages(MAX_MESSAGES_PER_CONVERSATION);
+        List<ChatMessage> result = new ArrayList<>(Math.min(count, all.size()));
+        for (int i = all.size() - 1; i >= 0 && result.size() < count; i--) {
+            ChatMessage msg = all.get(i);
+            if (msg.timestamp <= beforeTime && (msgId == null || !msgId.equals(msg.msgId))) {
+                result.add(msg);
+            }
+        }
+        java.util.Collections.reverse(result);
+        return result;
+    }
+    
+    /**
+     * 按消息ID取回上下文消息（用于恢复持久化的请求）
+     * 
+     * @param conversationId 会话ID
+     * @param msgIds 消息ID列表
+     * @return 缓存中仍存在的消息（按时间顺序），找不到的消息被跳过
+     */
+    public static List<ChatMessage> getMessagesByIds(String conversationId, List<String> msgIds) {
+        if (conversationId == null || msgIds == null || msgIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        ConversationContext context = loadContext(conversationId);
+        if (context == null) {
+            return new ArrayList<>();
+        }
+        return context.getMessagesByIds(new java.util.HashSet<>(msgIds));
+    }
+    
+    /**
+     * 获取会话上下文，首次访问时合并磁盘中保存的消息
+     * 
+     * @return 内存和磁盘中都没有消息时返回null
+     */
+    private static ConversationContext loadContext(String conversationId) {
+        ConversationContext context = contextMap.get(conversationId);
+        if (context != null) {
+            mergeFromDisk(conversationId, context);
+            return context;
+        }
+        
+        List<ChatMessage> stored = ContextDiskStore.load(conversationId);
+        if (stored.isEmpty()) {
+            return null;
+        }
+        ConversationContext loaded = new ConversationContext();
+        loaded.markDiskLoaded();
+        for (ChatMessage msg : stored) {
+            loaded.addMessage(msg);
+        }
+        // 加载期间绑定线程可能已创建了该会话
+        loaded.attach();
+        context = contextMap.putIfAbsent(conversationId, loaded);
+        if (context == null) {
+            cleanup();
+            debugLog(TAG + ": Loaded " + stored.size() + " messages from disk: " + conversationId);
+            return loaded;
+        }
+        loaded.detach();
+        mergeFromDisk(conversationId, context);
+        return context;
+    }
+    
+    /**
+     * 将磁盘中保存的消息合并到内存会话（每个会话只执行一次）
+     * 内存中的会话可能是重启后由新消息创建的，按msgId去重、按时间戳插入
+     */
+    private static void mergeFromDisk(String conversationId, ConversationContext context) {
+        if (!context.markDiskLoaded()) {
+            return;
+        }
+        for (ChatMessage msg : ContextDiskStore.load(conversationId)) {
+            context.addMessage(msg);
+        }
+    }
+    
+    /**
+     * 取出被淘汰、等待摘要的消息（由 ConversationSummarizer 后台线程调用）
+     */
+    static List<ChatMessage> drainEvicted(String conversationId) {
+        ConversationContext context = contextMap.get(conversationId);
+        return context != null ? context.drainEvicted() : new ArrayList<ChatMessage>();
+    }
+    
+    /**
+     * 设置是否保留被淘汰的消息（由 ConversationSummarizer 按配置更新），不再保留时丢弃已保留的消息
+     */
+    static void setKeepEvicted(boolean keep) {
+        keepEvicted = keep;
+        if (!keep) {
+            dropEvicted();
+        }
+    }
+    
+    private static void dropEvicted() {
+        for (ConversationContext context : contextMap.values()) {
+            context.drainEvicted();
+        }
+    }
+    
+    /**
+     * 取会话的全部消息用于写盘（由 ContextDiskStore 后台线程调用）
+     * 写盘前先合并磁盘中已有的消息，避免重启后的新消息覆盖历史
+     * 
+     * @return 会话已被清除时返回null
+     */
+    static List<ChatMessage> snapshotForDisk(String conversationId) {
+        ConversationContext context = contextMap.get(conversationId);
+        if (context == null) {
+            return null;
+        }
+        mergeFromDisk(conversationId, context);
+        return context.snapshot();
+    }
+    
     /**
      * 清理过期的会话上下文
-     * 删除最久未访问的会话，直到数量降到合理范围
+     * 超过会话数或内存预算时，在后台线程删除最久未访问的会话，不阻塞调用线程
      */
     public static void cleanup() {
-        try {
-            if (contextMap.size() <= MAX_CONVERSATIONS) {
-                return;
-            }
-            
-            // 找到最久未访问的会话
-            String oldestKey = null;
-            long oldestTime = Long.MAX_VALUE;
-            
-            for (Map.Entry<String, ConversationContext> entry : contextMap.entrySet()) {
-                if (entry.getValue().lastAccessTime < oldestTime) {
-                    oldestTime = entry.getValue().lastAccessTime;
-                    oldestKey = entry.getKey();
+        if (contextMap.size() <= MAX_CONVERSATIONS && totalBytes.get() <= MAX_TOTAL_BYTES) {
+            return;
+        }
+        if (trimScheduled.compareAndSet(false, true)) {
+            trimExecutor.execute(() -> {
+                try {
+                    trim();
+                } catch (Exception e) {
+                    debugLog(TAG + ": Error during cleanup: " + e.getMessage());
+                } finally {
+                    trimScheduled.set(false);
                 }
+            });
+        }
+    }
+    
+    /**
+     * 淘汰候选：会话及复制时的最近访问时间
+     */
+    private static final class TrimCandidate {
+        final String conversationId;
+        final ConversationContext context;
+        final long lastAccessTime;
+        
+        TrimCandidate(String conversationId, ConversationContext context) {
+            this.conversationId = conversationId;
+            this.context = context;
+            this.lastAccessTime = context.lastAccessTime;
+        }
+    }
+    
+    /**
+     * 按最近访问时间淘汰会话，直到会话数和内存占用都回到预算内
+     * 最近访问的会话始终保留；被淘汰的会话先写盘，之后访问时可从磁盘重新加载
+     */
+    private static void trim() {
+        // 等待摘要的淘汰消息计入内存预算，摘要线程未及时取走时先丢弃它们
+        dropEvicted();
+        
+        // 复制访问时间后再排序：排序期间其他线程仍会更新 lastAccessTime，直接比较会违反比较器约定
+        List<TrimCandidate> candidates = new ArrayList<>(contextMap.size());
+        for (Map.Entry<String, ConversationContext> e : contextMap.entrySet()) {
+            candidates.add(new TrimCandidate(e.getKey(), e.getValue()));
+        }
+        if (candidates.size() <= 1) {
+            return;
+        }
+        TrimCandidate[] entries = candidates.toArray(new TrimCandidate[0]);
+        java.util.Arrays.sort(entries, (a, b) -> Long.compare(a.lastAccessTime, b.lastAccessTime));
+        
+        long targetBytes = (long) (MAX_TOTAL_BYTES * TRIM_TARGET_RATIO);
+        int removed = 0;
+        long freed = 0;
+        for (int i = 0; i < entries.length - 1; i++) {
+            if (contextMap.size() <= MAX_CONVERSATIONS && totalBytes.get() <= targetBytes) {
+                break;
             }
-            
-            if (oldestKey != null) {
-                contextMap.remove(oldestKey);
-                debugLog(TAG + ": Cleaned up old conversation: " + oldestKey);
+            String conversationId = entries[i].conversationId;
+            ConversationContext context = entries[i].context;
+            if (!contextMap.remove(conversationId, context)) {
+                continue; // 已被其他线程移除或替换
             }
-            
-        } catch (Exception e) {
-            debugLog(TAG + ": Error during cleanup: " + e.getMessage());
+            // 移出后立即写盘，避免尚未批量写入的新消息丢失
+            mergeFromDisk(conversationId, context);
+            List<ChatMessage> snapshot = context.snapshot();
+            freed += context.bytes();
+            context.detach();
+            ContextDiskStore.saveNow(conversationId, snapshot);
+            removed++;
+        }
+        if (removed > 0) {
+            trimmedCount.addAndGet(removed);
+            debugLog(TAG + ": Trimmed " + removed + " conversations, freed " + freed + " bytes, now "
+                    + totalBytes.get() + " bytes / " + contextMap.size() + " conversations");
         }
     }
     
@@ -326,7 +715,13 @@ public class MessageContextManager {
      */
     public static void clearConversation(String conversationId) {
         if (conversationId != null) {
-            contextMap.remove(conversationId);
+            ConversationContext context = contextMap.remove(conversationId);
+            if (context != null) {
+                context.detach();
+            }
+            ContextDiskStore.remove(conversationId);
+            ContextBackfill.reset(conversationId);
+            ConversationSummarizer.clear(conversationId);
             debugLog(TAG + ": Cleared conversation: " + conversationId);
         }
     }
@@ -335,14 +730,60 @@ public class MessageContextManager {
      * 清除所有上下文
      */
     public static void clearAll() {
-        contextMap.clear();
+        for (String conversationId : new ArrayList<>(contextMap.keySet())) {
+            ConversationContext context = contextMap.remove(conversationId);
+            if (context != null) {
+                context.detach();
+            }
+        }
+        ContextDiskStore.clear();
+        ConversationSummarizer.clearAll();
         debugLog(TAG + ": Cleared all conversations");
     }
     
+    /**
+     * 每个会话最多缓存的消息数
+     */
+    public static int getMaxMessagesPerConversation() {
+        return MAX_MESSAGES_PER_CONVERSATION;
+    }
+    
     /**
      * 获取当前缓存的会话数量
      */
     public static int getConversationCount() {
         return contextMap.size();
     }
+    
+    /**
+     * 获取当前缓存的消息总数
+     */
+    public static int getMessageCount() {
+        int count = 0;
+        for (ConversationContext context : contextMap.values()) {
+            count += context.size();
+        }
+        return count;
+    }
+    
+    /**
+     * 当前缓存占用的估算字节数
+     */
+    public static long getMemoryBytes() {
+        return totalBytes.get();
+    }
+    
+    /**
+     * 全局内存预算（字节）
+     */
+    public static long getMemoryBudgetBytes() {
+        return MAX_TOTAL_BYTES;
+    }
+    
+    /**
+     * 因内存预算或会话数被淘汰的会话数
+     */
+    public static long getTrimmedCount() {
+        return trimmedCount.get();
+    }
 }
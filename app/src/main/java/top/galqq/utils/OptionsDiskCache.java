@@ -0,0 +1,313 @@
+package top.galqq.utils;
+
+import com.tencent.mmkv.MMKV;
+
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.robv.android.xposed.XposedBridge;
+import top.galqq.config.ConfigManager;
+
+/**
+ * AI选项持久化缓存
+ *
+ * 功能：
+ * 1. 使用独立的 MMKV 文件保存AI生成的选项，QQ进程重启后依然有效
+ * 2. 缓存键 = msgId + 提示词/模型指纹，切换模型或修改提示词后旧结果自动失效
+ * 3. 按最近访问时间 LRU 淘汰，最多保存 MAX_ENTRIES 条
+ * 4. 懒加载：访问时间索引在后台线程首次写入时建立，读取时只解码命中的条目
+ * 5. 读取命中只在内存记录访问时间，由后台线程批量写盘，UI绑定路径上不写MMKV
+ */
+public class OptionsDiskCache {
+
+    private static final String TAG = "GalQQ.OptionsDiskCache";
+
+    private static void debugLog(String message) {
+        try {
+            if (ConfigManager.isVerboseLogEnabled()) {
+                XposedBridge.log(message);
+            }
+        } catch (Throwable ignored) {}
+    }
+
+    private static final String MMKV_ID = "galqq_options_cache";
+
+    // 最大缓存条目数
+    private static final int MAX_ENTRIES = 2000;
+
+    // 存储键前缀：选项内容 / 最近访问时间
+    private static final String PREFIX_OPTIONS = "o:";
+    private static final String PREFIX_ACCESS = "t:";
+
+    private static final long ACCESS_FLUSH_DELAY_MS = 5000;
+
+    // 索引维护、访问时间写盘、淘汰都在该线程进行，不占用UI绑定路径
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "GalQQ-OptionsCache");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private static volatile MMKV sMmkv;
+
+    // 访问顺序索引：缓存键 -> 最近访问时间（只在 writer 线程中构建和修改）
+    private static LinkedHashMap<String, Long> sIndex;
+    private static volatile int sSize;
+
+    // 尚未写盘的访问时间（读取命中时只记在内存，由 writer 线程批量写入）
+    private static final Map<String, Long> pendingAccess = new ConcurrentHashMap<>();
+    private static final AtomicBoolean accessFlushScheduled = new AtomicBoolean(false);
+
+    // 指纹缓存：本进程修改模型/提示词后立即刷新，其他进程的修改最多延迟 FINGERPRINT_CACHE_DURATION 生效
+    private static final long FINGERPRINT_CACHE_DURATION = 5000;
+    private static volatile Fingerprint sFingerprint;
+
+    private static final class Fingerprint {
+        final String value;
+        final int configVersion;
+        final long computedAt;
+
+        Fingerprint(String value, int configVersion, long computedAt) {
+            this.value = value;
+            this.configVersion = configVersion;
+            this.computedAt = computedAt;
+        }
+    }
+
+    /**
+     * 读取缓存的选项（只解码命中的条目，不写盘、不等待索引加载）
+     * @return 选项列表，未命中返回 null
+     */
+    public static List<String> get(String msgId) {
+        MMKV mmkv;
+        if (msgId == null || (mmkv = openMmkv()) == null) {
+            return null;
+        }
+        String key = buildKey(msgId);
+        String json = mmkv.decodeString(PREFIX_OPTIONS + key, null);
+        if (json == null) {
+            return null;
+        }
+
+        List<String> options = parseOptions(json);
+        if (options == null) {
+            writer.execute(() -> {
+                if (ensureLoaded()) {
+                    removeEntry(key);
+                }
+            });
+            return null;
+        }
+
+        // 更新访问时间（LRU），延迟批量写盘
+        pendingAccess.put(key, System.currentTimeMillis());
+        if (accessFlushScheduled.compareAndSet(false, true)) {
+            writer.schedule(OptionsDiskCache::flushAccess, ACCESS_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+        return options;
+    }
+
+    /**
+     * 写入缓存，超出容量时在后台淘汰最久未访问的条目
+     */
+    public static void put(String msgId, List<String> options) {
+        MMKV mmkv;
+        if (msgId == null || options == null || options.isEmpty() || (mmkv = openMmkv()) == null) {
+            return;
+        }
+        String key = buildKey(msgId);
+        long now = System.currentTimeMillis();
+
+        // 内容与访问时间一起立即写入：随后的 get 能命中，进程在索引更新前退出也不会留下无法淘汰的条目
+        mmkv.encode(PREFIX_OPTIONS + key, new JSONArray(options).toString());
+        mmkv.encode(PREFIX_ACCESS + key, now);
+        writer.execute(() -> {
+            if (!ensureLoaded()) {
+                return;
+            }
+            sIndex.put(key, now);
+
+            Iterator<Map.Entry<String, Long>> it = sIndex.entrySet().iterator();
+            while (sIndex.size() > MAX_ENTRIES && it.hasNext()) {
+                String eldest = it.next().getKey();
+                it.remove();
+                pendingAccess.remove(eldest);
+                sMmkv.removeValuesForKeys(new String[]{PREFIX_OPTIONS + eldest, PREFIX_ACCESS + eldest});
+            }
+            sSize = sIndex.size();
+        });
+    }
+
+    /**
+     * 清空缓存
+     */
+    public static void clear() {
+        writer.execute(() -> {
+            if (!ensureLoaded()) {
+                return;
+            }
+            pendingAccess.clear();
+            sMmkv.clearAll();
+            sIndex.clear();
+            sSize = 0;
+            debugLog(TAG + ": 缓存已清空");
+        });
+    }
+
+    /**
+     * 当前缓存条目数（索引尚未在后台加载完成时为0）
+     */
+    public static int size() {
+        return sSize;
+    }
+
+    // ========== 内部方法 ==========
+
+    private static MMKV openMmkv() {
+        MMKV mmkv = sMmkv;
+        if (mmkv == null) {
+            try {
+                mmkv = MMKV.mmkvWithID(MMKV_ID, MMKV.MULTI_PROCESS_MODE);
+                sMmkv = mmkv;
+            } catch (Throwable t) {
+                debugLog(TAG + ": 打开失败: " + t.getMessage());
+                return null;
+            }
+        }
+        return mmkv;
+    }
+
+    /**
+     * 批量写入读取命中时记录的访问时间（writer 线程）
+     */
+    private static void flushAccess() {
+        accessFlushScheduled.set(false);
+        if (pendingAccess.isEmpty() || !ensureLoaded()) {
+            return;
+        }
+        int written = 0;
+        Iterator<Map.Entry<String, Long>> it = pendingAccess.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            it.remove();
+            // 已被淘汰的条目不再恢复访问时间
+            if (sIndex.containsKey(e.getKey())) {
+                sIndex.put(e.getKey(), e.getValue());
+                sMmkv.encode(PREFIX_ACCESS + e.getKey(), e.getValue());
+                written++;
+            }
+        }
+        debugLog(TAG + ": 写入访问时间 " + written + " 条");
+    }
+
+    /**
+     * 建立LRU索引（只在 writer 线程调用）
+     */
+    private static boolean ensureLoaded() {
+        if (sIndex != null) {
+            return true;
+        }
+        try {
+            MMKV mmkv = openMmkv();
+            if (mmkv == null) {
+                return false;
+            }
+
+            // 按访问时间升序建立LRU索引
+            List<Map.Entry<String, Long>> entries = new ArrayList<>();
+            java.util.Set<String> optionKeys = new java.util.HashSet<>();
+            String[] keys = mmkv.allKeys();
+            if (keys != null) {
+                for (String k : keys) {
+                    if (k.startsWith(PREFIX_ACCESS)) {
+                        String key = k.substring(PREFIX_ACCESS.length());
+                        entries.add(new java.util.AbstractMap.SimpleEntry<>(key, mmkv.decodeLong(k, 0)));
+                    } else if (k.startsWith(PREFIX_OPTIONS)) {
+                        optionKeys.add(k.substring(PREFIX_OPTIONS.length()));
+                    }
+                }
+            }
+            // 只有内容、没有访问时间的条目（写入访问时间前进程退出）：视为最久未访问，优先淘汰
+            for (Map.Entry<String, Long> e : entries) {
+                optionKeys.remove(e.getKey());
+            }
+            for (String key : optionKeys) {
+                entries.add(new java.util.AbstractMap.SimpleEntry<>(key, 0L));
+            }
+            java.util.Collections.sort(entries, (a, b) -> Long.compare(a.getValue(), b.getValue()));
+
+            LinkedHashMap<String, Long> index = new LinkedHashMap<>(Math.max(16, entries.size() * 2), 0.75f, true);
+            for (Map.Entry<String, Long> e : entries) {
+                index.put(e.getKey(), e.getValue());
+            }
+
+            sIndex = index;
+            sSize = index.size();
+            debugLog(TAG + ": 加载索引完成，共 " + index.size() + " 条（补录无访问时间条目 " + optionKeys.size() + " 条）");
+            return true;
+        } catch (Throwable t) {
+            debugLog(TAG + ": 初始化失败: " + t.getMessage());
+            return false;
+        }
+    }
+
+    private static void removeEntry(String key) {
+        sIndex.remove(key);
+        sSize = sIndex.size();
+        sMmkv.removeValuesForKeys(new String[]{PREFIX_OPTIONS + key, PREFIX_ACCESS + key});
+    }
+
+    private static String buildKey(String msgId) {
+        return msgId + "|" + getFingerprint();
+    }
+
+    /**
+     * 提示词/模型指纹：模型名 + 提示词列表，任意一项变化都会使旧缓存失效
+     * 绑定路径上直接返回缓存值，只在配置变化或缓存过期时重新读取
+     */
+    private static String getFingerprint() {
+        int version = ConfigManager.getPromptConfigVersion();
+        long now = System.currentTimeMillis();
+        Fingerprint cached = sFingerprint;
+        if (cached != null && cached.configVersion == version
+                && (now - cached.computedAt) < FINGERPRINT_CACHE_DURATION) {
+            return cached.value;
+        }
+        String source;
+        try {
+            source = ConfigManager.getAiModel() + "\n" + ConfigManager.getString(ConfigManager.KEY_PROMPT_LIST, "");
+        } catch (Throwable t) {
+            source = "";
+        }
+        String value = Integer.toHexString(source.hashCode());
+        sFingerprint = new Fingerprint(value, version, now);
+        return value;
+    }
+
+    private static List<String> parseOptions(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            JSONArray array = new JSONArray(json);
+            List<String> options = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                options.add(array.getString(i));
+            }
+            return options.isEmpty() ? null : options;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
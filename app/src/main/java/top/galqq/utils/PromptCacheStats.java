@@ -0,0 +1,91 @@
+package top.galqq.utils;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 服务商提示词缓存统计
+ *
+ * 从响应的 usage 中读取命中缓存的输入token数，累计后供监控面板展示：
+ * - OpenAI / 通义千问 / Kimi 等：usage.prompt_tokens_details.cached_tokens
+ * - DeepSeek：usage.prompt_cache_hit_tokens
+ * - 部分服务商：usage.cached_tokens
+ */
+public class PromptCacheStats {
+
+    private static final AtomicLong promptTokens = new AtomicLong();
+    private static final AtomicLong cachedTokens = new AtomicLong();
+    private static final AtomicLong reportedRequests = new AtomicLong();
+
+    /**
+     * 记录一次响应的用量
+     * @param usage 响应中的 usage 对象（可为null）
+     */
+    public static void record(JSONObject usage) {
+        if (usage == null) {
+            return;
+        }
+        int prompt = usage.optInt("prompt_tokens", -1);
+        if (prompt < 0) {
+            prompt = usage.optInt("input_tokens", -1);
+        }
+        int cached = parseCachedTokens(usage);
+        if (prompt <= 0 || cached < 0) {
+            return;
+        }
+        promptTokens.addAndGet(prompt);
+        cachedTokens.addAndGet(Math.min(cached, prompt));
+        reportedRequests.incrementAndGet();
+    }
+
+    /**
+     * 从 usage 中读取命中缓存的token数
+     * @return token数，服务商未返回时为 -1
+     */
+    public static int parseCachedTokens(JSONObject usage) {
+        if (usage == null) {
+            return -1;
+        }
+        JSONObject details = usage.optJSONObject("prompt_tokens_details");
+        if (details != null && details.has("cached_tokens")) {
+            return details.optInt("cached_tokens", -1);
+        }
+        if (usage.has("prompt_cache_hit_tokens")) {
+            return usage.optInt("prompt_cache_hit_tokens", -1);
+        }
+        if (usage.has("cached_tokens")) {
+            return usage.optInt("cached_tokens", -1);
+        }
+        return -1;
+    }
+
+    /**
+     * 缓存命中比例（0~1）= 命中缓存的输入token / 输入token，尚无数据时返回 0
+     */
+    public static double getCachedRatio() {
+        long total = promptTokens.get();
+        return total > 0 ? (double) cachedTokens.get() / total : 0;
+    }
+
+    public static long getCachedTokens() {
+        return cachedTokens.get();
+    }
+
+    public static long getPromptTokens() {
+        return promptTokens.get();
+    }
+
+    /**
+     * 返回了缓存用量的请求数
+     */
+    public static long getReportedRequests() {
+        return reportedRequests.get();
+    }
+
+    public static void reset() {
+        promptTokens.set(0);
+        cachedTokens.set(0);
+        reportedRequests.set(0);
+    }
+}
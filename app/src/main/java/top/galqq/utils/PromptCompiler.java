@@ -0,0 +1,452 @@
+package top.galqq.utils;
+
+import android.content.Context;
+import android.util.LruCache;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import top.galqq.config.ConfigManager;
+
+/**
+ * 增量提示词编译器
+ *
+ * 功能：
+ * 1. 缓存每条上下文消息序列化后的JSON（"昵称[我][qq][时间]: 内容"），图片识别开关变化时重新生成
+ * 2. 编译结果（CompiledContext）只保存各条消息JSON的引用，不拼接中间字符串；
+ *    上下文窗口滑动时旧消息直接复用已序列化的片段，只有新消息需要序列化，
+ *    拼装请求体时各片段直接写入请求体，整个上下文只复制这一次
+ * 3. 正则、时间格式化器只创建一次
+ *
+ * 服务商前缀缓存友好的布局：
+ * - 上下文行不包含好感度等易变信息，好感度统一放在最后一条user消息里（buildAffinityNote）
+ * - 上下文窗口起点固定（anchorWindow），新消息只在末尾追加，窗口超出一定余量后才整体前移
+ * 这样同一会话连续请求的 系统提示词 + 较早的上下文 在字节上保持一致，可命中服务商的提示词缓存。
+ *
+ * 带base64图片的上下文消息体积大且依赖图片缓存，不做缓存，每次重新生成。
+ */
+public class PromptCompiler {
+
+    // [图片: URL (宽x高)]
+    private static final Pattern IMAGE_TAG_PATTERN = Pattern.compile("\\[图片:[^\\]]*\\]");
+    // [图片内容:\n  图1: ...\n  图2: ...]
+    private static final Pattern IMAGE_CONTENT_PATTERN = Pattern.compile("\\[图片内容:[^\\]]*\\]");
+    // 上下文中的图片URL
+    private static final Pattern IMAGE_URL_PATTERN = Pattern.compile("\\[图片:\\s*(https?://[^\\s\\]]+)");
+
+    private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
+        }
+    };
+
+    // 单条消息缓存：ChatMessage（MessageContextManager中的同一对象）-> 序列化结果
+    private static final Map<MessageContextManager.ChatMessage, CompiledLine> lineCache = new WeakHashMap<>();
+
+    // 会话窗口起点：conversationId -> 上一次上下文的第一条消息
+    private static final LruCache<String, MessageContextManager.ChatMessage> windowAnchors = new LruCache<>(50);
+
+    /**
+     * 单条上下文消息的编译结果
+     */
+    private static class CompiledLine {
+        final String json;
+        final boolean imageRecognition; // 生成时的图片识别开关
+        final boolean cacheable;        // 带base64图片的消息不缓存
+
+        CompiledLine(String json, boolean imageRecognition, boolean cacheable) {
+            this.json = json;
+            this.imageRecognition = imageRecognition;
+            this.cacheable = cacheable;
+        }
+    }
+
+    /**
+     * 编译好的上下文：按顺序保存各条消息的JSON片段，拼装请求体时以逗号连接写入
+     */
+    public static final class CompiledContext {
+        public static final CompiledContext EMPTY = new CompiledContext(new String[0], 0);
+
+        private final String[] segments;
+        private final int length;
+
+        CompiledContext(String[] segments, int length) {
+            this.segments = segments;
+            this.length = length;
+        }
+
+        public boolean isEmpty() {
+            return segments.length == 0;
+        }
+
+        /** 消息条数 */
+        public int size() {
+            return segments.length;
+        }
+
+        /** 以逗号连接后的字符数 */
+        public int length() {
+            return length;
+        }
+
+        /** 第i条消息的JSON片段 */
+        String segment(int i) {
+            return segments[i];
+        }
+
+        /** 以逗号连接写入 sb（可直接放入messages数组） */
+        public void appendTo(StringBuilder sb) {
+            for (int i = 0; i < segments.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(segments[i]);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(length);
+            appendTo(sb);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * 窗口余量：起点固定时，上下文最多可以比配置条数多出的条数
+     */
+    public static int windowSlack(int count) {
+        return Math.max(1, count / 2);
+    }
+
+    /**
+     * 选择上下文窗口（起点固定）
+     *
+     * 上一次窗口的第一条消息仍在候选中，且从它开始不超过 count + windowSlack(count) 条时，
+     * 沿用该起点（只在末尾追加新消息，保持前缀不变）；否则取最近 count 条并记录新起点。
+     *
+     * @param candidates 按时间顺序排列的候选消息（应至少包含最近 count + windowSlack(count) 条）
+     * @param count      配置的上下文条数
+     */
+    public static List<MessageContextManager.ChatMessage> anchorWindow(String conversationId,
+                                                                      List<MessageContextManager.ChatMessage> candidates,
+                                                                      int count) {
+        if (candidates == null || candidates.isEmpty()) {
+            return candidates;
+        }
+        int size = candidates.size();
+        if (conversationId != null) {
+            MessageContextManager.ChatMessage anchor = windowAnchors.get(conversationId);
+            if (anchor != null) {
+                int start = indexOfMessage(candidates, anchor);
+                if (start >= 0 && size - start <= count + windowSlack(count)) {
+                    return candidates.subList(start, size);
+                }
+            }
+        }
+        int start = Math.max(0, size - count);
+        List<MessageContextManager.ChatMessage> window = candidates.subList(start, size);
+        if (conversationId != null) {
+            windowAnchors.put(conversationId, window.get(0));
+        }
+        return window;
+    }
+
+    /**
+     * 好感度说明：列出上下文中各发送人的好感度，放在最后一条user消息里
+     * @return 说明文本，未启用好感度或没有可用数据时返回空字符串
+     */
+    public static String buildAffinityNote(Context context, List<MessageContextManager.ChatMessage> contextMessages) {
+        if (contextMessages == null || contextMessages.isEmpty()
+                || !ConfigManager.isAffinityEnabled() || !ConfigManager.isAiIncludeAffinity()) {
+            return "";
+        }
+        Map<String, Integer> affinityLookup = new HashMap<>();
+        StringBuilder sb = new StringBuilder();
+        for (MessageContextManager.ChatMessage msg : contextMessages) {
+            if (msg.isSelf || msg.senderUin == null || msg.senderUin.isEmpty()
+                    || affinityLookup.containsKey(msg.senderUin)) {
+                continue;
+            }
+            int affinity = lookupAffinity(context, msg.senderUin, affinityLookup);
+            if (affinity < 0) {
+                continue;
+            }
+            String displayName = (msg.senderName != null && !msg.senderName.isEmpty())
+                ? msg.senderName : "昵称获取失败";
+            sb.append("\n[好感度:").append(affinity).append("]")
+              .append(displayName).append("[").append(msg.senderUin).append("]");
+        }
+        return sb.length() > 0 ? "上下文发送人好感度:" + sb : "";
+    }
+
+    /**
+     * 编译上下文消息
+     * @return 编译结果，无上下文返回 CompiledContext.EMPTY
+     */
+    public static CompiledContext compileContext(Context context, String conversationId,
+                                                 List<MessageContextManager.ChatMessage> contextMessages) throws JSONException {
+        if (contextMessages == null || contextMessages.isEmpty()) {
+            return CompiledContext.EMPTY;
+        }
+        boolean imageRecognition = ConfigManager.isImageRecognitionEnabled();
+        // 检查是否启用上下文图片识别（不再要求必须启用外挂AI）
+        boolean contextImageEnabled = ConfigManager.isContextImageRecognitionEnabled()
+                                    && imageRecognition
+                                    && conversationId != null;
+        return compileContext(conversationId, contextMessages, imageRecognition, contextImageEnabled);
+    }
+
+    /**
+     * 编译上下文消息（配置已读取）：已缓存的消息直接取用序列化结果，只序列化新消息
+     */
+    static CompiledContext compileContext(String conversationId, List<MessageContextManager.ChatMessage> contextMessages,
+                                          boolean imageRecognition, boolean contextImageEnabled) throws JSONException {
+        if (contextMessages == null || contextMessages.isEmpty()) {
+            return CompiledContext.EMPTY;
+        }
+        String[] segments = new String[contextMessages.size()];
+        int length = segments.length - 1;
+        for (int i = 0; i < segments.length; i++) {
+            MessageContextManager.ChatMessage msg = contextMessages.get(i);
+            CompiledLine line;
+            synchronized (lineCache) {
+                line = lineCache.get(msg);
+            }
+            if (line == null || !line.cacheable || line.imageRecognition != imageRecognition) {
+                line = compileLine(msg, imageRecognition, contextImageEnabled, conversationId);
+                if (line.cacheable) {
+                    synchronized (lineCache) {
+                        lineCache.put(msg, line);
+                    }
+                }
+            }
+            segments[i] = line.json;
+            length += line.json.length();
+        }
+        return new CompiledContext(segments, length);
+    }
+
+    /**
+     * 拼装请求体：在已构建的参数对象中加入messages数组（上下文部分直接使用编译好的字符串）
+     * 会话摘要（可为null）紧跟系统提示词之后，系统提示词本身保持不变以便服务商缓存前缀
+     */
+    public static String assembleBody(JSONObject params, JSONObject systemMessage, JSONObject summaryMessage,
+                                      CompiledContext compiledContext, JSONObject userMessage) {
+        String head = params.toString();
+        StringBuilder sb = new StringBuilder(head.length() + compiledContext.length() + 1024);
+        sb.append(head, 0, head.length() - 1);
+        if (head.length() > 2) {
+            sb.append(',');
+        }
+        sb.append("\"messages\":[").append(systemMessage.toString());
+        if (summaryMessage != null) {
+            sb.append(',').append(summaryMessage.toString());
+        }
+        if (!compiledContext.isEmpty()) {
+            sb.append(',');
+            compiledContext.appendTo(sb);
+        }
+        sb.append(',').append(userMessage.toString()).append("]}");
+        return sb.toString();
+    }
+
+    /**
+     * 移除消息中的图片信息（图片识别关闭时使用）
+     */
+    public static String stripImageInfo(String text) {
+        if (text == null) {
+            return null;
+        }
+        String result = text;
+        if (result.contains("[图片:")) {
+            result = IMAGE_TAG_PATTERN.matcher(result).replaceAll("");
+        }
+        if (result.contains("[图片内容:")) {
+            result = IMAGE_CONTENT_PATTERN.matcher(result).replaceAll("");
+        }
+        return result.trim();
+    }
+
+    /**
+     * 格式化时间为 HH:mm:ss
+     */
+    public static String formatTime(long timestamp) {
+        return TIME_FORMAT.get().format(new Date(timestamp));
+    }
+
+    // ========== 内部方法 ==========
+
+    private static int indexOfMessage(List<MessageContextManager.ChatMessage> messages,
+                                      MessageContextManager.ChatMessage target) {
+        for (int i = 0; i < messages.size(); i++) {
+            MessageContextManager.ChatMessage msg = messages.get(i);
+            if (msg == target || (target.msgId != null && target.msgId.equals(msg.msgId))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lookupAffinity(Context context, String uin, Map<String, Integer> affinityLookup) {
+        if (uin == null || uin.isEmpty()) {
+            return -1;
+        }
+        Integer cached = affinityLookup.get(uin);
+        if (cached != null) {
+            return cached;
+        }
+        int affinity = -1;
+        try {
+            affinity = AffinityManager.getInstance(context).getAffinity(uin);
+        } catch (Throwable t) {
+            // 忽略好感度获取失败
+        }
+        affinityLookup.put(uin, affinity);
+        return affinity;
+    }
+
+    /**
+     * 编译单条上下文消息为 {"role": ..., "content": ...}
+     */
+    private static CompiledLine compileLine(MessageContextManager.ChatMessage msg,
+                                            boolean imageRecognition, boolean contextImageEnabled,
+                                            String conversationId) throws JSONException {
+        JSONObject ctxMsg = new JSONObject();
+        // 对方的消息作为"user"，自己的消息作为"assistant"
+        ctxMsg.put("role", msg.isSelf ? "assistant" : "user");
+
+        String timeStr = formatTime(msg.timestamp);
+
+        // 【修复】如果图片识别关闭，过滤掉消息内容中的图片信息
+        String msgContent = imageRecognition ? msg.content : stripImageInfo(msg.content);
+
+        // 如果启用上下文图片识别，尝试获取缓存的图片描述或base64
+        // 扩展条件：检查 hasImages 或消息内容中包含图片URL
+        boolean hasImageContent = msg.hasImages && msg.imageCount > 0;
+        boolean hasImageUrl = msgContent != null && msgContent.contains("[图片:") && msgContent.contains("multimedia.nt.qq.com.cn");
+        boolean cacheable = true;
+
+        if (contextImageEnabled && (hasImageContent || hasImageUrl)) {
+            // 图片描述可能稍后才识别完成，不缓存
+            cacheable = false;
+            List<String> base64Images = new ArrayList<>();
+            List<String> textDescriptions = new ArrayList<>();
+            boolean hasBase64Images = false;
+
+            // 方式1：从 hasImages 标记的消息获取缓存
+            if (hasImageContent && msg.msgId != null) {
+                List<String> cachedDescriptions = ImageDescriptionCache.getAll(conversationId, msg.msgId, msg.imageCount);
+                for (String cached : cachedDescriptions) {
+                    if (cached != null && cached.startsWith("BASE64:")) {
+                        hasBase64Images = true;
+                        base64Images.add(cached.substring(7)); // 去掉 "BASE64:" 前缀
+                    } else if (cached != null) {
+                        textDescriptions.add(cached);
+                    }
+                }
+            }
+
+            // 方式2：从消息内容中提取的图片URL获取缓存
+            if (!hasBase64Images && hasImageUrl) {
+                Matcher matcher = IMAGE_URL_PATTERN.matcher(msg.content);
+                int imageIndex = 0;
+                while (matcher.find()) {
+                    String imageUrl = matcher.group(1);
+                    if (imageUrl.contains(" (")) {
+                        imageUrl = imageUrl.substring(0, imageUrl.indexOf(" ("));
+                    }
+
+                    String cacheKey = msg.msgId != null ? msg.msgId : ("url_" + imageUrl.hashCode());
+                    String cached = ImageDescriptionCache.get(conversationId, cacheKey, imageIndex);
+
+                    if (cached != null && cached.startsWith("BASE64:")) {
+                        hasBase64Images = true;
+                        base64Images.add(cached.substring(7));
+                    } else if (cached != null) {
+                        textDescriptions.add(cached);
+                    }
+
+                    imageIndex++;
+                }
+            }
+
+            if (hasBase64Images) {
+                // 有base64图片，需要构建带图片的content数组
+                JSONArray contentArray = new JSONArray();
+
+                StringBuilder textContent = new StringBuilder();
+                appendHeader(textContent, msg, timeStr);
+                textContent.append(msgContent);
+                if (!textDescriptions.isEmpty()) {
+                    textContent.append("\n[图片描述: ").append(String.join(", ", textDescriptions)).append("]");
+                }
+
+                JSONObject textObj = new JSONObject();
+                textObj.put("type", "text");
+                textObj.put("text", textContent.toString());
+                contentArray.put(textObj);
+
+                // 添加图片
+                for (String base64 : base64Images) {
+                    JSONObject imageContent = new JSONObject();
+                    imageContent.put("type", "image_url");
+                    JSONObject imageUrlObj = new JSONObject();
+                    imageUrlObj.put("url", base64); // base64已经带有data:image前缀
+                    imageUrlObj.put("detail", "low");
+                    imageContent.put("image_url", imageUrlObj);
+                    contentArray.put(imageContent);
+                }
+
+                ctxMsg.put("content", contentArray);
+                return new CompiledLine(ctxMsg.toString(), imageRecognition, false);
+            } else if (!textDescriptions.isEmpty()) {
+                // 只有文字描述（外挂AI识别的结果）
+                msgContent = msg.getContentWithImageDescriptions(conversationId);
+            }
+        }
+
+        // 格式化为 "发送人[我][qq号] [时间]: 消息内容"（好感度见 buildAffinityNote）
+        StringBuilder formattedContent = new StringBuilder();
+        appendHeader(formattedContent, msg, timeStr);
+        formattedContent.append(msgContent);
+
+        ctxMsg.put("content", formattedContent.toString());
+        return new CompiledLine(ctxMsg.toString(), imageRecognition, cacheable);
+    }
+
+    /**
+     * 消息头："发送人[我][qq号] [时间]: "
+     */
+    private static void appendHeader(StringBuilder sb, MessageContextManager.ChatMessage msg, String timeStr) {
+        // 发送人名称（如果获取失败显示"昵称获取失败"）
+        String displayName = (msg.senderName != null && !msg.senderName.isEmpty())
+            ? msg.senderName : "昵称获取失败";
+        sb.append(displayName);
+
+        // [我]标记（如果是自己发送的）
+        if (msg.isSelf) {
+            sb.append("[我]");
+        }
+
+        // QQ号（如果有）
+        if (msg.senderUin != null && !msg.senderUin.isEmpty()) {
+            sb.append("[").append(msg.senderUin).append("]");
+        }
+
+        sb.append(" [").append(timeStr).append("]: ");
+    }
+}
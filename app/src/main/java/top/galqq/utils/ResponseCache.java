@@ -0,0 +1,178 @@
+package top.galqq.utils;
+
+import android.util.LruCache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.robv.android.xposed.XposedBridge;
+import top.galqq.config.ConfigManager;
+
+/**
+ * AI响应内容寻址缓存
+ *
+ * 功能：
+ * 1. 以「提示词 + 最近N条上下文 + 当前消息」归一化后的哈希作为键
+ * 2. 与按msgId的选项缓存独立：不同消息只要内容和上下文相同（如群里刷屏的"哈哈哈"、"?"）即可复用
+ * 3. 命中时直接返回选项，不经过 AiRateLimitedQueue
+ * 4. 有效期可配置（ConfigManager.getAiResponseCacheTtl），并统计命中率供监控面板展示
+ */
+public class ResponseCache {
+
+    private static final String TAG = "GalQQ.ResponseCache";
+
+    private static void debugLog(String message) {
+        try {
+            if (ConfigManager.isVerboseLogEnabled()) {
+                XposedBridge.log(message);
+            }
+        } catch (Throwable ignored) {}
+    }
+
+    // 最大缓存条目数
+    private static final int MAX_CACHE_SIZE = 300;
+
+    // 参与指纹计算的上下文条数（只取最近的几条）
+    private static final int CONTEXT_LINES = 3;
+
+    private static final LruCache<String, CacheEntry> cache = new LruCache<>(MAX_CACHE_SIZE);
+
+    // 命中统计
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private static class CacheEntry {
+        final List<String> options;
+        final long timestamp;
+
+        CacheEntry(List<String> options) {
+            this.options = options;
+            this.timestamp = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 缓存是否启用（有效期 > 0）
+     */
+    public static boolean isEnabled() {
+        try {
+            return ConfigManager.getAiResponseCacheTtl() > 0;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * 生成请求指纹
+     * @return 指纹，消息为空时返回 null
+     */
+    public static String buildKey(String systemPrompt, List<MessageContextManager.ChatMessage> contextMessages,
+                                  String msgContent) {
+        if (msgContent == null || msgContent.trim().isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(normalize(systemPrompt)).append('\u0000');
+        if (contextMessages != null && !contextMessages.isEmpty()) {
+            int start = Math.max(0, contextMessages.size() - CONTEXT_LINES);
+            for (int i = start; i < contextMessages.size(); i++) {
+                MessageContextManager.ChatMessage msg = contextMessages.get(i);
+                sb.append(msg.isSelf ? "me" : normalize(msg.senderName))
+                  .append(':').append(normalize(msg.content)).append('\n');
+            }
+        }
+        sb.append('\u0000').append(normalize(msgContent));
+        return sha1(sb.toString());
+    }
+
+    /**
+     * 查询缓存（同时计入命中统计）
+     * @return 选项列表，未命中或已过期返回 null
+     */
+    public static List<String> get(String key) {
+        if (key == null) {
+            return null;
+        }
+        CacheEntry entry = cache.get(key);
+        if (entry != null) {
+            long ttlMs = ConfigManager.getAiResponseCacheTtl() * 1000L;
+            if (System.currentTimeMillis() - entry.timestamp <= ttlMs) {
+                hits.incrementAndGet();
+                debugLog(TAG + ": 命中响应缓存 key=" + key);
+                return new ArrayList<>(entry.options);
+            }
+            cache.remove(key);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 写入缓存
+     */
+    public static void put(String key, List<String> options) {
+        if (key == null || options == null || options.isEmpty()) {
+            return;
+        }
+        cache.put(key, new CacheEntry(new ArrayList<>(options)));
+    }
+
+    /**
+     * 清空缓存和统计
+     */
+    public static void clear() {
+        cache.evictAll();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * 命中率（0~1），尚无查询时返回 0
+     */
+    public static double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total > 0 ? (double) h / total : 0;
+    }
+
+    public static int size() {
+        return cache.size();
+    }
+
+    // ========== 内部方法 ==========
+
+    /**
+     * 归一化：去除首尾空白，连续空白合并为一个空格
+     */
+    private static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.trim().replaceAll("\\s+", " ");
+    }
+
+    private static String sha1(String text) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(text.hashCode()) + "_" + text.length();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package top.galqq.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 单遍响应扫描器
+ *
+ * 对AI响应体只做一次逐字符扫描（不构建JSONObject、不使用正则）：
+ * 1. 取出 OpenAI 兼容格式的 choices[].message.content（以及 choices[].text）
+ * 2. content 解码完成后交给 StreamingOptionsParser 提取选项数组
+ * 3. 响应体本身就是 {"options": [...]} 时直接收集数组中的字符串
+ *
+ * 多个JSON对象拼接（{...}{...}）时继续扫描后面的对象；响应被截断时，
+ * 已闭合的选项照常返回，未闭合的 content 也会作为部分内容交给选项解析器。
+ */
+public class ResponseScanner {
+
+    private static final java.util.Set<String> OPTION_KEYS = new java.util.HashSet<>(
+        java.util.Arrays.asList("options", "replies", "answers", "responses", "choices"));
+
+    /**
+     * 扫描结果
+     */
+    public static class Result {
+        /** 解析出的原始选项（未清理），来自第一个能给出至少3个选项的content或顶层选项数组 */
+        public final List<String> options = new ArrayList<>();
+        /** 所有 choices[].message.content（按出现顺序） */
+        public final List<String> contents = new ArrayList<>();
+    }
+
+    /**
+     * 容器帧：对象或数组
+     */
+    private static class Frame {
+        final boolean isArray;
+        final String openKey;     // 打开该容器时所在的字段名（数组元素为null）
+        String currentKey;        // 对象内最近的字段名
+        boolean expectKey;        // 对象内下一个字符串是否为字段名
+
+        Frame(boolean isArray, String openKey) {
+            this.isArray = isArray;
+            this.openKey = openKey;
+            this.expectKey = !isArray;
+        }
+    }
+
+    /**
+     * 扫描响应体
+     */
+    public static Result scan(String body) {
+        Result result = new Result();
+        if (body == null || body.isEmpty()) {
+            return result;
+        }
+
+        List<Frame> stack = new ArrayList<>();
+        List<String> directOptions = new ArrayList<>();
+        StringBuilder str = new StringBuilder();
+        boolean inString = false;
+        boolean escape = false;
+        int unicodeRemaining = 0;
+        int unicodeValue = 0;
+
+        int length = body.length();
+        for (int i = 0; i < length; i++) {
+            char c = body.charAt(i);
+
+            if (inString) {
+                if (unicodeRemaining > 0) {
+                    int digit = Character.digit(c, 16);
+                    unicodeValue = (unicodeValue << 4) | (digit >= 0 ? digit : 0);
+                    if (--unicodeRemaining == 0) {
+                        str.append((char) unicodeValue);
+                    }
+                } else if (escape) {
+                    escape = false;
+                    switch (c) {
+                        case 'n': str.append('\n'); break;
+                        case 't': str.append('\t'); break;
+                        case 'r': str.append('\r'); break;
+                        case 'b': str.append('\b'); break;
+                        case 'f': str.append('\f'); break;
+                        case 'u': unicodeRemaining = 4; unicodeValue = 0; break;
+                        default: str.append(c); break; // \" \\ \/
+                    }
+                } else if (c == '\\') {
+                    escape = true;
+                } else if (c == '"') {
+                    inString = false;
+                    onString(stack, str.toString(), result, directOptions);
+                    if (result.options.size() >= 3) {
+                        return result;
+                    }
+                } else {
+                    str.append(c);
+                }
+                continue;
+            }
+
+            Frame top = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+            switch (c) {
+                case '"':
+                    inString = true;
+                    str.setLength(0);
+                    break;
+                case '{':
+                case '[':
+                    String openKey = top != null && !top.isArray ? top.currentKey : null;
+                    stack.add(new Frame(c == '[', openKey));
+                    break;
+                case '}':
+                case ']':
+                    if (top != null) {
+                        stack.remove(stack.size() - 1);
+                        if (top.isArray && directOptions.size() >= 3) {
+                            result.options.addAll(directOptions);
+                            return result;
+                        }
+                        directOptions.clear();
+                    }
+                    break;
+                case ':':
+                    if (top != null && !top.isArray) {
+                        top.expectKey = false;
+                    }
+                    break;
+                case ',':
+                    if (top != null && !top.isArray) {
+                        top.expectKey = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // 响应被截断：未闭合的content按部分内容处理，已闭合的顶层选项直接返回
+        if (inString && isContentValue(stack)) {
+            String partial = str.toString();
+            result.contents.add(partial);
+            collectOptions(partial, result);
+        }
+        if (result.options.isEmpty() && directOptions.size() >= 3) {
+            result.options.addAll(directOptions);
+        }
+        return result;
+    }
+
+    private static void onString(List<Frame> stack, String value, Result result, List<String> directOptions) {
+        if (stack.isEmpty()) {
+            return;
+        }
+        Frame top = stack.get(stack.size() - 1);
+        if (!top.isArray && top.expectKey) {
+            top.currentKey = value;
+            return;
+        }
+        if (isContentValue(stack)) {
+            result.contents.add(value);
+            collectOptions(value, result);
+        } else if (top.isArray && stack.size() == 2 && top.openKey != null
+                && OPTION_KEYS.contains(top.openKey.toLowerCase())) {
+            // 响应体本身就是 {"options": [...]}
+            directOptions.add(value);
+        }
+    }
+
+    /**
+     * 当前字符串是否为 choices[i].message.content / choices[i].message.text / choices[i].text
+     */
+    private static boolean isContentValue(List<Frame> stack) {
+        int n = stack.size();
+        if (n < 2) {
+            return false;
+        }
+        Frame top = stack.get(n - 1);
+        if (top.isArray || top.expectKey) {
+            return false;
+        }
+        String key = top.currentKey;
+        if ("content".equals(key) || "text".equals(key)) {
+            if ("message".equals(top.openKey) && n >= 3) {
+                Frame choice = stack.get(n - 2);
+                Frame choices = stack.get(n - 3);
+                return !choice.isArray && choices.isArray && "choices".equals(choices.openKey);
+            }
+            if ("text".equals(key)) {
+                Frame choices = stack.get(n - 2);
+                return choices.isArray && "choices".equals(choices.openKey);
+            }
+        }
+        return false;
+    }
+
+    private static void collectOptions(String content, Result result) {
+        if (!result.options.isEmpty()) {
+            return;
+        }
+        List<String> options = new StreamingOptionsParser().feed(content);
+        if (options.size() >= 3) {
+            result.options.addAll(options);
+        }
+    }
+}
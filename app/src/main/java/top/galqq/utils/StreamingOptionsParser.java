@@ -0,0 +1,135 @@
+package top.galqq.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 流式选项解析器
+ *
+ * 用于SSE流式响应：逐段喂入AI输出的content增量，
+ * 一旦 {"options": ["...", "...", "..."]} 数组中的某个字符串元素闭合，立即返回该选项，
+ * 无需等待整个响应结束。
+ *
+ * 只识别与 parseOptionsJson 一致的字段名（options/replies/answers/responses/choices），
+ * 无法增量识别的格式（编号列表、纯文本等）由调用方在流结束后走完整解析流程兜底。
+ */
+public class StreamingOptionsParser {
+
+    private static final java.util.Set<String> OPTION_KEYS = new java.util.HashSet<>(
+        java.util.Arrays.asList("options", "replies", "answers", "responses", "choices"));
+
+    // 字符串状态
+    private boolean inString = false;
+    private boolean escape = false;
+    private int unicodeRemaining = 0;       // \\uXXXX 剩余待读的十六进制位数
+    private final StringBuilder unicodeHex = new StringBuilder(4);
+    private final StringBuilder current = new StringBuilder();
+
+    // 结构状态
+    private boolean seenObject = false;     // 是否已进入JSON对象
+    private String lastKey = null;          // 最近一个闭合的字符串（用于判断数组字段名）
+    private boolean collecting = false;     // 是否处于选项数组内
+    private int nestedDepth = 0;            // 选项数组内的嵌套深度（对象/数组元素不作为选项）
+    private boolean finished = false;       // 选项数组已闭合
+
+    /**
+     * 喂入一段增量文本
+     * @param delta 本次收到的content增量
+     * @return 本次新闭合的选项（原始文本，未清理），可能为空列表
+     */
+    public List<String> feed(String delta) {
+        List<String> completed = new ArrayList<>();
+        if (delta == null || finished) {
+            return completed;
+        }
+
+        for (int i = 0; i < delta.length() && !finished; i++) {
+            char c = delta.charAt(i);
+
+            if (inString) {
+                if (unicodeRemaining > 0) {
+                    unicodeHex.append(c);
+                    if (--unicodeRemaining == 0) {
+                        try {
+                            current.append((char) Integer.parseInt(unicodeHex.toString(), 16));
+                        } catch (NumberFormatException ignored) {
+                            // 非法转义，丢弃
+                        }
+                        unicodeHex.setLength(0);
+                    }
+                } else if (escape) {
+                    escape = false;
+                    switch (c) {
+                        case 'n': current.append('\n'); break;
+                        case 't': current.append('\t'); break;
+                        case 'r': current.append('\r'); break;
+                        case 'b': current.append('\b'); break;
+                        case 'f': current.append('\f'); break;
+                        case 'u': unicodeRemaining = 4; break;
+                        default: current.append(c); break; // \" \\ \/
+                    }
+                } else if (c == '\\') {
+                    escape = true;
+                } else if (c == '"') {
+                    inString = false;
+                    String value = current.toString();
+                    current.setLength(0);
+                    if (collecting && nestedDepth == 0) {
+                        completed.add(value);
+                    } else if (!collecting) {
+                        lastKey = value;
+                    }
+                } else {
+                    current.append(c);
+                }
+                continue;
+            }
+
+            switch (c) {
+                case '"':
+                    inString = true;
+                    break;
+                case '{':
+                    if (collecting) {
+                        nestedDepth++;
+                    } else {
+                        seenObject = true;
+                    }
+                    break;
+                case '[':
+                    if (collecting) {
+                        nestedDepth++;
+                    } else if (seenObject && lastKey != null && OPTION_KEYS.contains(lastKey.toLowerCase())) {
+                        collecting = true;
+                        nestedDepth = 0;
+                    }
+                    break;
+                case '}':
+                    if (collecting && nestedDepth > 0) {
+                        nestedDepth--;
+                    }
+                    break;
+                case ']':
+                    if (collecting) {
+                        if (nestedDepth > 0) {
+                            nestedDepth--;
+                        } else {
+                            collecting = false;
+                            finished = true;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * 选项数组是否已经闭合
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+}
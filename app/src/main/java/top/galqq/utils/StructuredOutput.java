@@ -0,0 +1,245 @@
+package top.galqq.utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.robv.android.xposed.XposedBridge;
+import top.galqq.config.ConfigManager;
+
+/**
+ * 结构化输出（JSON模式）
+ *
+ * 功能：
+ * 1. 服务商能力表：支持 response_format 的服务商在请求中要求返回JSON，
+ *    支持 json_schema 的直接约束为 {"options": [3个字符串]}，其余服务商仍走原有的多策略解析
+ * 2. 运行时降级：服务商以 400/422 拒绝 response_format 时，该服务商+模型降一级（json_schema → json_object → 不使用）
+ * 3. 按服务商统计返回格式失败率（区分是否使用结构化输出），用于观察格式错误重试的减少
+ */
+public class StructuredOutput {
+
+    private static final String TAG = "GalQQ.StructuredOutput";
+
+    private static void debugLog(String message) {
+        try {
+            if (ConfigManager.isVerboseLogEnabled()) {
+                XposedBridge.log(message);
+            }
+        } catch (Throwable ignored) {}
+    }
+
+    /**
+     * 结构化输出模式（按能力从低到高）
+     */
+    public enum Mode {
+        NONE("普通"),
+        JSON_OBJECT("JSON"),
+        JSON_SCHEMA("Schema");
+
+        final String label;
+
+        Mode(String label) {
+            this.label = label;
+        }
+    }
+
+    // 服务商能力表（未列出的服务商不使用结构化输出）
+    private static final Map<String, Mode> PROVIDER_MODES = new HashMap<>();
+    static {
+        PROVIDER_MODES.put(ConfigManager.PROVIDER_OPENAI, Mode.JSON_OBJECT); // 新模型见 getBaseMode
+        PROVIDER_MODES.put(ConfigManager.PROVIDER_GOOGLE, Mode.JSON_SCHEMA);
+        PROVIDER_MODES.put(ConfigManager.PROVIDER_DEEPSEEK, Mode.JSON_OBJECT);
+        PROVIDER_MODES.put(ConfigManager.PROVIDER_KIMI, Mode.JSON_OBJECT);
+        PROVIDER_MODES.put(ConfigManager.PROVIDER_QWEN, Mode.JSON_OBJECT);
+        PROVIDER_MODES.put(ConfigManager.PROVIDER_DASHSCOPE, Mode.JSON_OBJECT);
+        PROVIDER_MODES.put(ConfigManager.PROVIDER_GLM, Mode.JSON_OBJECT);
+        PROVIDER_MODES.put(ConfigManager.PROVIDER_DOUBAO, Mode.JSON_OBJECT);
+        PROVIDER_MODES.put(ConfigManager.PROVIDER_GROQ, Mode.JSON_OBJECT);
+        PROVIDER_MODES.put(ConfigManager.PROVIDER_FIREWORKS, Mode.JSON_OBJECT);
+        PROVIDER_MODES.put(ConfigManager.PROVIDER_DEEPINFRA, Mode.JSON_OBJECT);
+        PROVIDER_MODES.put(ConfigManager.PROVIDER_SILICONFLOW, Mode.JSON_OBJECT);
+        PROVIDER_MODES.put(ConfigManager.PROVIDER_OLLAMA, Mode.JSON_OBJECT);
+    }
+
+    // 支持 json_schema 的OpenAI模型前缀
+    private static final String[] OPENAI_SCHEMA_MODELS = {"gpt-4o", "gpt-4.1", "gpt-5", "o1", "o3", "o4"};
+
+    // 运行时降级：服务商|模型 -> 实际可用的最高模式
+    private static final Map<String, Mode> downgraded = new ConcurrentHashMap<>();
+
+    // 返回格式统计：服务商|模式 -> {请求数, 失败数}
+    private static final Map<String, AtomicLong[]> formatStats = new ConcurrentHashMap<>();
+
+    /**
+     * 获取请求应使用的结构化输出模式
+     * @param batch 批量请求的键由消息标签决定，最多使用 json_object
+     */
+    public static Mode getMode(String provider, String model, boolean batch) {
+        if (!ConfigManager.isAiStructuredOutputEnabled() || provider == null) {
+            return Mode.NONE;
+        }
+        Mode mode = getBaseMode(provider, model);
+        Mode cap = downgraded.get(provider + "|" + model);
+        if (cap != null && cap.ordinal() < mode.ordinal()) {
+            mode = cap;
+        }
+        if (batch && mode == Mode.JSON_SCHEMA) {
+            mode = Mode.JSON_OBJECT;
+        }
+        return mode;
+    }
+
+    /**
+     * 按模式设置请求参数中的 response_format（NONE时移除）
+     */
+    public static void apply(JSONObject params, Mode mode) throws Exception {
+        params.remove("response_format");
+        if (mode == Mode.JSON_OBJECT) {
+            JSONObject format = new JSONObject();
+            format.put("type", "json_object");
+            params.put("response_format", format);
+        } else if (mode == Mode.JSON_SCHEMA) {
+            JSONObject items = new JSONObject();
+            items.put("type", "string");
+            JSONObject options = new JSONObject();
+            options.put("type", "array");
+            options.put("items", items);
+            options.put("minItems", 3);
+            options.put("maxItems", 3);
+            JSONObject properties = new JSONObject();
+            properties.put("options", options);
+            JSONObject schema = new JSONObject();
+            schema.put("type", "object");
+            schema.put("properties", properties);
+            schema.put("required", new JSONArray().put("options"));
+            schema.put("additionalProperties", false);
+
+            JSONObject jsonSchema = new JSONObject();
+            jsonSchema.put("name", "reply_options");
+            jsonSchema.put("strict", true);
+            jsonSchema.put("schema", schema);
+            JSONObject format = new JSONObject();
+            format.put("type", "json_schema");
+            format.put("json_schema", jsonSchema);
+            params.put("response_format", format);
+        }
+    }
+
+    /**
+     * 按模式生成实际发送的user消息：使用结构化输出时在文本末尾附加返回格式要求
+     * （json_object模式要求消息中出现JSON字样）。不修改传入的消息，图片等其他内容直接共用
+     */
+    public static JSONObject withFormatHint(JSONObject userMsg, Mode mode) throws Exception {
+        if (mode == Mode.NONE) {
+            return userMsg;
+        }
+        String hint = "\n\n以JSON格式返回：{\"options\": [\"选项1\", \"选项2\", \"选项3\"]}";
+        JSONObject result = new JSONObject();
+        result.put("role", userMsg.optString("role", "user"));
+        Object content = userMsg.opt("content");
+        if (content instanceof JSONArray) {
+            // 多模态消息：在第一个文本片段后附加
+            JSONArray parts = (JSONArray) content;
+            JSONArray copy = new JSONArray();
+            boolean appended = false;
+            for (int i = 0; i < parts.length(); i++) {
+                JSONObject part = parts.optJSONObject(i);
+                if (!appended && part != null && "text".equals(part.optString("type"))) {
+                    JSONObject text = new JSONObject();
+                    text.put("type", "text");
+                    text.put("text", part.optString("text") + hint);
+                    copy.put(text);
+                    appended = true;
+                } else {
+                    copy.put(parts.get(i));
+                }
+            }
+            result.put("content", copy);
+        } else {
+            result.put("content", (content != null ? content.toString() : "") + hint);
+        }
+        return result;
+    }
+
+    /**
+     * 是否为服务商不支持 response_format 导致的错误
+     */
+    public static boolean isUnsupportedError(int code, String responseBody) {
+        if ((code != 400 && code != 422) || responseBody == null) {
+            return false;
+        }
+        String body = responseBody.toLowerCase(Locale.ROOT);
+        return body.contains("response_format") || body.contains("json_schema") || body.contains("json_object");
+    }
+
+    /**
+     * 服务商拒绝当前模式时降一级，之后的请求（包括重试）使用降级后的模式
+     */
+    public static void downgrade(String provider, String model, Mode current) {
+        Mode lower = current == Mode.JSON_SCHEMA ? Mode.JSON_OBJECT : Mode.NONE;
+        downgraded.put(provider + "|" + model, lower);
+        debugLog(TAG + ": " + provider + "/" + model + " 不支持 " + current.label + "，降级为 " + lower.label);
+    }
+
+    /**
+     * 记录一次响应的解析结果
+     * @param formatOk 是否解析出足够的选项
+     */
+    public static void recordResult(String provider, Mode mode, boolean formatOk) {
+        String key = provider + "|" + mode.label;
+        AtomicLong[] counters = formatStats.get(key);
+        if (counters == null) {
+            formatStats.putIfAbsent(key, new AtomicLong[]{new AtomicLong(), new AtomicLong()});
+            counters = formatStats.get(key);
+        }
+        counters[0].incrementAndGet();
+        if (!formatOk) {
+            counters[1].incrementAndGet();
+        }
+    }
+
+    /**
+     * 各服务商的返回格式失败率，每项一行："服务商 [模式]: 失败 x/y (z%)"
+     */
+    public static List<String> getFormatStats() {
+        List<String> keys = new ArrayList<>(formatStats.keySet());
+        java.util.Collections.sort(keys);
+        List<String> lines = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            AtomicLong[] counters = formatStats.get(key);
+            long total = counters[0].get();
+            long failed = counters[1].get();
+            int sep = key.lastIndexOf('|');
+            lines.add(String.format(Locale.getDefault(), "%s [%s]: 失败 %d/%d (%.1f%%)",
+                    key.substring(0, sep), key.substring(sep + 1), failed, total,
+                    total > 0 ? failed * 100.0 / total : 0));
+        }
+        return lines;
+    }
+
+    private static Mode getBaseMode(String provider, String model) {
+        Mode mode = PROVIDER_MODES.get(provider);
+        if (mode == null) {
+            return Mode.NONE;
+        }
+        String lowerModel = model != null ? model.toLowerCase(Locale.ROOT) : "";
+        if (ConfigManager.PROVIDER_OPENAI.equals(provider)) {
+            for (String prefix : OPENAI_SCHEMA_MODELS) {
+                if (lowerModel.startsWith(prefix)) {
+                    return Mode.JSON_SCHEMA;
+                }
+            }
+        } else if (ConfigManager.PROVIDER_DEEPSEEK.equals(provider) && lowerModel.contains("reasoner")) {
+            // deepseek-reasoner 不支持JSON输出
+            return Mode.NONE;
+        }
+        return mode;
+    }
+}
@@ -0,0 +1,166 @@
+package top.galqq.utils;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 本地token估算器
+ *
+ * 不依赖具体模型的分词表，只做快速粗估，用于按token预算截取上下文：
+ * 1. 中日韩字符按每字1个token
+ * 2. 连续的英文字母/数字按每4个字符1个token
+ * 3. 其余标点、符号每个1个token，emoji等补充平面字符每个2个token，空白不计
+ * 4. 图片按低分辨率（detail=low）固定 IMAGE_TOKENS 计算
+ */
+public class TokenEstimator {
+
+    // 低分辨率图片的固定token数（OpenAI detail=low）
+    public static final int IMAGE_TOKENS = 85;
+
+    // 每条消息的格式开销（role、分隔符等）
+    private static final int MESSAGE_OVERHEAD = 4;
+
+    // 上下文消息头（"[好感度]昵称[我][qq] [时间]: "）中时间、括号等固定部分的估算
+    private static final int HEADER_OVERHEAD = 12;
+
+    // 英文/数字平均每个token的字符数
+    private static final int LATIN_CHARS_PER_TOKEN = 4;
+
+    /**
+     * 估算文本的token数
+     */
+    public static int estimate(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int tokens = 0;
+        int latinRun = 0;
+        int length = text.length();
+        for (int i = 0; i < length; ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+
+            if (cp < 0x80 && Character.isLetterOrDigit(cp)) {
+                latinRun++;
+                continue;
+            }
+            if (latinRun > 0) {
+                tokens += (latinRun + LATIN_CHARS_PER_TOKEN - 1) / LATIN_CHARS_PER_TOKEN;
+                latinRun = 0;
+            }
+
+            if (Character.isWhitespace(cp)) {
+                continue;
+            }
+            if (Character.isSupplementaryCodePoint(cp) && !isCjk(cp)) {
+                tokens += 2;
+            } else {
+                tokens += 1;
+            }
+        }
+        if (latinRun > 0) {
+            tokens += (latinRun + LATIN_CHARS_PER_TOKEN - 1) / LATIN_CHARS_PER_TOKEN;
+        }
+        return tokens;
+    }
+
+    /**
+     * 估算一条请求消息（role + content）的token数
+     */
+    public static int estimateMessage(String content) {
+        return estimate(content) + MESSAGE_OVERHEAD;
+    }
+
+    /**
+     * 估算一条上下文消息的token数
+     * @param countImages 是否计入图片（启用上下文图片识别时图片可能以base64发送）
+     */
+    public static int estimateMessage(MessageContextManager.ChatMessage msg, boolean countImages) {
+        int tokens = MESSAGE_OVERHEAD + HEADER_OVERHEAD;
+        tokens += estimate(msg.senderName);
+        tokens += estimate(msg.content);
+        if (countImages && msg.hasImages) {
+            tokens += msg.imageCount * IMAGE_TOKENS;
+        }
+        return tokens;
+    }
+
+    /**
+     * 按token预算选择上下文：从最新消息往前填充，直到下一条放不下为止
+     *
+     * @param messages    按时间顺序排列的上下文（可为null）
+     * @param budget      可用于上下文的token数
+     * @param countImages 是否计入图片
+     * @return 选中的消息（仍按时间顺序）；全部放得下时返回原列表
+     */
+    public static List<MessageContextManager.ChatMessage> selectByBudget(
+            List<MessageContextManager.ChatMessage> messages, int budget, boolean countImages) {
+        if (messages == null || messages.isEmpty()) {
+            return messages;
+        }
+        int used = 0;
+        int start = messages.size();
+        while (start > 0) {
+            int cost = estimateMessage(messages.get(start - 1), countImages);
+            if (used + cost > budget) {
+                break;
+            }
+            used += cost;
+            start--;
+        }
+        if (start == 0) {
+            return messages;
+        }
+        return new ArrayList<>(messages.subList(start, messages.size()));
+    }
+
+    /**
+     * 估算一组上下文消息的token数
+     */
+    public static int estimateContext(List<MessageContextManager.ChatMessage> messages, boolean countImages) {
+        if (messages == null) {
+            return 0;
+        }
+        int tokens = 0;
+        for (MessageContextManager.ChatMessage msg : messages) {
+            tokens += estimateMessage(msg, countImages);
+        }
+        return tokens;
+    }
+
+    /**
+     * 从响应JSON中读取服务商返回的输入token数（usage.prompt_tokens）
+     * @return token数，未返回时为 -1
+     */
+    public static int parsePromptTokens(JSONObject response) {
+        if (response == null) {
+            return -1;
+        }
+        JSONObject usage = response.optJSONObject("usage");
+        if (usage == null) {
+            return -1;
+        }
+        // OpenAI兼容格式为 prompt_tokens，部分服务商使用 input_tokens
+        if (usage.has("prompt_tokens")) {
+            return usage.optInt("prompt_tokens", -1);
+        }
+        return usage.optInt("input_tokens", -1);
+    }
+
+    /**
+     * 日志用的token对比：预估 N / 实际 M
+     */
+    public static String formatUsage(int estimated, int reported) {
+        return "输入tokens: 预估 " + estimated + " / 实际 " + (reported >= 0 ? String.valueOf(reported) : "未返回");
+    }
+
+    private static boolean isCjk(int cp) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+        return script == Character.UnicodeScript.HAN
+            || script == Character.UnicodeScript.HIRAGANA
+            || script == Character.UnicodeScript.KATAKANA
+            || script == Character.UnicodeScript.HANGUL;
+    }
+}
@@ -0,0 +1,52 @@
+package top.galqq.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AI请求队列工作线程的出队与并发名额测试
+ */
+public class AiRateLimitedQueueTest {
+
+    @Test
+    public void emptyStartedQueueIsIdleWithNoRequestInFlight() throws Exception {
+        AiRateLimitedQueue.RequestHeap queue = new AiRateLimitedQueue.RequestHeap(4);
+        AiRateLimitedQueue.ConcurrencyLimiter limiter = new AiRateLimitedQueue.ConcurrencyLimiter();
+
+        // 与工作线程相同：阻塞在空队列上等待请求
+        Thread worker = new Thread(() -> {
+            try {
+                AiRateLimitedQueue.takeWithSlot(queue, limiter);
+            } catch (InterruptedException ignored) {
+            }
+        }, "AiQueueWorkerTest");
+        worker.setDaemon(true);
+        worker.start();
+        awaitBlocked(worker);
+
+        // 空闲的工作线程不占用并发名额
+        assertEquals(0, queue.size());
+        assertEquals(0, limiter.getInFlight());
+        assertTrue(AiRateLimitedQueue.isIdle(queue, limiter));
+
+        worker.interrupt();
+        worker.join(1000);
+        assertFalse(worker.isAlive());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    private static void awaitBlocked(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < deadline) {
+            Thread.State state = thread.getState();
+            if (state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("工作线程未进入等待状态: " + thread.getState());
+    }
+}
@@ -0,0 +1,46 @@
+package top.galqq.utils;
+
+import org.junit.Test;
+
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 会话滚动摘要：AI队列忙时不处理，队列空闲后生成摘要
+ */
+public class ConversationSummarizerTest {
+
+    private static final long BASE_TIME = 1700000000000L;
+
+    @Test
+    public void summaryIsGeneratedOnceQueueDrains() throws Exception {
+        String conversationId = "summarizer-test";
+        int windowSize = 10;
+        // 超过一个缓冲区的量：最早的消息被淘汰，其余的一部分在窗口之外
+        int total = MessageContextManager.getMaxMessagesPerConversation() + 20;
+        for (int i = 0; i < total; i++) {
+            MessageContextManager.addMessage(conversationId, "发送人" + (i % 3), String.valueOf(10000 + i % 3),
+                    "第" + i + "条：周末要不要一起去爬山？", i % 4 == 0, "msg" + i, BASE_TIME + i * 1000L, 0);
+        }
+
+        AiRateLimitedQueue.RequestHeap queue = new AiRateLimitedQueue.RequestHeap(4);
+        AiRateLimitedQueue.ConcurrencyLimiter limiter = new AiRateLimitedQueue.ConcurrencyLimiter();
+        BooleanSupplier idle = () -> AiRateLimitedQueue.isIdle(queue, limiter);
+
+        // 有请求进行中：不生成摘要
+        limiter.acquire();
+        ConversationSummarizer.runIdlePass(idle, windowSize);
+        assertEquals("", ConversationSummarizer.getSummary(conversationId));
+
+        // 请求完成、队列空闲：生成摘要
+        limiter.release();
+        ConversationSummarizer.runIdlePass(idle, windowSize);
+        String summary = ConversationSummarizer.getSummary(conversationId);
+        assertTrue(summary, summary.startsWith("【较早聊天摘要】"));
+        assertTrue(summary, summary.contains("共" + (total - windowSize) + "条"));
+
+        MessageContextManager.clearConversation(conversationId);
+    }
+}
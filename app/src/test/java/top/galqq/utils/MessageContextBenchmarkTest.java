@@ -0,0 +1,227 @@
+package top.galqq.utils;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 会话上下文环形缓冲区（ConversationContext）的正确性测试和 add / getContext 基准
+ *
+ * 每个会话 50 条（默认容量）和 500 条两种规模，分别测：
+ * - 按时间顺序追加（实时消息）
+ * - 乱序插入（翻看历史、补拉记录时消息晚于更新的消息到达，走二分查找插入）
+ * - 读取最近全部消息（getContext）
+ *
+ * 同时与引入环形缓冲区之前的实现（LinkedList + 每次全量排序 + 线性去重）对比。
+ * 基准默认跳过（耗时较长），使用 ./gradlew test -Pbench 运行；正确性测试始终运行。
+ */
+public class MessageContextBenchmarkTest {
+
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 50000;
+
+    private static final long BASE_TIME = 1700000000000L;
+
+    private static MessageContextManager.ChatMessage message(long seq, long timestamp) {
+        return new MessageContextManager.ChatMessage("发送人" + (seq % 7), String.valueOf(10000 + seq % 7),
+                "第" + seq + "条消息", seq % 3 == 0, timestamp, "msg" + seq, 0);
+    }
+
+    // ========== 正确性 ==========
+
+    @Test
+    public void outOfOrderMessagesAreKeptInTimeOrder() {
+        MessageContextManager.ConversationContext context = new MessageContextManager.ConversationContext(50);
+        Random random = new Random(42);
+        for (int i = 0; i < 40; i++) {
+            long ts = BASE_TIME + random.nextInt(100000);
+            assertTrue(context.addMessage(message(i, ts)));
+        }
+        assertSorted(context.snapshot());
+        assertEquals(40, context.size());
+    }
+
+    @Test
+    public void fullBufferKeepsNewestAndRejectsOlderThanOldest() {
+        int capacity = 50;
+        MessageContextManager.ConversationContext context = new MessageContextManager.ConversationContext(capacity);
+        for (int i = 0; i < 120; i++) {
+            context.addMessage(message(i, BASE_TIME + i * 1000));
+        }
+        List<MessageContextManager.ChatMessage> snapshot = context.snapshot();
+        assertEquals(capacity, snapshot.size());
+        assertEquals("msg70", snapshot.get(0).msgId);
+        assertEquals("msg119", snapshot.get(capacity - 1).msgId);
+
+        // 比缓冲区中最旧的消息还早：丢弃
+        assertFalse(context.addMessage(message(1000, BASE_TIME)));
+        // 落在中间：插入并淘汰最旧的一条
+        assertTrue(context.addMessage(message(1001, BASE_TIME + 100500)));
+        snapshot = context.snapshot();
+        assertEquals(capacity, snapshot.size());
+        assertEquals("msg71", snapshot.get(0).msgId);
+        assertSorted(snapshot);
+    }
+
+    @Test
+    public void duplicateMsgIdIsIgnored() {
+        MessageContextManager.ConversationContext context = new MessageContextManager.ConversationContext(50);
+        MessageContextManager.ChatMessage first = message(1, BASE_TIME);
+        assertTrue(context.addMessage(first));
+        assertFalse(context.addMessage(message(1, BASE_TIME + 5000)));
+        assertEquals(1, context.size());
+        assertSame(first, context.getRecentMessages(10).get(0));
+    }
+
+    // ========== 基准 ==========
+
+    @Test
+    public void benchmarkAddAndGetContext() {
+        Assume.assumeTrue("基准测试默认跳过", Boolean.getBoolean("galqq.bench"));
+        // 先完整跑一遍让JIT编译两种规模的代码路径，第二遍再输出结果
+        for (boolean report : new boolean[]{false, true}) {
+            for (int capacity : new int[]{50, 500}) {
+                runBenchmark(capacity, report);
+            }
+        }
+    }
+
+    private static void runBenchmark(int capacity, boolean report) {
+        int total = WARMUP + ITERATIONS;
+
+        // 按时间顺序到达
+        List<MessageContextManager.ChatMessage> inOrder = new ArrayList<>(total + capacity);
+        for (int i = 0; i < total + capacity; i++) {
+            inOrder.add(message(i, BASE_TIME + i * 1000L));
+        }
+        // 乱序到达：每条消息的时间戳随机落在最近一个缓冲区的时间范围内
+        Random random = new Random(7);
+        List<MessageContextManager.ChatMessage> outOfOrder = new ArrayList<>(total + capacity);
+        for (int i = 0; i < total + capacity; i++) {
+            long back = random.nextInt(Math.max(1, capacity - 1)) * 1000L;
+            outOfOrder.add(message(i, BASE_TIME + i * 1000L - back));
+        }
+
+        MessageContextManager.ConversationContext ring = new MessageContextManager.ConversationContext(capacity);
+        LegacyContext legacy = new LegacyContext(capacity);
+        double ringInOrder = timeAdds(ring, inOrder, capacity);
+        double legacyInOrder = timeAdds(legacy, inOrder, capacity);
+
+        ring = new MessageContextManager.ConversationContext(capacity);
+        legacy = new LegacyContext(capacity);
+        double ringOutOfOrder = timeAdds(ring, outOfOrder, capacity);
+        double legacyOutOfOrder = timeAdds(legacy, outOfOrder, capacity);
+        assertSorted(ring.snapshot());
+
+        final MessageContextManager.ConversationContext fullRing = ring;
+        final LegacyContext fullLegacy = legacy;
+        double ringGet = time(() -> fullRing.getRecentMessages(capacity));
+        double legacyGet = time(() -> fullLegacy.getRecentMessages(capacity));
+
+        if (!report) {
+            return;
+        }
+        System.out.println(String.format("[bench] 每会话%d条       %14s %14s %8s", capacity, "环形缓冲区", "旧实现", "加速比"));
+        print("顺序追加", ringInOrder, legacyInOrder);
+        print("乱序插入", ringOutOfOrder, legacyOutOfOrder);
+        print("读取全部", ringGet, legacyGet);
+    }
+
+    private static void print(String name, double ring, double legacy) {
+        System.out.println(String.format("[bench]   %-12s %11.1f ns %11.1f ns %7.1fx", name, ring, legacy, legacy / ring));
+    }
+
+    /**
+     * 先填满缓冲区并预热，再计时稳态下每次添加的耗时（纳秒）
+     */
+    private static double timeAdds(Object context, List<MessageContextManager.ChatMessage> messages, int capacity) {
+        int index = 0;
+        for (; index < capacity + WARMUP; index++) {
+            add(context, messages.get(index));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS && index < messages.size(); i++, index++) {
+            add(context, messages.get(index));
+        }
+        return (double) (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static void add(Object context, MessageContextManager.ChatMessage msg) {
+        if (context instanceof MessageContextManager.ConversationContext) {
+            MessageContextManager.ConversationContext ring = (MessageContextManager.ConversationContext) context;
+            ring.addMessage(msg);
+            // 模拟后台摘要线程定期取走被淘汰的消息
+            if ((msg.timestamp / 1000) % 64 == 0) {
+                ring.drainEvicted();
+            }
+        } else {
+            ((LegacyContext) context).addMessage(msg);
+        }
+    }
+
+    private static double time(Runnable op) {
+        for (int i = 0; i < WARMUP; i++) {
+            op.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            op.run();
+        }
+        return (double) (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static void assertSorted(List<MessageContextManager.ChatMessage> messages) {
+        for (int i = 1; i < messages.size(); i++) {
+            assertTrue("第" + i + "条时间戳早于前一条",
+                    messages.get(i - 1).timestamp <= messages.get(i).timestamp);
+        }
+    }
+
+    /**
+     * 引入环形缓冲区之前的实现：线性去重 + 追加后全量排序 + LinkedList 按下标读取
+     */
+    private static class LegacyContext {
+        private static final Comparator<MessageContextManager.ChatMessage> BY_TIME =
+                (m1, m2) -> Long.compare(m1.timestamp, m2.timestamp);
+
+        private final LinkedList<MessageContextManager.ChatMessage> messages = new LinkedList<>();
+        private final int capacity;
+
+        LegacyContext(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void addMessage(MessageContextManager.ChatMessage message) {
+            for (MessageContextManager.ChatMessage msg : messages) {
+                if (message.msgId != null && message.msgId.equals(msg.msgId)) {
+                    return;
+                }
+            }
+            messages.add(message);
+            Collections.sort(messages, BY_TIME);
+            while (messages.size() > capacity) {
+                messages.removeFirst();
+            }
+        }
+
+        List<MessageContextManager.ChatMessage> getRecentMessages(int count) {
+            int actualCount = Math.min(count, messages.size());
+            List<MessageContextManager.ChatMessage> result = new ArrayList<>(actualCount);
+            for (int i = messages.size() - actualCount; i < messages.size(); i++) {
+                result.add(messages.get(i));
+            }
+            return result;
+        }
+    }
+}
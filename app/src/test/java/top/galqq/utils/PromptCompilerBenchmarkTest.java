@@ -0,0 +1,190 @@
+package top.galqq.utils;
+
+import org.json.JSONArray;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PromptCompiler.compileContext 的构建耗时与内存分配基准（50条上下文）
+ *
+ * 三种场景：
+ * - 冷编译：所有消息都未序列化过
+ * - 热编译：同一窗口再次编译（全部命中单条缓存）
+ * - 滑动窗口：每次移出最旧一条、追加一条新消息（实际聊天中最常见）
+ *
+ * 分配量通过 com.sun.management.ThreadMXBean 统计；滑动窗口每次的分配量应只与新消息有关，
+ * 不随上下文总长度增长（旧实现每次都要复制整个已拼接的上下文字符串）。
+ * 基准默认跳过，使用 ./gradlew test -Pbench 运行。
+ */
+public class PromptCompilerBenchmarkTest {
+
+    private static final int CONTEXT_SIZE = 50;
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 5000;
+
+    private static final String CONVERSATION = "bench";
+
+    private static long counter = 0;
+
+    private static MessageContextManager.ChatMessage newMessage() {
+        long id = counter++;
+        StringBuilder content = new StringBuilder();
+        content.append("第").append(id).append("条消息：");
+        while (content.length() < 120) {
+            content.append("今天下班一起去吃火锅吗，顺便聊聊周末的安排");
+        }
+        return new MessageContextManager.ChatMessage("发送人" + (id % 5), String.valueOf(10000 + id % 5),
+                content.toString(), id % 3 == 0, 1700000000000L + id * 1000, "msg" + id, 0);
+    }
+
+    private static List<MessageContextManager.ChatMessage> newWindow(int size) {
+        List<MessageContextManager.ChatMessage> window = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            window.add(newMessage());
+        }
+        return window;
+    }
+
+    private static PromptCompiler.CompiledContext compile(List<MessageContextManager.ChatMessage> window) throws Exception {
+        return PromptCompiler.compileContext(CONVERSATION, window, false, false);
+    }
+
+    @Test
+    public void compiledContextIsValidMessageArray() throws Exception {
+        List<MessageContextManager.ChatMessage> window = newWindow(CONTEXT_SIZE);
+        PromptCompiler.CompiledContext compiled = compile(window);
+
+        String joined = compiled.toString();
+        assertEquals(compiled.length(), joined.length());
+
+        JSONArray array = new JSONArray("[" + joined + "]");
+        assertEquals(CONTEXT_SIZE, array.length());
+        for (int i = 0; i < CONTEXT_SIZE; i++) {
+            MessageContextManager.ChatMessage msg = window.get(i);
+            assertEquals(msg.isSelf ? "assistant" : "user", array.getJSONObject(i).getString("role"));
+            assertTrue(array.getJSONObject(i).getString("content").endsWith(msg.content));
+        }
+    }
+
+    @Test
+    public void slidingWindowReusesSerializedMessages() throws Exception {
+        List<MessageContextManager.ChatMessage> window = newWindow(CONTEXT_SIZE);
+        PromptCompiler.CompiledContext first = compile(window);
+
+        window.remove(0);
+        window.add(newMessage());
+        PromptCompiler.CompiledContext second = compile(window);
+
+        // 仍在窗口内的消息直接复用上一次序列化的片段（同一对象，未重新生成或复制）
+        for (int i = 0; i < CONTEXT_SIZE - 1; i++) {
+            assertSame(first.segment(i + 1), second.segment(i));
+        }
+    }
+
+    @Test
+    public void benchmarkCompileContext() throws Exception {
+        Assume.assumeTrue("基准测试默认跳过", Boolean.getBoolean("galqq.bench"));
+        com.sun.management.ThreadMXBean threads = allocationBean();
+
+        // 冷编译：每次都是新消息
+        List<List<MessageContextManager.ChatMessage>> coldWindows = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            coldWindows.add(newWindow(CONTEXT_SIZE));
+        }
+        for (List<MessageContextManager.ChatMessage> w : coldWindows.subList(0, 100)) {
+            compile(w);
+        }
+        Measurement cold = measure(threads, 100, i -> compile(coldWindows.get(100 + i)));
+
+        // 热编译：同一窗口重复编译
+        List<MessageContextManager.ChatMessage> window = newWindow(CONTEXT_SIZE);
+        for (int i = 0; i < WARMUP; i++) {
+            compile(window);
+        }
+        Measurement warm = measure(threads, ITERATIONS, i -> compile(window));
+
+        // 滑动窗口：移出最旧一条，追加一条新消息
+        List<MessageContextManager.ChatMessage> fresh = newWindow(WARMUP + ITERATIONS);
+        for (int i = 0; i < WARMUP; i++) {
+            slide(window, fresh.get(i));
+        }
+        int contextChars = compile(window).length();
+        Measurement sliding = measure(threads, ITERATIONS, i -> slide(window, fresh.get(WARMUP + i)));
+
+        System.out.println(String.format("[bench] compileContext(%d条, %d字符)", CONTEXT_SIZE, contextChars));
+        System.out.println("[bench]   冷编译    " + cold);
+        System.out.println("[bench]   热编译    " + warm);
+        System.out.println("[bench]   滑动窗口  " + sliding);
+
+        if (threads != null) {
+            // 热编译只分配片段引用数组和结果对象
+            assertTrue("热编译分配过多: " + warm.bytesPerOp, warm.bytesPerOp < 1024);
+            // 滑动窗口只序列化新消息，不复制整个上下文（上下文本身约 2 * contextChars 字节）
+            assertTrue("滑动窗口分配随上下文长度增长: " + sliding.bytesPerOp + " / context " + (2L * contextChars),
+                    sliding.bytesPerOp < 2L * contextChars);
+        }
+    }
+
+    private static void slide(List<MessageContextManager.ChatMessage> window,
+                              MessageContextManager.ChatMessage next) throws Exception {
+        window.remove(0);
+        window.add(next);
+        compile(window);
+    }
+
+    // ========== 计时与分配统计 ==========
+
+    private interface Op {
+        void run(int i) throws Exception;
+    }
+
+    private static class Measurement {
+        final double nsPerOp;
+        final long bytesPerOp; // 不支持统计时为 -1
+
+        Measurement(double nsPerOp, long bytesPerOp) {
+            this.nsPerOp = nsPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%8.1f us/op, %s", nsPerOp / 1000.0,
+                    bytesPerOp >= 0 ? bytesPerOp + " B/op" : "分配统计不可用");
+        }
+    }
+
+    private static Measurement measure(com.sun.management.ThreadMXBean threads, int iterations, Op op) throws Exception {
+        long tid = Thread.currentThread().getId();
+        long allocBefore = threads != null ? threads.getThreadAllocatedBytes(tid) : 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads != null ? threads.getThreadAllocatedBytes(tid) - allocBefore : -1;
+        return new Measurement((double) elapsed / iterations, allocated >= 0 ? allocated / iterations : -1);
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+                if (threads.isThreadAllocatedMemorySupported()) {
+                    threads.setThreadAllocatedMemoryEnabled(true);
+                    return threads;
+                }
+            }
+        } catch (Throwable ignored) {}
+        return null;
+    }
+}
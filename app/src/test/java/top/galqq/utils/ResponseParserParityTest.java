@@ -0,0 +1,154 @@
+package top.galqq.utils;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 单遍扫描（ResponseScanner）与旧多策略解析链的对比测试和基准
+ *
+ * 语料在 src/test/resources/ai_responses 下，覆盖各服务商实际出现过的返回格式：
+ * Markdown代码块、前后夹带说明文字、编号列表、|||分隔、多个JSON拼接、截断、
+ * reasoning_content、&lt;think&gt;标签、错误响应、误走非流式解析的SSE响应体等。
+ *
+ * 对比规则：
+ * - 旧解析链能解析的响应，新实现必须给出完全相同的选项
+ * - 旧解析链解析失败的响应，只有列在 RECOVERED 中的才允许新实现解析成功（扫描器的有意改进）
+ *
+ * 基准默认跳过，使用 ./gradlew test -Pbench 运行。
+ */
+public class ResponseParserParityTest {
+
+    private static final String CORPUS_DIR = "ai_responses";
+
+    /**
+     * 旧解析链失败、单遍扫描能解析的响应：
+     * - 响应体被截断，但前3个选项已完整
+     * - finish_reason=length 的choice中选项已完整（旧实现直接跳过该choice）
+     * - 补全接口格式 choices[].text（旧实现只读取 choices[].message）
+     */
+    private static final Set<String> RECOVERED = new HashSet<>(Arrays.asList(
+            "09_truncated_body.json",
+            "10_finish_reason_length.json",
+            "19_completion_text.json"
+    ));
+
+    private static final int WARMUP = 300;
+    private static final int ITERATIONS = 1000;
+
+    private static List<String> names;
+    private static List<String> bodies;
+
+    @BeforeClass
+    public static void loadCorpus() throws Exception {
+        URL dir = ResponseParserParityTest.class.getClassLoader().getResource(CORPUS_DIR);
+        assertNotNull("找不到语料目录 " + CORPUS_DIR, dir);
+        File[] files = new File(dir.toURI()).listFiles();
+        assertNotNull(files);
+        Arrays.sort(files);
+
+        names = new ArrayList<>();
+        bodies = new ArrayList<>();
+        for (File file : files) {
+            names.add(file.getName());
+            bodies.add(read(file));
+        }
+        assertFalse("语料为空", names.isEmpty());
+    }
+
+    @Test
+    public void scannerMatchesLegacyChain() {
+        int recovered = 0;
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            List<String> legacy = HttpAiClient.parseJsonResponseLegacy(bodies.get(i));
+            List<String> current = HttpAiClient.parseJsonResponse(bodies.get(i));
+
+            if (legacy != null) {
+                assertEquals(name + "：新旧解析结果不一致", legacy, current);
+            } else if (RECOVERED.contains(name)) {
+                assertNotNull(name + "：应由单遍扫描解析成功", current);
+                assertTrue(name + "：选项不足3个", current.size() >= 3);
+                recovered++;
+            } else {
+                assertEquals(name + "：旧解析链失败时新实现也应失败", null, current);
+            }
+        }
+        assertEquals("RECOVERED 中有未命中的语料", RECOVERED.size(), recovered);
+    }
+
+    @Test
+    public void scannerPathHandlesCommonResponsesAlone() {
+        // 标准OpenAI格式和直接options格式不需要退回旧解析链
+        for (String name : Arrays.asList("01_openai_options.json", "06_direct_options.json",
+                "08_concatenated_objects.txt", "12_unicode_escapes.json", "13_reasoning_content.json")) {
+            List<String> scanned = HttpAiClient.parseWithScanner(bodies.get(names.indexOf(name)));
+            assertNotNull(name + "：单遍扫描未能解析", scanned);
+        }
+    }
+
+    @Test
+    public void benchmarkAgainstLegacyChain() {
+        Assume.assumeTrue("基准测试默认跳过", Boolean.getBoolean("galqq.bench"));
+        for (int i = 0; i < WARMUP; i++) {
+            for (String body : bodies) {
+                HttpAiClient.parseJsonResponseLegacy(body);
+                HttpAiClient.parseJsonResponse(body);
+            }
+        }
+
+        System.out.println(String.format("[bench] %-36s %12s %12s %8s", "响应", "旧解析链", "单遍扫描", "加速比"));
+        long legacyTotal = 0;
+        long currentTotal = 0;
+        for (int i = 0; i < names.size(); i++) {
+            String body = bodies.get(i);
+            long legacy = time(() -> HttpAiClient.parseJsonResponseLegacy(body));
+            long current = time(() -> HttpAiClient.parseJsonResponse(body));
+            legacyTotal += legacy;
+            currentTotal += current;
+            System.out.println(String.format("[bench] %-36s %9.1f us %9.1f us %7.2fx",
+                    names.get(i), legacy / 1000.0, current / 1000.0, (double) legacy / current));
+        }
+        System.out.println(String.format("[bench] %-36s %9.1f us %9.1f us %7.2fx",
+                "合计", legacyTotal / 1000.0, currentTotal / 1000.0, (double) legacyTotal / currentTotal));
+    }
+
+    /**
+     * 平均每次耗时（纳秒）
+     */
+    private static long time(Runnable op) {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            op.run();
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static String read(File file) throws Exception {
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), "UTF-8");
+        }
+    }
+}